@@ -0,0 +1,182 @@
+package pl.edu.agh.ssd;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarki JMH kerneli {@link SmokeSimulation} i całego kroku {@link SmokeSimulation#update()}.
+ * <p>
+ * Każdy benchmark raportuje liczbę wywołań na sekundę oraz licznik {@code cells} - liczbę komórek siatki przetworzonych
+ * na sekundę, który pozwala porównywać wyniki między rozmiarami siatki. Tempo alokacji podaje profiler GC:
+ * <pre>
+ * mvn -Pbenchmark package
+ * java -jar target/benchmarks.jar -prof gc
+ * java -jar target/benchmarks.jar "SmokeSimulationBenchmark.update" -p size=64 -p layout=room -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+public class SmokeSimulationBenchmark {
+
+    /**
+     * Rozmiar siatki w każdej osi
+     */
+    @Param({"32", "64", "128", "256"})
+    int size;
+
+    /**
+     * Układ pomieszczenia: "empty" - samo źródło dymu, "room" - układ domyślnego scenariusza z {@link Main}
+     * (źródło, wiatr i dwie ścianki) przeskalowany do rozmiaru siatki
+     */
+    @Param({"empty", "room"})
+    String layout;
+
+    @Param({"1"})
+    int threads;
+
+    @Param({"DOUBLE", "FLOAT"})
+    FieldPrecision precision;
+
+    /**
+     * Miejsce przechowywania pól; DIRECT i MAPPED tylko z precision=DOUBLE, np. -p storage=MAPPED -p precision=DOUBLE
+     */
+    @Param({"HEAP"})
+    FieldStorage storage;
+
+    /**
+     * Kernele wektorowe ({@link VectorKernels}) zamiast skalarnych
+     */
+    @Param({"false", "true"})
+    boolean vector;
+
+    @Param({"GAUSS_SEIDEL", "RED_BLACK"})
+    RelaxationScheme relaxation;
+
+    SmokeSimulation simulation;
+    SmokeGrid room;
+
+    /**
+     * Liczba przetworzonych komórek, raportowana przez JMH jako przepustowość
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Cells {
+        public long cells;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            cells = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SmokeGrid grid = new SmokeGrid(size, size, size, precision, storage, Paths.get(System.getProperty("java.io.tmpdir")));
+        simulation = new SmokeSimulation(grid, 0.1, 3, 100, 0.00001, 0.02, threads);
+        room = simulation.room;
+        simulation.setVectorKernels(vector);
+        simulation.setRelaxationScheme(relaxation);
+        simulation.addSource(scale(15), scale(48), scale(15));
+        if (layout.equals("room")) {
+            simulation.addWind(scale(48), scale(15), 1, 0, 0, 3);
+            simulation.addBound(scale(15), scale(31), scale(24), scale(24), 0, scale(31));
+            simulation.addBound(scale(40), scale(46), scale(10), scale(10), 0, size - 1);
+        }
+        // Kilka kroków, żeby pola prędkości i gęstości nie były zerowe
+        for (int step = 0; step < 10; step++) {
+            simulation.update();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        simulation.shutdown();
+    }
+
+    /**
+     * Przelicza współrzędną domyślnego scenariusza 50x50x50 na bieżący rozmiar siatki
+     */
+    private int scale(int coordinate) {
+        return Math.min(size - 2, coordinate * size / 50);
+    }
+
+    private long cellCount() {
+        return (long) size * size * size;
+    }
+
+    @Benchmark
+    public void diffuse(Cells cells) {
+        simulation.diffuse(0, room.prevDensity, room.density, simulation.diffRate);
+        cells.cells += cellCount();
+    }
+
+    @Benchmark
+    public void advect(Cells cells) {
+        simulation.advect(0, room.density, room.prevDensity, room.velocityX, room.velocityY, room.velocityZ);
+        cells.cells += cellCount();
+    }
+
+    /**
+     * Adwekcja trzech składowych prędkości jednym przejściem, jak w {@link SmokeSimulation#update()}
+     */
+    @Benchmark
+    public void advectVelocity(Cells cells) {
+        simulation.advect(new int[]{1, 2, 3}, simulation.velocities, simulation.previousVelocities,
+                room.prevVelocityX, room.prevVelocityY, room.prevVelocityZ);
+        cells.cells += 3 * cellCount();
+    }
+
+    /**
+     * Adwekcja trzech składowych prędkości osobnymi przejściami - punkt odniesienia dla {@link #advectVelocity}
+     */
+    @Benchmark
+    public void advectVelocityPerField(Cells cells) {
+        simulation.advect(1, room.velocityX, room.prevVelocityX, room.prevVelocityX, room.prevVelocityY, room.prevVelocityZ);
+        simulation.advect(2, room.velocityY, room.prevVelocityY, room.prevVelocityX, room.prevVelocityY, room.prevVelocityZ);
+        simulation.advect(3, room.velocityZ, room.prevVelocityZ, room.prevVelocityX, room.prevVelocityY, room.prevVelocityZ);
+        cells.cells += 3 * cellCount();
+    }
+
+    @Benchmark
+    public void project(Cells cells) {
+        simulation.project(room.velocityX, room.velocityY, room.velocityZ);
+        cells.cells += cellCount();
+    }
+
+    @Benchmark
+    public void enforceBoundaryConditions(Cells cells) {
+        simulation.enforceBoundaryConditions(1, room.velocityX);
+        cells.cells += cellCount();
+    }
+
+    @Benchmark
+    public void fadeSmokeDensity(Cells cells) {
+        simulation.fadeSmokeDensity();
+        cells.cells += cellCount();
+    }
+
+    @Benchmark
+    public void update(Cells cells) {
+        simulation.update();
+        cells.cells += cellCount();
+    }
+}
@@ -0,0 +1,247 @@
+package pl.edu.agh.ssd;
+
+import java.util.Arrays;
+
+/**
+ * Śledzenie aktywnych fragmentów siatki, pozwalające pominąć w kroku symulacji nieruchome powietrze bez dymu.
+ * <p>
+ * Wnętrze pomieszczenia podzielone jest na bloki {@link #BRICK}^3 komórek. Blok jest aktywny, jeśli w którejś
+ * z jego komórek gęstość dymu lub składowa prędkości (bieżąca albo poprzednia) przekracza co do wartości
+ * bezwzględnej {@link #threshold próg}, albo jeśli zawiera źródło dymu lub wiatru. Kernele symulacji liczą
+ * aktywne bloki razem z otoczką jednego bloku dookoła nich, a poza nią przyjmują, że wszystkie pola są zerowe.
+ * Blok, który wypada z obszaru liczonego, jest zerowany, więc to założenie pozostaje prawdziwe. Przy transporcie
+ * temperatury ({@link SmokeSimulation#enableTemperature}) blok jest aktywny także wtedy, gdy temperatura różni się
+ * od temperatury otoczenia o więcej niż próg, a poza obszarem liczonym temperatura jest równa temperaturze otoczenia.
+ * <p>
+ * Pominięte komórki mają prędkość poniżej progu, więc adwekcja w otoczce pobiera wartości tylko z najbliższych
+ * komórek i dym nie może w jednym kroku przeskoczyć otoczki. Ciśnienie w pominiętych komórkach jest zerowe,
+ * co dla relaksacji oznacza stałe ciśnienie na granicy obszaru liczonego - to jedyne przybliżenie oprócz progu.
+ * Solvery wielosiatkowy i gradientów sprzężonych zawsze rozwiązują równanie ciśnienia w całym pomieszczeniu.
+ * <p>
+ * Dla kerneli obszar liczony opisany jest zakresem osi Z w każdym wierszu (x, y) - od najniższej do najwyższej
+ * komórki liczonych bloków tego wiersza ({@link #rowFrom}, {@link #rowTo}). Kernele liczą więc także bloki
+ * leżące w kolumnie pomiędzy liczonymi blokami - takie bloki są oznaczane jako liczone, żeby były przeglądane,
+ * zerowane po wypadnięciu z obszaru i wliczane do {@link #processedCells}.
+ */
+public class ActiveRegion {
+
+    /**
+     * Rozmiar bloku w każdej osi
+     */
+    static final int BRICK = 8;
+
+    /**
+     * Próg wartości bezwzględnej gęstości i prędkości, powyżej którego blok jest aktywny
+     */
+    final double threshold;
+
+    final int bricksX, bricksY, bricksZ;
+
+    /**
+     * Bloki liczone w bieżącym kroku (aktywne razem z otoczką)
+     */
+    boolean[] processed;
+
+    /**
+     * Tablice pomocnicze wypełniane w {@link #update}: bloki aktywne i bloki liczone w następnym kroku
+     */
+    private final boolean[] active;
+    private boolean[] next;
+
+    /**
+     * Zakres [rowFrom, rowTo) osi Z liczony w wierszu (x, y), indeksowany x * gridSize[1] + y.
+     * Pusty wiersz ma rowFrom == rowTo.
+     */
+    final int[] rowFrom, rowTo;
+
+    /**
+     * Liczba komórek wewnętrznych w liczonych blokach
+     */
+    long processedCells;
+
+    /**
+     * Czy geometria lub pola zmieniły się poza krokiem symulacji - wtedy przegląda się wszystkie bloki
+     */
+    boolean dirty = true;
+
+    /**
+     * Temperatura otoczenia przy liczonym transporcie temperatury, NaN gdy temperatura nie jest liczona
+     */
+    double ambientTemperature = Double.NaN;
+
+    private final int sizeX, sizeY, sizeZ;
+
+    /**
+     * Pola sprawdzane przy wyznaczaniu aktywnych bloków i pola zerowane w blokach, które przestały być liczone
+     */
+    private final GridField[] scanned, cleared;
+    private final GridField[] temperatures;
+
+    ActiveRegion(SmokeGrid room, double threshold) {
+        this.threshold = threshold;
+        this.sizeX = room.gridSize[0];
+        this.sizeY = room.gridSize[1];
+        this.sizeZ = room.gridSize[2];
+        this.bricksX = (sizeX - 2 + BRICK - 1) / BRICK;
+        this.bricksY = (sizeY - 2 + BRICK - 1) / BRICK;
+        this.bricksZ = (sizeZ - 2 + BRICK - 1) / BRICK;
+        this.processed = new boolean[bricksX * bricksY * bricksZ];
+        this.active = new boolean[processed.length];
+        this.next = new boolean[processed.length];
+        this.scanned = new GridField[]{room.density, room.prevDensity, room.velocityX, room.velocityY, room.velocityZ,
+                room.prevVelocityX, room.prevVelocityY, room.prevVelocityZ};
+        this.cleared = new GridField[]{room.density, room.prevDensity, room.velocityX, room.velocityY, room.velocityZ,
+                room.prevVelocityX, room.prevVelocityY, room.prevVelocityZ, room.pressure, room.prevPressure, room.divergence};
+        this.temperatures = new GridField[]{room.temperature, room.prevTemperature};
+        this.rowFrom = new int[sizeX * sizeY];
+        this.rowTo = new int[sizeX * sizeY];
+    }
+
+    private int brick(int bx, int by, int bz) {
+        return (bx * bricksY + by) * bricksZ + bz;
+    }
+
+    /**
+     * Wyznacza aktywne bloki na początku kroku, zeruje bloki, które przestały być liczone,
+     * i odświeża zakresy wierszy. Przeglądane są tylko bloki liczone w poprzednim kroku
+     * (albo wszystkie, jeśli {@link #dirty}).
+     */
+    void update(SmokeGrid room, SlabExecutor executor) {
+        boolean all = dirty;
+        boolean[] previous = processed;
+        executor.forEach(0, bricksX, (from, to) -> {
+            for (int bx = from; bx < to; bx++) {
+                for (int by = 0; by < bricksY; by++) {
+                    for (int bz = 0; bz < bricksZ; bz++) {
+                        int b = brick(bx, by, bz);
+                        active[b] = (all || previous[b]) && isActive(room, bx, by, bz);
+                    }
+                }
+            }
+        });
+
+        boolean[] next = this.next;
+        Arrays.fill(next, false);
+        for (int bx = 0; bx < bricksX; bx++) {
+            for (int by = 0; by < bricksY; by++) {
+                for (int bz = 0; bz < bricksZ; bz++) {
+                    if (!active[brick(bx, by, bz)]) continue;
+                    for (int nx = Math.max(0, bx - 1); nx <= Math.min(bricksX - 1, bx + 1); nx++) {
+                        for (int ny = Math.max(0, by - 1); ny <= Math.min(bricksY - 1, by + 1); ny++) {
+                            for (int nz = Math.max(0, bz - 1); nz <= Math.min(bricksZ - 1, bz + 1); nz++) {
+                                next[brick(nx, ny, nz)] = true;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        executor.forEach(0, bricksX, (from, to) -> {
+            for (int bx = from; bx < to; bx++) {
+                for (int by = 0; by < bricksY; by++) {
+                    for (int bz = 0; bz < bricksZ; bz++) {
+                        int b = brick(bx, by, bz);
+                        if ((all || previous[b]) && !next[b]) {
+                            clear(room, bx, by, bz);
+                        }
+                    }
+                }
+            }
+        });
+
+        this.next = previous;
+        processed = next;
+        dirty = false;
+        updateRows();
+    }
+
+    private boolean isActive(SmokeGrid room, int bx, int by, int bz) {
+        int fromZ = 1 + bz * BRICK;
+        int toZ = Math.min(sizeZ - 1, fromZ + BRICK);
+        for (int x = 1 + bx * BRICK; x < Math.min(sizeX - 1, 1 + (bx + 1) * BRICK); x++) {
+            for (int y = 1 + by * BRICK; y < Math.min(sizeY - 1, 1 + (by + 1) * BRICK); y++) {
+                int row = room.index(x, y, fromZ);
+                for (int i = row; i < row + toZ - fromZ; i++) {
+                    if (room.cellType[i] == SmokeGrid.SOURCE || room.cellType[i] == SmokeGrid.WIND_SOURCE) {
+                        return true;
+                    }
+                }
+                for (GridField field : scanned) {
+                    for (int i = row; i < row + toZ - fromZ; i++) {
+                        if (Math.abs(field.get(i)) > threshold) {
+                            return true;
+                        }
+                    }
+                }
+                if (!Double.isNaN(ambientTemperature)) {
+                    for (GridField field : temperatures) {
+                        for (int i = row; i < row + toZ - fromZ; i++) {
+                            if (Math.abs(field.get(i) - ambientTemperature) > threshold) {
+                                return true;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private void clear(SmokeGrid room, int bx, int by, int bz) {
+        int fromZ = 1 + bz * BRICK;
+        int toZ = Math.min(sizeZ - 1, fromZ + BRICK);
+        for (int x = 1 + bx * BRICK; x < Math.min(sizeX - 1, 1 + (bx + 1) * BRICK); x++) {
+            for (int y = 1 + by * BRICK; y < Math.min(sizeY - 1, 1 + (by + 1) * BRICK); y++) {
+                int row = room.index(x, y, fromZ);
+                for (GridField field : cleared) {
+                    field.fill(row, row + toZ - fromZ, 0);
+                }
+                if (!Double.isNaN(ambientTemperature)) {
+                    for (GridField field : temperatures) {
+                        field.fill(row, row + toZ - fromZ, ambientTemperature);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Oznacza jako liczone bloki kolumn (bx, by) pomiędzy liczonymi blokami i wylicza zakresy wierszy
+     */
+    void updateRows() {
+        for (int bx = 0; bx < bricksX; bx++) {
+            for (int by = 0; by < bricksY; by++) {
+                int first = brick(bx, by, 0);
+                int last = first + bricksZ - 1;
+                while (first <= last && !processed[first]) {
+                    first++;
+                }
+                while (last > first && !processed[last]) {
+                    last--;
+                }
+                Arrays.fill(processed, first, last + 1, true);
+            }
+        }
+        long cells = 0;
+        for (int x = 1; x < sizeX - 1; x++) {
+            int bx = (x - 1) / BRICK;
+            for (int y = 1; y < sizeY - 1; y++) {
+                int by = (y - 1) / BRICK;
+                int from = sizeZ - 1;
+                int to = 1;
+                for (int bz = 0; bz < bricksZ; bz++) {
+                    if (!processed[brick(bx, by, bz)]) continue;
+                    int brickFrom = 1 + bz * BRICK;
+                    int brickTo = Math.min(sizeZ - 1, brickFrom + BRICK);
+                    from = Math.min(from, brickFrom);
+                    to = Math.max(to, brickTo);
+                    cells += brickTo - brickFrom;
+                }
+                rowFrom[x * sizeY + y] = from;
+                rowTo[x * sizeY + y] = Math.max(from, to);
+            }
+        }
+        processedCells = cells;
+    }
+}
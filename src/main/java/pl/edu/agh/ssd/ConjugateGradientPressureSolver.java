@@ -0,0 +1,159 @@
+package pl.edu.agh.ssd;
+
+/**
+ * Solver ciśnienia metodą gradientów sprzężonych z preconditionerem Jacobiego, bez jawnej macierzy.
+ * <p>
+ * Niewiadomymi są ciśnienia komórek płynu. Ciśnienia komórek źródeł, wiatru i przeszkód są stałe i trafiają
+ * na prawą stronę, a komórka płynu przy ścianie pomieszczenia ma na przekątnej 6 minus liczbę sąsiednich ścian
+ * (ściana przyjmuje ciśnienie komórki wewnętrznej). Macierz jest więc symetryczna i dodatnio (pół)określona,
+ * a jej mnożenie przez wektor to ten sam 7-punktowy schemat co w relaksacji, liczony w locie.
+ * <p>
+ * Mnożenie przez macierz i iloczyny skalarne liczone są równolegle po plastrach {@link SlabExecutor},
+ * a sumy częściowe dodawane w stałej kolejności, więc wynik nie zależy od liczby wątków.
+ * Jedna iteracja solvera to jedna iteracja metody gradientów sprzężonych.
+ */
+public class ConjugateGradientPressureSolver extends PressureSolver {
+
+    /**
+     * Residuum, residuum po preconditionerze, kierunek poszukiwań i iloczyn macierzy z kierunkiem.
+     * Wektory mają układ pól siatki i są zerowe poza komórkami płynu.
+     */
+    private double[] r, z, d, q;
+
+    @Override
+    public String getName() {
+        return "conjugate-gradient";
+    }
+
+    @Override
+    int iterate(SmokeSimulation simulation, GridField pressure, GridField divergence) {
+        SmokeGrid room = simulation.room;
+        SlabExecutor executor = simulation.executor;
+        int size = pressure.length;
+        if (r == null || r.length != size) {
+            r = new double[size];
+            z = new double[size];
+            d = new double[size];
+            q = new double[size];
+        }
+        double cells = (double) (room.gridSize[0] - 2) * (room.gridSize[1] - 2) * (room.gridSize[2] - 2);
+        int fromX = 1;
+        int toX = room.gridSize[0] - 1;
+
+        // r = b - A * p liczone wprost z pola ciśnienia (ściany są już ustawione przez enforceBoundaryConditions),
+        // z = d = M^-1 * r
+        double[] start = executor.sums(fromX, toX, 2, (from, to, sums) -> {
+            int strideX = room.strideX;
+            int strideY = room.strideY;
+            for (int x = from; x < to; x++) {
+                for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                    int i = room.index(x, y, 1);
+                    for (int k = 1; k < room.gridSize[2] - 1; k++, i++) {
+                        if (!isFluid(room, i)) {
+                            r[i] = z[i] = d[i] = 0;
+                            continue;
+                        }
+                        double residual = divergence.get(i)
+                                + pressure.get(i + strideX) + pressure.get(i - strideX)
+                                + pressure.get(i + strideY) + pressure.get(i - strideY)
+                                + pressure.get(i + 1) + pressure.get(i - 1)
+                                - 6 * pressure.get(i);
+                        double preconditioned = residual / diagonal(room, x, y, k);
+                        r[i] = residual;
+                        z[i] = preconditioned;
+                        d[i] = preconditioned;
+                        sums[0] += residual * preconditioned;
+                        sums[1] += residual * residual;
+                    }
+                }
+            }
+        });
+        double rz = start[0];
+        double rr = start[1];
+
+        int iterations = 0;
+        while (iterations < maxIterations && !(tolerance > 0 && Math.sqrt(rr / cells) <= tolerance)) {
+            // q = A * d, dq = d . q
+            double dq = executor.sum(fromX, toX, (from, to) -> {
+                int strideX = room.strideX;
+                int strideY = room.strideY;
+                double partial = 0;
+                for (int x = from; x < to; x++) {
+                    for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                        int i = room.index(x, y, 1);
+                        for (int k = 1; k < room.gridSize[2] - 1; k++, i++) {
+                            if (!isFluid(room, i)) continue;
+                            double value = diagonal(room, x, y, k) * d[i]
+                                    - (d[i + strideX] + d[i - strideX] + d[i + strideY] + d[i - strideY] + d[i + 1] + d[i - 1]);
+                            q[i] = value;
+                            partial += d[i] * value;
+                        }
+                    }
+                }
+                return partial;
+            });
+            if (!(dq > 0)) {
+                // Kierunek z jądra macierzy (pomieszczenie bez komórek o stałym ciśnieniu) - dalsze iteracje nic nie dadzą
+                break;
+            }
+            double alpha = rz / dq;
+
+            // p += alpha * d, r -= alpha * q, z = M^-1 * r
+            double[] next = executor.sums(fromX, toX, 2, (from, to, sums) -> {
+                for (int x = from; x < to; x++) {
+                    for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                        int i = room.index(x, y, 1);
+                        for (int k = 1; k < room.gridSize[2] - 1; k++, i++) {
+                            if (!isFluid(room, i)) continue;
+                            pressure.set(i, pressure.get(i) + alpha * d[i]);
+                            double residual = r[i] - alpha * q[i];
+                            double preconditioned = residual / diagonal(room, x, y, k);
+                            r[i] = residual;
+                            z[i] = preconditioned;
+                            sums[0] += residual * preconditioned;
+                            sums[1] += residual * residual;
+                        }
+                    }
+                }
+            });
+            double beta = next[0] / rz;
+            rz = next[0];
+            rr = next[1];
+            iterations++;
+
+            // d = z + beta * d
+            executor.forEach(fromX, toX, (from, to) -> {
+                for (int x = from; x < to; x++) {
+                    for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                        int i = room.index(x, y, 1);
+                        for (int k = 1; k < room.gridSize[2] - 1; k++, i++) {
+                            if (!isFluid(room, i)) continue;
+                            d[i] = z[i] + beta * d[i];
+                        }
+                    }
+                }
+            });
+        }
+
+        simulation.enforceBoundaryConditions(0, pressure);
+        return iterations;
+    }
+
+    private static boolean isFluid(SmokeGrid room, int i) {
+        return room.cellType[i] == SmokeGrid.FLUID;
+    }
+
+    /**
+     * Element przekątnej macierzy: 6 minus liczba ścian pomieszczenia sąsiadujących z komórką (x, y, z)
+     */
+    private static double diagonal(SmokeGrid room, int x, int y, int z) {
+        int walls = 0;
+        if (x == 1) walls++;
+        if (x == room.gridSize[0] - 2) walls++;
+        if (y == 1) walls++;
+        if (y == room.gridSize[1] - 2) walls++;
+        if (z == 1) walls++;
+        if (z == room.gridSize[2] - 2) walls++;
+        return 6 - walls;
+    }
+}
@@ -0,0 +1,315 @@
+package pl.edu.agh.ssd;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Uruchamia scenariusz {@link HeadlessRunner} podzielony na podobszary ({@link DomainDecomposition}).
+ * <p>
+ * Bez opcji {@code --rank} wszystkie podobszary liczone są w wątkach tego procesu i wymieniają halo przez
+ * {@link InProcessHaloTransport} albo, z {@code --transport socket}, przez {@link SocketHaloTransport} na localhost.
+ * Z opcją {@code --rank R} proces liczy tylko podobszar R - pozostałe rangi uruchamia się jako osobne procesy
+ * z tymi samymi opcjami, a sąsiedzi łączą się przez TCP. Każdy proces potrzebuje pamięci tylko na swój podobszar.
+ * <p>
+ * Każda ranga zapisuje swoje płaszczyzny do wspólnego {@code density.raw} (w tym samym formacie co
+ * {@link HeadlessRunner}), a ranga 0 zapisuje {@code steps.csv} (całkowita ilość dymu sumowana po podobszarach)
+ * i {@code summary.txt}. Punkty kontrolne, klatki, metryki i wznawianie nie są obsługiwane.
+ */
+public class DecomposedRunner {
+
+    static final String USAGE = String.join(System.lineSeparator(),
+            "Decomposition options (all other options describe the scenario, see HeadlessRunner):",
+            "  --workers N                subdomains along the X axis (default 2)",
+            "  --halo N                   halo planes on each side (default floor(--cfl) + 1, or 3 with a fixed time step)",
+            "  --transport T              in-process or socket, for subdomains run in threads of this process (default in-process)",
+            "  --rank R                   run only subdomain R in this process, connected to the others by sockets",
+            "  --host HOST                address all ranks listen on (default 127.0.0.1)",
+            "  --port PORT                port of rank 0, rank r listens on PORT + r (default 47000)");
+
+    /**
+     * Argumenty scenariusza
+     */
+    final List<String> scenarioArgs = new ArrayList<>();
+
+    int workers = 2;
+
+    /**
+     * Szerokość halo, 0 - {@link DomainDecomposition#defaultHaloWidth}
+     */
+    int halo = 0;
+    boolean socketTransport = false;
+
+    /**
+     * Liczona ranga, -1 - wszystkie rangi w wątkach tego procesu
+     */
+    int rank = -1;
+    String host = "127.0.0.1";
+    int port = 47000;
+
+    ScenarioConfig config;
+    DomainDecomposition decomposition;
+
+    public static void main(String[] args) throws Exception {
+        DecomposedRunner runner;
+        try {
+            runner = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java -cp <classes> pl.edu.agh.ssd.DecomposedRunner [options]");
+            System.err.println(USAGE);
+            System.err.println(ScenarioConfig.USAGE);
+            System.exit(2);
+            return;
+        }
+        Files.createDirectories(runner.config.output);
+        if (runner.rank >= 0) {
+            try (HaloTransport transport = new SocketHaloTransport(runner.rank, runner.workers, runner.host, runner.port)) {
+                runner.run(transport);
+            }
+        } else {
+            runner.runAll();
+        }
+    }
+
+    /**
+     * Oddziela opcje podziału od opcji scenariusza i sprawdza, czy scenariusz da się podzielić
+     *
+     * @throws IllegalArgumentException przy błędnej opcji albo scenariuszu, którego nie można podzielić
+     */
+    static DecomposedRunner parse(String[] args) throws IOException {
+        DecomposedRunner runner = new DecomposedRunner();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            boolean runnerOption = name.equals("--workers") || name.equals("--halo") || name.equals("--transport")
+                    || name.equals("--rank") || name.equals("--host") || name.equals("--port");
+            if (!runnerOption) {
+                runner.scenarioArgs.add(name);
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + name);
+            }
+            String value = args[++i];
+            try {
+                switch (name) {
+                    case "--workers":
+                        runner.workers = Integer.parseInt(value);
+                        break;
+                    case "--halo":
+                        runner.halo = Integer.parseInt(value);
+                        break;
+                    case "--transport":
+                        if (!value.equals("in-process") && !value.equals("socket")) {
+                            throw new IllegalArgumentException("Unknown transport: " + value);
+                        }
+                        runner.socketTransport = value.equals("socket");
+                        break;
+                    case "--rank":
+                        runner.rank = Integer.parseInt(value);
+                        break;
+                    case "--host":
+                        runner.host = value;
+                        break;
+                    default:
+                        runner.port = Integer.parseInt(value);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+            }
+        }
+        if (runner.workers <= 0 || runner.halo < 0 || runner.rank >= runner.workers || runner.port <= 0
+                || runner.port + runner.workers > 65536) {
+            throw new IllegalArgumentException("Invalid input values. Please check your parameters.");
+        }
+        runner.config = ScenarioConfig.parse(runner.scenarioArgs.toArray(new String[0]));
+        if (runner.config.restore != null || runner.config.checkpointInterval > 0 || runner.config.framesInterval > 0
+                || runner.config.metricsInterval > 0) {
+            throw new IllegalArgumentException("Checkpoints, frames and metrics are not supported in a decomposed run");
+        }
+        int haloWidth = runner.halo > 0 ? runner.halo : DomainDecomposition.defaultHaloWidth(runner.config);
+        runner.decomposition = new DomainDecomposition(runner.config, runner.workers, haloWidth);
+        return runner;
+    }
+
+    /**
+     * Liczy wszystkie podobszary w wątkach tego procesu
+     */
+    void runAll() throws Exception {
+        HaloTransport[] transports = new HaloTransport[workers];
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            if (socketTransport) {
+                // Konstruktor czeka na sąsiadów, więc rangi łączą się równolegle
+                List<Future<HaloTransport>> connections = new ArrayList<>();
+                for (int r = 0; r < workers; r++) {
+                    int connectingRank = r;
+                    connections.add(pool.submit(() -> new SocketHaloTransport(connectingRank, workers, host, port)));
+                }
+                for (int r = 0; r < workers; r++) {
+                    transports[r] = connections.get(r).get();
+                }
+            } else {
+                System.arraycopy(InProcessHaloTransport.connect(workers), 0, transports, 0, workers);
+            }
+            List<Future<?>> ranks = new ArrayList<>();
+            for (HaloTransport transport : transports) {
+                ranks.add(pool.submit(() -> {
+                    try {
+                        run(transport);
+                    } catch (Throwable e) {
+                        // Sąsiedzi czekający na tę rangę dostają błąd zamiast czekać do końca limitu czasu
+                        transport.close();
+                        throw e;
+                    }
+                    return null;
+                }));
+            }
+            // Błąd jednej rangi przerywa wymiany pozostałych - zgłaszany jest pierwotny błąd, a nie zerwane połączenia
+            Throwable failure = null;
+            for (Future<?> future : ranks) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (failure == null || (isTransportFailure(failure) && !isTransportFailure(cause))) {
+                        failure = cause;
+                    }
+                }
+            }
+            if (failure instanceof Exception) {
+                throw (Exception) failure;
+            } else if (failure != null) {
+                throw (Error) failure;
+            }
+        } finally {
+            pool.shutdownNow();
+            for (HaloTransport transport : transports) {
+                if (transport != null) {
+                    transport.close();
+                }
+            }
+        }
+    }
+
+    private static boolean isTransportFailure(Throwable failure) {
+        return failure instanceof IOException || failure instanceof UncheckedIOException;
+    }
+
+    /**
+     * Liczy podobszar rangi transportu i zapisuje jego wyniki
+     */
+    void run(HaloTransport transport) throws IOException {
+        SmokeSimulation simulation = decomposition.createSubdomain(transport);
+        boolean first = transport.rank() == 0;
+        PressureSolver solver = simulation.getPressureSolver();
+        solver.setResidualReporting(config.reportResidual);
+        long totalNanos = 0;
+        try (PrintWriter steps = first ? new PrintWriter(Files.newBufferedWriter(config.output.resolve("steps.csv"),
+                StandardCharsets.UTF_8)) : null) {
+            if (steps != null) {
+                steps.println("step,nanos,total_density,pressure_iterations,pressure_residual,time_step,simulation_time");
+            }
+            for (long step = 1; config.duration > 0 || step <= config.steps; step++) {
+                long start = System.nanoTime();
+                if (config.duration > 0) {
+                    if (!simulation.stepTowards(config.duration)) {
+                        break;
+                    }
+                } else {
+                    simulation.update();
+                }
+                long nanos = System.nanoTime() - start;
+                totalNanos += nanos;
+                double totalDensity = simulation.halo.sum(ownedDensity(simulation.room));
+                if (steps != null) {
+                    steps.printf(Locale.ROOT, "%d,%d,%.17g,%d,%.6e,%.6e,%.17g%n", step, nanos, totalDensity,
+                            solver.getLastIterations(), solver.getLastResidual(), simulation.getTimeStep(),
+                            simulation.getSimulationTime());
+                }
+            }
+        } finally {
+            simulation.shutdown();
+        }
+
+        writeDensity(simulation.room, config.output.resolve("density.raw"));
+        if (!first) {
+            return;
+        }
+        long executedSteps = simulation.getStepCount();
+        double seconds = totalNanos / 1e9;
+        double cells = (double) config.width * config.height * config.depth;
+        String summary = String.format(Locale.ROOT, String.join(System.lineSeparator(),
+                        "grid %dx%dx%d %s %s, %d steps, %d subdomains (%s transport, halo %d), %d threads each, %s relaxation",
+                        "time %.3f s, %.2f steps/s, %.3e cells/s",
+                        "simulated time %.6g, %s time step%s",
+                        "pressure iterations %d", ""),
+                config.width, config.height, config.depth, config.precision, config.storage, executedSteps, workers,
+                rank >= 0 || socketTransport ? "socket" : "in-process", decomposition.haloWidth, config.threads,
+                config.relaxationScheme, seconds, executedSteps / seconds, executedSteps * cells / seconds,
+                simulation.getSimulationTime(), simulation.isAdaptiveTimeStep() ? "adaptive" : "fixed",
+                simulation.isAdaptiveTimeStep() ? String.format(Locale.ROOT, " (CFL %.3g)", config.cflTarget) : "",
+                solver.getTotalIterations());
+        Files.write(config.output.resolve("summary.txt"), summary.getBytes(StandardCharsets.UTF_8));
+        System.out.print(summary);
+    }
+
+    /**
+     * Suma gęstości dymu w komórkach wewnętrznych płaszczyzn liczonych przez podobszar
+     */
+    static double ownedDensity(SmokeGrid room) {
+        double sum = 0;
+        for (int x = room.fromX; x < room.toX; x++) {
+            for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                int i = room.index(x, y, 1);
+                for (int z = 1; z < room.gridSize[2] - 1; z++, i++) {
+                    sum += room.density.get(i);
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Zapisuje gęstość płaszczyzn liczonych przez podobszar w ich miejscu pliku całego pomieszczenia -
+     * rangi mogą pisać jednocześnie, bo ich fragmenty pliku są rozłączne
+     */
+    static void writeDensity(SmokeGrid room, Path file) throws IOException {
+        int height = room.gridSize[1] - 2;
+        int depth = room.gridSize[2] - 2;
+        long fileSize = (long) (room.domainSize[0] - 2) * height * depth * Double.BYTES;
+        ByteBuffer row = ByteBuffer.allocate(depth * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Obcina pozostałości dłuższego pliku z poprzedniego przebiegu - nie krótsze niż pomieszczenie
+            channel.truncate(fileSize);
+            long position = (long) (room.originX + room.fromX - 1) * height * depth * Double.BYTES;
+            for (int x = room.fromX; x < room.toX; x++) {
+                for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                    row.clear();
+                    int i = room.index(x, y, 1);
+                    for (int z = 0; z < depth; z++, i++) {
+                        row.putDouble(room.density.get(i));
+                    }
+                    row.flip();
+                    while (row.hasRemaining()) {
+                        position += channel.write(row, position);
+                    }
+                }
+            }
+        }
+    }
+}
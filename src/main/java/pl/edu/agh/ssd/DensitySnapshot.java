@@ -0,0 +1,68 @@
+package pl.edu.agh.ssd;
+
+/**
+ * Kopia gęstości dymu i typów komórek siatki po jednym kroku symulacji, przekazywana z {@link SimulationThread}
+ * do wątku rysującego. Obejmuje całą siatkę razem ze ścianami, w kolejności x, y, z (patrz {@link #index}).
+ * <p>
+ * Wątek symulacji wypełnia kopię, zanim ją opublikuje, i nie zmienia jej, dopóki wątek rysujący jej nie zwróci
+ * - dla wątku rysującego kopia jest więc niezmienna.
+ */
+public final class DensitySnapshot {
+
+    /**
+     * Rozmiar siatki w osiach X, Y i Z
+     */
+    final int sizeX, sizeY, sizeZ;
+
+    /**
+     * Gęstość dymu (w precyzji float - wystarczającej do wyświetlania) i typ każdej komórki
+     * ({@link SmokeGrid#FLUID}, {@link SmokeGrid#SOURCE}, {@link SmokeGrid#WIND_SOURCE}, {@link SmokeGrid#BARRIER})
+     */
+    final float[] density;
+    final byte[] cellType;
+
+    /**
+     * Liczba kroków symulacji wykonanych przed wykonaniem kopii
+     */
+    long step;
+
+    DensitySnapshot(int sizeX, int sizeY, int sizeZ) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.density = new float[sizeX * sizeY * sizeZ];
+        this.cellType = new byte[density.length];
+    }
+
+    /**
+     * Kopiuje gęstość i typy komórek z siatki
+     */
+    void copyFrom(SmokeGrid room, long step) {
+        this.step = step;
+        int cell = 0;
+        for (int x = 0; x < sizeX; x++) {
+            for (int y = 0; y < sizeY; y++) {
+                int i = room.index(x, y, 0);
+                for (int z = 0; z < sizeZ; z++, i++, cell++) {
+                    density[cell] = (float) room.density.get(i);
+                    cellType[cell] = room.cellType[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Indeks komórki (x, y, z) w tablicach kopii
+     */
+    public int index(int x, int y, int z) {
+        return (x * sizeY + y) * sizeZ + z;
+    }
+
+    public float density(int x, int y, int z) {
+        return density[index(x, y, z)];
+    }
+
+    public long getStep() {
+        return step;
+    }
+}
@@ -0,0 +1,135 @@
+package pl.edu.agh.ssd;
+
+/**
+ * Podział pomieszczenia scenariusza na podobszary wzdłuż osi X, liczone niezależnie (w wątkach albo w osobnych
+ * procesach) i łączone przez {@link HaloTransport}.
+ * <p>
+ * Płaszczyzny wnętrza 1..X-2 dzielone są na ranks równych (z dokładnością do jednej) części. Podobszar rangi r
+ * przechowuje tylko swoje płaszczyzny, po haloWidth płaszczyzn halo z każdej strony i - na końcach pomieszczenia -
+ * ścianę X, więc żaden proces nie musi mieścić całej siatki w pamięci. Halo odświeżane jest przy każdym
+ * {@link SmokeSimulation#enforceBoundaryConditions}, czyli po każdym przebiegu dyfuzji, iteracji ciśnienia,
+ * adwekcji i projekcji, oraz pomiędzy kolorami przebiegów red-black. Największa prędkość (adaptacyjny krok) i residuum
+ * ciśnienia sumowane są po całym pomieszczeniu.
+ * <p>
+ * Kolejność aktualizacji red-black zależy tylko od parzystości globalnych współrzędnych, a adwekcja liczy pozycje
+ * w globalnych współrzędnych, więc podzielona symulacja daje bitowo te same pola co niepodzielona z tymi samymi
+ * opcjami. Warunki: relaksacja red-black ({@link RelaxationScheme#RED_BLACK}), solver {@code relaxation}, bez
+ * {@link ActiveRegion} i kerneli wektorowych, a cofnięta pozycja w adwekcji nie może wyjść poza halo -
+ * z adaptacyjnym krokiem wystarcza halo o floor(cfl) + 1 płaszczyznach ({@link #defaultHaloWidth}).
+ */
+public class DomainDecomposition {
+
+    /**
+     * Szerokość halo przy stałym kroku czasowym - cofnięta pozycja może przesunąć się o nieco mniej niż tyle komórek
+     */
+    static final int DEFAULT_HALO_WIDTH = 3;
+
+    final ScenarioConfig config;
+    final int ranks;
+    final int haloWidth;
+
+    /**
+     * @param config    scenariusz całego pomieszczenia
+     * @param ranks     liczba podobszarów
+     * @param haloWidth liczba płaszczyzn halo po każdej stronie podobszaru
+     * @throws IllegalArgumentException gdy scenariusz nie może być podzielony albo podobszar jest węższy niż halo
+     */
+    public DomainDecomposition(ScenarioConfig config, int ranks, int haloWidth) {
+        if (ranks < 1 || haloWidth < 1) {
+            throw new IllegalArgumentException("Invalid input values. Please check your parameters.");
+        }
+        if (config.relaxationScheme != RelaxationScheme.RED_BLACK) {
+            throw new IllegalArgumentException("Domain decomposition needs --relaxation red-black");
+        }
+        if (!config.pressureSolver.equals("relaxation")) {
+            throw new IllegalArgumentException("Domain decomposition supports only the relaxation pressure solver");
+        }
+        if (config.activeThreshold >= 0 || config.vectorKernels) {
+            throw new IllegalArgumentException("Domain decomposition does not support active regions or vector kernels");
+        }
+        this.config = config;
+        this.ranks = ranks;
+        this.haloWidth = haloWidth;
+        for (int rank = 0; rank < ranks; rank++) {
+            if (ownedTo(rank) - ownedFrom(rank) < haloWidth) {
+                throw new IllegalArgumentException("A " + config.width + " cell room cannot be split into " + ranks
+                        + " subdomains of at least " + haloWidth + " planes");
+            }
+        }
+    }
+
+    /**
+     * Szerokość halo wystarczająca dla kroku czasowego scenariusza
+     */
+    public static int defaultHaloWidth(ScenarioConfig config) {
+        return config.cflTarget > 0 ? (int) Math.floor(config.cflTarget) + 1 : DEFAULT_HALO_WIDTH;
+    }
+
+    /**
+     * Pierwsza globalna płaszczyzna X liczona przez rangę
+     */
+    int ownedFrom(int rank) {
+        return 1 + (int) ((long) (config.width - 2) * rank / ranks);
+    }
+
+    /**
+     * Koniec (wyłącznie) globalnych płaszczyzn X liczonych przez rangę
+     */
+    int ownedTo(int rank) {
+        return ownedFrom(rank + 1);
+    }
+
+    /**
+     * Tworzy symulację podobszaru rangi transportu. Źródła, wiatr i przeszkody scenariusza przenoszone są do
+     * współrzędnych podobszaru, także te leżące w halo - dzięki temu komórki halo mają te same typy co u sąsiada.
+     * Symulacje wszystkich rang trzeba aktualizować jednocześnie - każdy krok czeka na wymiany z sąsiadami.
+     */
+    public SmokeSimulation createSubdomain(HaloTransport transport) {
+        if (transport.ranks() != ranks) {
+            throw new IllegalArgumentException("Transport connects " + transport.ranks() + " ranks, expected " + ranks);
+        }
+        int rank = transport.rank();
+        int from = ownedFrom(rank);
+        int to = ownedTo(rank);
+        int origin = rank == 0 ? 0 : from - haloWidth;
+        int end = rank == ranks - 1 ? config.width : to + haloWidth;
+
+        SmokeGrid room = new SmokeGrid(end - origin, config.height, config.depth, config.precision, config.storage,
+                config.spillDirectory);
+        room.setSubdomain(origin, new int[]{config.width, config.height, config.depth}, from - origin, to - origin);
+        SmokeSimulation simulation = new SmokeSimulation(room, config.timeStep, config.sourceVelocity,
+                config.sourceDensity, config.diffRate, config.decayRate, config.threads);
+        simulation.setRelaxationScheme(config.relaxationScheme);
+        PressureSolver solver = PressureSolver.create(config.pressureSolver);
+        solver.setTolerance(config.tolerance);
+        solver.setMaxIterations(config.maxIterations);
+        solver.setWarmStart(config.warmStart);
+        simulation.setPressureSolver(solver);
+        if (config.temperature) {
+            simulation.enableTemperature(config.sourceTemperature, config.buoyancy, config.smokeWeight, config.coolingRate);
+        }
+        if (config.cflTarget > 0) {
+            simulation.enableAdaptiveTimeStep(config.cflTarget, config.effectiveMinTimeStep(), config.effectiveMaxTimeStep());
+        }
+        for (int[] barrier : config.barriers) {
+            int startX = Math.max(barrier[0], origin);
+            int endX = Math.min(barrier[1], end - 1);
+            if (startX <= endX) {
+                simulation.addBound(startX - origin, endX - origin, barrier[2], barrier[3], barrier[4], barrier[5]);
+            }
+        }
+        for (int[] source : config.sources) {
+            if (source[0] >= origin && source[0] < end) {
+                simulation.addSource(source[0] - origin, source[1], source[2]);
+            }
+        }
+        for (double[] wind : config.winds) {
+            int x = (int) wind[0];
+            if (x >= origin && x < end) {
+                simulation.addWind(x - origin, (int) wind[1], (int) wind[2], wind[3], wind[4], wind[5]);
+            }
+        }
+        simulation.halo = new HaloExchange(room, transport, haloWidth);
+        return simulation;
+    }
+}
@@ -0,0 +1,39 @@
+package pl.edu.agh.ssd;
+
+import java.util.Arrays;
+
+/**
+ * Pole siatki przechowujące wartości w tablicy double[]
+ */
+public final class DoubleGridField extends GridField {
+
+    /**
+     * Wartości komórek razem z warstwą duchów
+     */
+    final double[] data;
+
+    DoubleGridField(int X, int Y, int Z) {
+        super(X, Y, Z);
+        this.data = new double[length];
+    }
+
+    @Override
+    double get(int i) {
+        return data[i];
+    }
+
+    @Override
+    void set(int i, double value) {
+        data[i] = value;
+    }
+
+    @Override
+    void fill(int from, int to, double value) {
+        Arrays.fill(data, from, to, value);
+    }
+
+    @Override
+    void copyFrom(GridField other, int from, int to) {
+        System.arraycopy(((DoubleGridField) other).data, from, data, from, to - from);
+    }
+}
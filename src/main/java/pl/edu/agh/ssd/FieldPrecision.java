@@ -0,0 +1,19 @@
+package pl.edu.agh.ssd;
+
+/**
+ * Precyzja, w jakiej przechowywane są pola siatki {@link SmokeGrid}
+ */
+public enum FieldPrecision {
+
+    /**
+     * Liczby 64-bitowe - pierwotna precyzja symulacji
+     */
+    DOUBLE,
+
+    /**
+     * Liczby 32-bitowe - połowa pamięci pól, precyzja wystarczająca do wizualizacji dymu. Kernelami skalarnymi krok
+     * liczy się mniej więcej tak samo szybko jak w {@link #DOUBLE}; szybszy jest tylko z kernelami wektorowymi,
+     * w których wektor mieści dwa razy więcej komórek.
+     */
+    FLOAT
+}
@@ -0,0 +1,23 @@
+package pl.edu.agh.ssd;
+
+/**
+ * Miejsce przechowywania pól siatki {@link SmokeGrid}
+ */
+public enum FieldStorage {
+
+    /**
+     * Tablice na stercie Javy ({@link DoubleGridField}, {@link FloatGridField})
+     */
+    HEAP,
+
+    /**
+     * Pamięć poza stertą ({@code ByteBuffer.allocateDirect}), ograniczona opcją JVM {@code -XX:MaxDirectMemorySize}
+     */
+    DIRECT,
+
+    /**
+     * Tymczasowy plik odwzorowany w pamięci - system operacyjny może przenosić nieużywane strony pól na dysk,
+     * więc siatka może być większa niż pamięć RAM
+     */
+    MAPPED
+}
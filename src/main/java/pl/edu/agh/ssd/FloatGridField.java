@@ -0,0 +1,54 @@
+package pl.edu.agh.ssd;
+
+import java.util.Arrays;
+
+/**
+ * Pole siatki przechowujące wartości w tablicy float[]. Zajmuje połowę pamięci pola {@link DoubleGridField},
+ * a wartości liczone przez kernele ogólne w double są zaokrąglane do float przy zapisie. Najczęściej wykonywane
+ * kernele mają wersje liczone w float ({@link FloatKernels}).
+ */
+public final class FloatGridField extends GridField {
+
+    /**
+     * Wartości komórek razem z warstwą duchów
+     */
+    final float[] data;
+
+    FloatGridField(int X, int Y, int Z) {
+        super(X, Y, Z);
+        this.data = new float[length];
+    }
+
+    @Override
+    double get(int i) {
+        return data[i];
+    }
+
+    @Override
+    void set(int i, double value) {
+        data[i] = (float) value;
+    }
+
+    /**
+     * Zeruje wartości mniejsze od najmniejszej znormalizowanej liczby float w komórkach o indeksach [from, to).
+     * Obliczenia na liczbach subnormalnych są wielokrotnie wolniejsze, a tak małe wartości i tak nie są widoczne
+     * w symulacji. Symulacja wywołuje to raz na krok dla pól stanu, zamiast sprawdzać każdy zapis.
+     */
+    void flushSubnormals(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (Math.abs(data[i]) < Float.MIN_NORMAL) {
+                data[i] = 0;
+            }
+        }
+    }
+
+    @Override
+    void fill(int from, int to, double value) {
+        Arrays.fill(data, from, to, (float) value);
+    }
+
+    @Override
+    void copyFrom(GridField other, int from, int to) {
+        System.arraycopy(((FloatGridField) other).data, from, data, from, to - from);
+    }
+}
@@ -0,0 +1,213 @@
+package pl.edu.agh.ssd;
+
+/**
+ * Wersje kerneli {@link SmokeSimulation} i {@link RelaxationPressureSolver} dla pól {@link FloatGridField}.
+ * Ogólne kernele czytają i zapisują pola przez {@link GridField#get(int)} i {@link GridField#set(int, double)},
+ * więc przy polach float każdy odczyt i zapis to konwersja float - double, a konwersje w zależnych od siebie
+ * działaniach relaksacji są wolniejsze niż cała reszta obliczeń. Te kernele liczą bezpośrednio na tablicach float[]
+ * w arytmetyce float, a pozycje cofnięte w adwekcji - tak jak w wersji ogólnej - w double, żeby zaokrąglenia
+ * do komórek nie zależały od precyzji pól.
+ * <p>
+ * Wyniki różnią się od kerneli ogólnych w granicach zaokrągleń float. Liczby subnormalne zerowane są raz na krok
+ * ({@link FloatGridField#flushSubnormals}), a nie przy każdym zapisie.
+ */
+final class FloatKernels {
+
+    private FloatKernels() {
+    }
+
+    /**
+     * Przebieg relaksacji dyfuzji po płaszczyznach X z zakresu [fromX, toX), odpowiednik {@code SmokeSimulation.diffuseSweep}
+     */
+    static void diffuseSweep(SmokeGrid room, FloatGridField current, FloatGridField previous, float a, int color,
+                             int fromX, int toX) {
+        float[] c = current.data;
+        float[] p = previous.data;
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        int step = color == SmokeSimulation.ALL_CELLS ? 1 : 2;
+        float divisor = 1 + 6 * a;
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int firstZ = SmokeSimulation.firstZ(x + room.originX, y, color, room.runFrom(run, x, y));
+                    int lastZ = room.runTo(run, x, y);
+                    int i = room.index(x, y, firstZ);
+                    for (int z = firstZ; z < lastZ; z += step, i += step) {
+                        c[i] = (p[i] + a * (
+                                c[i + strideX] + c[i - strideX] +
+                                        c[i + strideY] + c[i - strideY] +
+                                        c[i + 1] + c[i - 1]
+                        )) / divisor;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Przebieg relaksacji równania ciśnienia po płaszczyznach X z zakresu [fromX, toX),
+     * odpowiednik {@code RelaxationPressureSolver.sweep}
+     */
+    static void pressureSweep(SmokeGrid room, FloatGridField pressure, FloatGridField divergence, int color,
+                              int fromX, int toX) {
+        float[] p = pressure.data;
+        float[] d = divergence.data;
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        int step = color == SmokeSimulation.ALL_CELLS ? 1 : 2;
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int firstZ = SmokeSimulation.firstZ(x + room.originX, y, color, room.runFrom(run, x, y));
+                    int lastZ = room.runTo(run, x, y);
+                    int i = room.index(x, y, firstZ);
+                    for (int z = firstZ; z < lastZ; z += step, i += step) {
+                        p[i] = (d[i] +
+                                p[i + strideX] + p[i - strideX] +
+                                p[i + strideY] + p[i - strideY] +
+                                p[i + 1] + p[i - 1]) / 6;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Dywergencja prędkości płaszczyzn X z zakresu [fromX, toX), odpowiednik {@code SmokeSimulation.computeDivergence}
+     */
+    static void computeDivergence(SmokeGrid room, FloatGridField velocityX, FloatGridField velocityY,
+                                  FloatGridField velocityZ, FloatGridField pressure, FloatGridField divergence,
+                                  boolean resetPressure, int fromX, int toX) {
+        float[] vx = velocityX.data;
+        float[] vy = velocityY.data;
+        float[] vz = velocityZ.data;
+        float[] p = pressure.data;
+        float[] d = divergence.data;
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        float sizeX = room.domainSize[0];
+        float sizeY = room.gridSize[1];
+        float sizeZ = room.gridSize[2];
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int fromZ = room.runFrom(run, x, y);
+                    int toZ = room.runTo(run, x, y);
+                    int i = room.index(x, y, fromZ);
+                    for (int z = fromZ; z < toZ; z++, i++) {
+                        d[i] = -0.5f * ((vx[i + strideX] - vx[i - strideX]) / sizeX
+                                + (vy[i + strideY] - vy[i - strideY]) / sizeY
+                                + (vz[i + 1] - vz[i - 1]) / sizeZ);
+                        if (resetPressure) {
+                            p[i] = 0;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Odjęcie gradientu ciśnienia od prędkości płaszczyzn X z zakresu [fromX, toX),
+     * odpowiednik {@code SmokeSimulation.subtractPressureGradient}
+     */
+    static void subtractPressureGradient(SmokeGrid room, FloatGridField velocityX, FloatGridField velocityY,
+                                         FloatGridField velocityZ, FloatGridField pressure, int fromX, int toX) {
+        float[] vx = velocityX.data;
+        float[] vy = velocityY.data;
+        float[] vz = velocityZ.data;
+        float[] p = pressure.data;
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        float scaleX = 0.5f * room.domainSize[0];
+        float scaleY = 0.5f * room.gridSize[1];
+        float scaleZ = 0.5f * room.gridSize[2];
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int fromZ = room.runFrom(run, x, y);
+                    int toZ = room.runTo(run, x, y);
+                    int i = room.index(x, y, fromZ);
+                    for (int z = fromZ; z < toZ; z++, i++) {
+                        vx[i] -= scaleX * (p[i + strideX] - p[i - strideX]);
+                        vy[i] -= scaleY * (p[i + strideY] - p[i - strideY]);
+                        vz[i] -= scaleZ * (p[i + 1] - p[i - 1]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adwekcja płaszczyzn X z zakresu [fromX, toX), odpowiednik {@code SmokeSimulation.advect} dla pól
+     * {@link FloatGridField} current[f] z previous[f]. Komórki, których punkt startowy wypada poza siatkę,
+     * nie są zmieniane - tak jak w wersji ogólnej. Pozycja w osi X liczona jest we współrzędnych całego
+     * pomieszczenia, więc podobszar daje te same wyniki co niepodzielona siatka.
+     */
+    static void advect(SmokeSimulation simulation, GridField[] current, GridField[] previous, FloatGridField velocityX,
+                       FloatGridField velocityY, FloatGridField velocityZ, int fromX, int toX) {
+        SmokeGrid room = simulation.room;
+        float[] vx = velocityX.data;
+        float[] vy = velocityY.data;
+        float[] vz = velocityZ.data;
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        int originX = room.originX;
+        int sizeX = room.domainSize[0];
+        int sizeY = room.gridSize[1];
+        int sizeZ = room.gridSize[2];
+        double timeStep = simulation.timeStep;
+        double dtx = timeStep * (sizeX - 2);
+        double dty = timeStep * (sizeY - 2);
+        double dtz = timeStep * (sizeZ - 2);
+        for (int i = fromX; i < toX; i++) {
+            for (int j = 1; j < sizeY - 1; j++) {
+                for (int run = room.firstRun(i, j); run < room.lastRun(i, j); run += 2) {
+                    int fromZ = room.runFrom(run, i, j);
+                    int toZ = room.runTo(run, i, j);
+                    int cell = room.index(i, j, fromZ);
+                    for (int k = fromZ; k < toZ; k++, cell++) {
+                        double x = i + originX - dtx * vx[cell];
+                        double y = j - dty * vy[cell];
+                        double z = k - dtz * vz[cell];
+
+                        if (x < 0.5) x = 0.5;
+                        if (x > sizeX + 0.5) x = sizeX + 0.5;
+                        if (y < 0.5) y = 0.5;
+                        if (y > sizeY + 0.5) y = sizeY + 0.5;
+                        if (z < 0.5) z = 0.5;
+                        if (z > sizeZ + 0.5) z = sizeZ + 0.5;
+                        double i0 = Math.floor(x);
+                        double j0 = Math.floor(y);
+                        double k0 = Math.floor(z);
+
+                        int i0i = (int) i0;
+                        int j0i = (int) j0;
+                        int k0i = (int) k0;
+                        if (i0i + 1 > sizeX - 1) continue;
+                        if (j0i + 1 > sizeY - 1) continue;
+                        if (k0i + 1 > sizeZ - 1) continue;
+                        simulation.checkHalo(i0i - originX);
+
+                        float s1 = (float) (x - i0);
+                        float s0 = 1 - s1;
+                        float t1 = (float) (y - j0);
+                        float t0 = 1 - t1;
+                        float u1 = (float) (z - k0);
+                        float u0 = 1 - u1;
+                        int c000 = room.index(i0i - originX, j0i, k0i);
+                        for (int field = 0; field < current.length; field++) {
+                            float[] p = ((FloatGridField) previous[field]).data;
+                            ((FloatGridField) current[field]).data[cell] =
+                                    s0 * (t0 * (u0 * p[c000] + u1 * p[c000 + 1])
+                                            + t1 * (u0 * p[c000 + strideY] + u1 * p[c000 + strideY + 1]))
+                                    + s1 * (t0 * (u0 * p[c000 + strideX] + u1 * p[c000 + strideX + 1])
+                                            + t1 * (u0 * p[c000 + strideX + strideY] + u1 * p[c000 + strideX + strideY + 1]));
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
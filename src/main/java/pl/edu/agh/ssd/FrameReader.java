@@ -0,0 +1,203 @@
+package pl.edu.agh.ssd;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Odczyt pliku klatek zapisanego przez {@link FrameRecorder}, klatka po klatce.
+ * <p>
+ * Po {@link #next()} wartości kanałów bieżącej klatki dostępne są przez {@link #density()}, {@link #velocityX()},
+ * {@link #velocityY()}, {@link #velocityZ()} i {@link #temperature()} jako tablice komórek wewnętrznych
+ * w kolejności x, y, z. Tablice są nadpisywane przez kolejne klatki.
+ */
+public class FrameReader implements AutoCloseable {
+
+    private final FileChannel file;
+
+    final int sizeX, sizeY, sizeZ, fields;
+
+    /**
+     * Wartości kanałów bieżącej klatki i ich wzorce bitowe potrzebne do odkodowania klatek delta
+     */
+    private final double[][] values;
+    private final long[][] bits;
+
+    private ByteBuffer frame = ByteBuffer.allocate(0);
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(FrameRecorder.FRAME_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+    private long step;
+
+    /**
+     * Czy odczytano już klatkę pełną - klatki delta przed nią są pomijane
+     */
+    private boolean haveKeyFrame;
+
+    public FrameReader(Path path) throws IOException {
+        this.file = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(FrameRecorder.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header);
+            if (header.getInt(0) != FrameRecorder.MAGIC) {
+                throw new IOException("Not a frame file");
+            }
+            if (header.getInt(4) != FrameRecorder.VERSION) {
+                throw new IOException("Unsupported frame file version " + header.getInt(4));
+            }
+            sizeX = header.getInt(8);
+            sizeY = header.getInt(12);
+            sizeZ = header.getInt(16);
+            fields = header.getInt(20);
+            if (sizeX < 1 || sizeY < 1 || sizeZ < 1 || (long) sizeX * sizeY * sizeZ > Integer.MAX_VALUE) {
+                throw new IOException("Invalid grid size in frame file: " + sizeX + "x" + sizeY + "x" + sizeZ);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        int channels = ((fields & FrameRecorder.DENSITY) != 0 ? 1 : 0) + ((fields & FrameRecorder.VELOCITY) != 0 ? 3 : 0)
+                + ((fields & FrameRecorder.TEMPERATURE) != 0 ? 1 : 0);
+        int cells = sizeX * sizeY * sizeZ;
+        values = new double[channels][cells];
+        bits = new long[channels][cells];
+    }
+
+    /**
+     * Odczytuje następną klatkę
+     *
+     * @return false na końcu pliku (także gdy ostatnia klatka jest niepełna)
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            frameHeader.clear();
+            if (!tryReadFully(frameHeader)) {
+                return false;
+            }
+            step = frameHeader.getLong(0);
+            boolean delta = (frameHeader.getInt(Long.BYTES) & FrameRecorder.DELTA) != 0;
+            int length = frameHeader.getInt(Long.BYTES + Integer.BYTES);
+            if (length < 0) {
+                // Klatka przerwana w trakcie zapisu kanałów - długość nie została jeszcze wpisana
+                return false;
+            }
+            if (frame.capacity() < length) {
+                frame = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            frame.clear().limit(length);
+            if (!tryReadFully(frame)) {
+                return false;
+            }
+            frame.flip();
+            if (delta && !haveKeyFrame) {
+                continue;
+            }
+            for (int channel = 0; channel < values.length; channel++) {
+                decode(frame, values[channel], bits[channel], delta);
+            }
+            haveKeyFrame = true;
+            return true;
+        }
+    }
+
+    private static void decode(ByteBuffer in, double[] values, long[] bits, boolean delta) throws IOException {
+        int i = 0;
+        while (i < values.length) {
+            int zeros = getVarint(in);
+            int literals = getVarint(in);
+            if (zeros < 0 || literals < 0 || zeros + literals > values.length - i || zeros + literals == 0) {
+                throw new IOException("Corrupted frame");
+            }
+            if (!delta) {
+                for (int end = i + zeros; i < end; i++) {
+                    bits[i] = 0;
+                    values[i] = 0;
+                }
+            } else {
+                i += zeros;
+            }
+            for (int end = i + literals; i < end; i++) {
+                bits[i] = delta ? bits[i] ^ in.getLong() : in.getLong();
+                values[i] = Double.longBitsToDouble(bits[i]);
+            }
+        }
+    }
+
+    private static int getVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        if (!tryReadFully(buffer)) {
+            throw new EOFException("Frame file is truncated");
+        }
+    }
+
+    private boolean tryReadFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Numer kroku bieżącej klatki
+     */
+    public long step() {
+        return step;
+    }
+
+    public int[] size() {
+        return new int[]{sizeX, sizeY, sizeZ};
+    }
+
+    public double[] density() {
+        return channel(FrameRecorder.DENSITY, 0);
+    }
+
+    public double[] velocityX() {
+        return channel(FrameRecorder.VELOCITY, 0);
+    }
+
+    public double[] velocityY() {
+        return channel(FrameRecorder.VELOCITY, 1);
+    }
+
+    public double[] velocityZ() {
+        return channel(FrameRecorder.VELOCITY, 2);
+    }
+
+    public double[] temperature() {
+        return channel(FrameRecorder.TEMPERATURE, 0);
+    }
+
+    /**
+     * Kanał pola o bicie field (component - składowa prędkości), null gdy pole nie jest zapisywane
+     */
+    private double[] channel(int field, int component) {
+        if ((fields & field) == 0) {
+            return null;
+        }
+        int channel = component;
+        if (field != FrameRecorder.DENSITY && (fields & FrameRecorder.DENSITY) != 0) channel++;
+        if (field == FrameRecorder.TEMPERATURE && (fields & FrameRecorder.VELOCITY) != 0) channel += 3;
+        return values[channel];
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
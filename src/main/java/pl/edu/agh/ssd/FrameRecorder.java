@@ -0,0 +1,409 @@
+package pl.edu.agh.ssd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Zapis kolejnych klatek pól siatki (gęstości dymu i opcjonalnie prędkości i temperatury) do pliku, w którym
+ * klatki są tylko dopisywane na końcu.
+ * <p>
+ * Wątek symulacji w {@link #record} jedynie kopiuje wartości komórek wewnętrznych do wolnego bufora z puli
+ * i wstawia go do kolejki. Kodowanie i zapis na dysk wykonuje osobny wątek. Gdy wszystkie bufory czekają
+ * w kolejce (dysk nie nadąża), klatka jest pomijana i liczona w {@link #getDroppedFrames()} - symulacja nigdy
+ * nie czeka na zapis.
+ * <p>
+ * Format pliku (liczby little-endian): nagłówek {@code int MAGIC ("SMKF"), int wersja, int X, int Y, int Z}
+ * (liczby komórek wewnętrznych, bez ścian) {@code , int pola} (bity {@link #DENSITY}, {@link #VELOCITY},
+ * {@link #TEMPERATURE}), a po nim klatki {@code long krok, int flagi, int długość, bajty[długość]}.
+ * Dane klatki to kolejne kanały (gęstość, prędkości X, Y, Z, temperatura - tylko zapisywane) w kolejności x, y, z
+ * jak w {@code density.raw}. Każdy kanał to 64-bitowe wzorce liczb double, w klatce z flagą {@link #DELTA}
+ * zastąpione przez XOR z wartością tej samej komórki w poprzedniej zapisanej klatce, zakodowane jako ciągi par
+ * {@code (liczba zer, liczba literałów)} w postaci varint (LEB128) z następującymi po nich literałami (8 bajtów).
+ * Komórki bez dymu i komórki, które nie zmieniły się od poprzedniej klatki, zajmują więc tylko długość odcinka.
+ * Co {@link #setKeyFrameInterval keyFrameInterval} klatek zapisywana jest klatka pełna (bez flagi {@link #DELTA}),
+ * od której można zacząć odczyt. Odczyt zapewnia {@link FrameReader}. Klatka w najgorszym przypadku (same literały)
+ * nie może przekroczyć {@link #MAX_FRAME_BYTES} - większe siatki są odrzucane przy otwieraniu pliku.
+ * <p>
+ * Kanały kodowane są i zapisywane po kolei przez jeden bufor, a długość klatki wpisywana jest do jej nagłówka
+ * po zapisaniu ostatniego kanału. Istniejący plik o tym samym nagłówku jest kontynuowany (np. po wznowieniu
+ * z {@link SimulationCheckpoint}) - niepełna klatka na końcu, pozostała po przerwaniu programu, jest obcinana.
+ */
+public class FrameRecorder implements AutoCloseable {
+
+    /**
+     * Bity zapisywanych pól
+     */
+    public static final int DENSITY = 1, VELOCITY = 2, TEMPERATURE = 4;
+
+    /**
+     * Flaga klatki zakodowanej względem poprzedniej
+     */
+    static final int DELTA = 1;
+
+    static final int MAGIC = 0x534D4B46;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 6 * Integer.BYTES;
+    static final int FRAME_HEADER_BYTES = Long.BYTES + 2 * Integer.BYTES;
+
+    /**
+     * Największa długość danych klatki - {@link FrameReader} czyta klatkę do jednej tablicy
+     */
+    static final long MAX_FRAME_BYTES = Integer.MAX_VALUE;
+
+    /**
+     * Długość w nagłówku klatki, której kanały są jeszcze zapisywane. Jako liczba bez znaku jest większa od
+     * {@link #MAX_FRAME_BYTES}, więc klatka przerwana w trakcie zapisu zawsze wygląda na niepełną.
+     */
+    private static final int LENGTH_PENDING = -1;
+
+    /**
+     * Zapas na długości odcinków w zakodowanym kanale ponad 8 bajtów na komórkę
+     */
+    private static final int CHANNEL_OVERHEAD_BYTES = 32;
+
+    /**
+     * Rozmiar siatki bez ścian i liczba komórek jednego kanału
+     */
+    private final int sizeX, sizeY, sizeZ, cells;
+
+    private final int fields;
+
+    /**
+     * Liczba kanałów klatki (prędkość to trzy kanały)
+     */
+    private final int channels;
+
+    private final FileChannel file;
+
+    /**
+     * Wolne bufory klatek i klatki czekające na zapis. Razem zawierają zawsze wszystkie bufory puli.
+     */
+    private final BlockingQueue<Frame> free, queue;
+
+    private final Thread writer;
+
+    /**
+     * Wartości poprzedniej zapisanej klatki (dla klatek delta), używane tylko przez wątek zapisu
+     */
+    private final long[][] previous;
+
+    /**
+     * Bufor zakodowanego kanału o rozmiarze najgorszego przypadku (same literały) i bufor nagłówka klatki,
+     * używane tylko przez wątek zapisu
+     */
+    private final ByteBuffer encoded;
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+    private int keyFrameInterval = 50;
+
+    /**
+     * Liczba klatek zapisanych od ostatniej klatki pełnej, -1 wymusza klatkę pełną
+     */
+    private int sinceKeyFrame = -1;
+
+    private volatile long writtenFrames, droppedFrames, writtenBytes;
+
+    /**
+     * Błąd wątku zapisu, zgłaszany przy następnym {@link #record} albo {@link #close}
+     */
+    private volatile IOException failure;
+
+    /**
+     * Znacznik końca kolejki
+     */
+    private static final Frame END = new Frame(0, 0);
+
+    /**
+     * Otwiera plik klatek i uruchamia wątek zapisu
+     *
+     * @param path          plik klatek - nowy albo kontynuowany
+     * @param room          siatka, której pola będą zapisywane
+     * @param fields        zapisywane pola, suma bitów {@link #DENSITY}, {@link #VELOCITY}, {@link #TEMPERATURE}
+     * @param queueCapacity liczba klatek, które mogą czekać na zapis
+     * @throws IOException              gdy nie da się otworzyć pliku albo istniejący plik ma inny nagłówek
+     * @throws IllegalArgumentException gdy klatka siatki może przekroczyć {@link #MAX_FRAME_BYTES}
+     */
+    public FrameRecorder(Path path, SmokeGrid room, int fields, int queueCapacity) throws IOException {
+        if ((fields & (DENSITY | VELOCITY | TEMPERATURE)) == 0 || (fields & ~(DENSITY | VELOCITY | TEMPERATURE)) != 0) {
+            throw new IllegalArgumentException("Invalid frame fields: " + fields);
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+        }
+        this.sizeX = room.gridSize[0] - 2;
+        this.sizeY = room.gridSize[1] - 2;
+        this.sizeZ = room.gridSize[2] - 2;
+        this.fields = fields;
+        this.channels = ((fields & DENSITY) != 0 ? 1 : 0) + ((fields & VELOCITY) != 0 ? 3 : 0)
+                + ((fields & TEMPERATURE) != 0 ? 1 : 0);
+        long channelBytes = (long) sizeX * sizeY * sizeZ * Long.BYTES + CHANNEL_OVERHEAD_BYTES;
+        if (channels * channelBytes > MAX_FRAME_BYTES) {
+            throw new IllegalArgumentException(String.format(Locale.ROOT,
+                    "Grid %dx%dx%d is too large to record %d frame channels: a frame may take %d bytes, at most %d are supported",
+                    sizeX, sizeY, sizeZ, channels, channels * channelBytes, MAX_FRAME_BYTES));
+        }
+        this.cells = sizeX * sizeY * sizeZ;
+        this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            openAtEnd();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        this.previous = new long[channels][cells];
+        this.encoded = ByteBuffer.allocateDirect((int) channelBytes).order(ByteOrder.LITTLE_ENDIAN);
+        this.free = new ArrayBlockingQueue<>(queueCapacity);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity + 1);
+        for (int i = 0; i < queueCapacity; i++) {
+            free.add(new Frame(channels, cells));
+        }
+        this.writer = new Thread(this::writeFrames, "frame-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Co ile klatek zapisywana jest klatka pełna (1 - wszystkie klatki pełne)
+     */
+    public void setKeyFrameInterval(int keyFrameInterval) {
+        if (keyFrameInterval < 1) {
+            throw new IllegalArgumentException("Key frame interval must be positive: " + keyFrameInterval);
+        }
+        this.keyFrameInterval = keyFrameInterval;
+    }
+
+    /**
+     * Zapisuje nagłówek nowego pliku albo sprawdza nagłówek istniejącego i ustawia pozycję za ostatnią pełną klatką
+     */
+    private void openAtEnd() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long size = file.size();
+        if (size == 0) {
+            header.putInt(MAGIC).putInt(VERSION).putInt(sizeX).putInt(sizeY).putInt(sizeZ).putInt(fields).flip();
+            while (header.hasRemaining()) {
+                file.write(header);
+            }
+            return;
+        }
+        if (size < HEADER_BYTES || file.read(header, 0) < HEADER_BYTES || header.getInt(0) != MAGIC) {
+            throw new IOException("Not a frame file");
+        }
+        if (header.getInt(4) != VERSION || header.getInt(8) != sizeX || header.getInt(12) != sizeY
+                || header.getInt(16) != sizeZ || header.getInt(20) != fields) {
+            throw new IOException("Frame file was written for a different grid or set of fields");
+        }
+        ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long end = HEADER_BYTES;
+        while (end + FRAME_HEADER_BYTES <= size) {
+            frameHeader.clear();
+            file.read(frameHeader, end);
+            long next = end + FRAME_HEADER_BYTES + Integer.toUnsignedLong(frameHeader.getInt(Long.BYTES + Integer.BYTES));
+            if (next > size) {
+                break;
+            }
+            end = next;
+        }
+        file.truncate(end);
+        file.position(end);
+    }
+
+    /**
+     * Kopiuje pola siatki do kolejki zapisu. Wywoływać pomiędzy krokami symulacji.
+     *
+     * @param step numer kroku zapisywany w klatce
+     * @return false, gdy klatka została pominięta, bo kolejka zapisu jest pełna
+     * @throws IOException gdy poprzedni zapis się nie powiódł
+     */
+    public boolean record(SmokeGrid room, long step) throws IOException {
+        checkFailure();
+        Frame frame = free.poll();
+        if (frame == null) {
+            droppedFrames++;
+            return false;
+        }
+        frame.step = step;
+        int channel = 0;
+        if ((fields & DENSITY) != 0) {
+            copy(room.density, frame.values[channel++]);
+        }
+        if ((fields & VELOCITY) != 0) {
+            copy(room.velocityX, frame.values[channel++]);
+            copy(room.velocityY, frame.values[channel++]);
+            copy(room.velocityZ, frame.values[channel++]);
+        }
+        if ((fields & TEMPERATURE) != 0) {
+            copy(room.temperature, frame.values[channel]);
+        }
+        queue.add(frame);
+        return true;
+    }
+
+    /**
+     * Kopiuje komórki wewnętrzne pola do tablicy kanału
+     */
+    private void copy(GridField field, double[] values) {
+        int offset = 0;
+        for (int x = 1; x <= sizeX; x++) {
+            for (int y = 1; y <= sizeY; y++) {
+                int i = field.index(x, y, 1);
+                for (int z = 0; z < sizeZ; z++) {
+                    values[offset++] = field.get(i + z);
+                }
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Writing frames failed", failure);
+        }
+    }
+
+    /**
+     * Pętla wątku zapisu
+     */
+    private void writeFrames() {
+        try {
+            while (true) {
+                Frame frame = queue.take();
+                if (frame == END) {
+                    return;
+                }
+                try {
+                    if (failure == null) {
+                        write(frame);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    free.add(frame);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(Frame frame) throws IOException {
+        boolean delta = sinceKeyFrame >= 0 && sinceKeyFrame + 1 < keyFrameInterval;
+        sinceKeyFrame = delta ? sinceKeyFrame + 1 : 0;
+        long start = file.position();
+        frameHeader.clear();
+        frameHeader.putLong(frame.step).putInt(delta ? DELTA : 0).putInt(LENGTH_PENDING).flip();
+        writeFully(frameHeader);
+        long length = 0;
+        for (int channel = 0; channel < channels; channel++) {
+            encoded.clear();
+            encode(frame.values[channel], previous[channel], delta, encoded);
+            encoded.flip();
+            length += encoded.remaining();
+            writeFully(encoded);
+        }
+        frameHeader.clear();
+        frameHeader.putInt((int) length).flip();
+        long lengthPosition = start + Long.BYTES + Integer.BYTES;
+        while (frameHeader.hasRemaining()) {
+            file.write(frameHeader, lengthPosition + frameHeader.position());
+        }
+        writtenBytes += FRAME_HEADER_BYTES + length;
+        writtenFrames++;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            file.write(buffer);
+        }
+    }
+
+    /**
+     * Koduje jeden kanał jako odcinki zer i literałów, zapamiętując wartości w previous
+     */
+    private static void encode(double[] values, long[] previous, boolean delta, ByteBuffer out) {
+        int cells = previous.length;
+        int i = 0;
+        while (i < cells) {
+            int zeros = 0;
+            while (i + zeros < cells && word(values, previous, delta, i + zeros) == 0) {
+                previous[i + zeros] = Double.doubleToRawLongBits(values[i + zeros]);
+                zeros++;
+            }
+            i += zeros;
+            int literals = 0;
+            while (i + literals < cells && word(values, previous, delta, i + literals) != 0) {
+                literals++;
+            }
+            putVarint(out, zeros);
+            putVarint(out, literals);
+            for (int end = i + literals; i < end; i++) {
+                out.putLong(word(values, previous, delta, i));
+                previous[i] = Double.doubleToRawLongBits(values[i]);
+            }
+        }
+    }
+
+    private static long word(double[] values, long[] previous, boolean delta, int i) {
+        long bits = Double.doubleToRawLongBits(values[i]);
+        return delta ? bits ^ previous[i] : bits;
+    }
+
+    private static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.put((byte) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    public long getWrittenFrames() {
+        return writtenFrames;
+    }
+
+    /**
+     * Liczba klatek pominiętych, bo zapis na dysk nie nadążał
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    /**
+     * Czeka na zapis klatek z kolejki i zamyka plik
+     *
+     * @throws IOException gdy któryś zapis się nie powiódł
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            queue.add(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing frames", e);
+        } finally {
+            file.close();
+        }
+        checkFailure();
+    }
+
+    /**
+     * Bufor jednej klatki - wartości komórek każdego kanału
+     */
+    private static final class Frame {
+        final double[][] values;
+        long step;
+
+        Frame(int channels, int cells) {
+            values = new double[channels][cells];
+        }
+    }
+}
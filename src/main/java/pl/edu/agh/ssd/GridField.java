@@ -0,0 +1,142 @@
+package pl.edu.agh.ssd;
+
+import java.nio.file.Path;
+
+/**
+ * Pole skalarne siatki przechowywane w jednej ciągłej tablicy.
+ * <p>
+ * Komórki ułożone są w kolejności x, y, z (oś Z jest najszybciej zmieniającym się indeksem),
+ * dzięki czemu wewnętrzne pętle solvera po osi Z czytają pamięć sekwencyjnie.
+ * Tablica jest otoczona warstwą komórek-duchów o grubości {@link #GHOST}, więc odczyty
+ * sąsiadów (i ± strideX, i ± strideY, i ± 1) z komórek brzegowych nigdy nie wychodzą poza tablicę.
+ * <p>
+ * Ogólne kernele symulacji liczą w double i korzystają tylko z {@link #get(int)} i {@link #set(int, double)},
+ * a sposób przechowywania wartości wybiera implementacja ({@link DoubleGridField}, {@link FloatGridField},
+ * {@link OffHeapGridField}). Pola {@link FloatGridField} mają własne kernele liczące w float na tablicach float[]
+ * ({@link FloatKernels}, a przy włączonych kernelach wektorowych {@link VectorKernels}): dyfuzję, adwekcję
+ * gęstości i prędkości oraz projekcję w solverze relaksacyjnym. Przez get/set w double liczone są nadal
+ * połączona adwekcja gęstości i temperatury, warunki brzegowe, odbicie od przeszkód, zanikanie dymu, solvery
+ * wielosiatkowy i gradientów sprzężonych oraz wymiana halo pomiędzy podobszarami.
+ */
+public abstract class GridField {
+
+    /**
+     * Grubość warstwy komórek-duchów wokół siatki
+     */
+    static final int GHOST = 1;
+
+    /**
+     * Rozmiar logiczny pola (bez warstwy duchów)
+     */
+    final int sizeX, sizeY, sizeZ;
+
+    /**
+     * Odległości w tablicy pomiędzy sąsiednimi komórkami w osi X i Y (w osi Z odległość wynosi 1)
+     */
+    final int strideX, strideY;
+
+    /**
+     * Liczba komórek razem z warstwą duchów
+     */
+    final int length;
+
+    /**
+     * Konstruktor pola
+     *
+     * @param X liczba komórek w osi X
+     * @param Y liczba komórek w osi Y
+     * @param Z liczba komórek w osi Z
+     */
+    GridField(int X, int Y, int Z) {
+        this.sizeX = X;
+        this.sizeY = Y;
+        this.sizeZ = Z;
+        long cells = (long) (X + 2 * GHOST) * (Y + 2 * GHOST) * (Z + 2 * GHOST);
+        if (cells > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Grid " + X + "x" + Y + "x" + Z + " is too large: "
+                    + cells + " cells with ghost layer, at most " + Integer.MAX_VALUE);
+        }
+        this.strideY = Z + 2 * GHOST;
+        this.strideX = (Y + 2 * GHOST) * strideY;
+        this.length = (int) cells;
+    }
+
+    /**
+     * Tworzy pole o podanej precyzji
+     */
+    static GridField create(FieldPrecision precision, int X, int Y, int Z) {
+        switch (precision) {
+            case FLOAT:
+                return new FloatGridField(X, Y, Z);
+            case DOUBLE:
+                return new DoubleGridField(X, Y, Z);
+            default:
+                throw new IllegalArgumentException("Unknown precision: " + precision);
+        }
+    }
+
+    /**
+     * Tworzy pole o podanej precyzji w podanym miejscu
+     *
+     * @param directory katalog na pliki pól {@link FieldStorage#MAPPED}, pomijany dla pozostałych
+     */
+    static GridField create(FieldPrecision precision, FieldStorage storage, Path directory, int X, int Y, int Z) {
+        if (storage == FieldStorage.HEAP) {
+            return create(precision, X, Y, Z);
+        }
+        if (precision != FieldPrecision.DOUBLE) {
+            throw new IllegalArgumentException("Off-heap storage supports only double precision, not " + precision);
+        }
+        switch (storage) {
+            case DIRECT:
+                return new OffHeapGridField(X, Y, Z);
+            case MAPPED:
+                return new OffHeapGridField(X, Y, Z, directory);
+            default:
+                throw new IllegalArgumentException("Unknown storage: " + storage);
+        }
+    }
+
+    /**
+     * Indeks komórki (x, y, z) w tablicy pola
+     */
+    int index(int x, int y, int z) {
+        return (x + GHOST) * strideX + (y + GHOST) * strideY + (z + GHOST);
+    }
+
+    abstract double get(int i);
+
+    abstract void set(int i, double value);
+
+    public double get(int x, int y, int z) {
+        return get(index(x, y, z));
+    }
+
+    public void set(int x, int y, int z, double value) {
+        set(index(x, y, z), value);
+    }
+
+    /**
+     * Ustawia tę samą wartość we wszystkich komórkach (łącznie z warstwą duchów)
+     */
+    void fill(double value) {
+        fill(0, length, value);
+    }
+
+    /**
+     * Ustawia tę samą wartość w komórkach o indeksach [from, to)
+     */
+    abstract void fill(int from, int to, double value);
+
+    /**
+     * Kopiuje zawartość innego pola o tym samym rozmiarze i precyzji
+     */
+    void copyFrom(GridField other) {
+        copyFrom(other, 0, length);
+    }
+
+    /**
+     * Kopiuje komórki o indeksach [from, to) z innego pola o tym samym rozmiarze i precyzji
+     */
+    abstract void copyFrom(GridField other, int from, int to);
+}
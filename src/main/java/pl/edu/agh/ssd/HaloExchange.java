@@ -0,0 +1,107 @@
+package pl.edu.agh.ssd;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Wymiana halo podobszaru siatki ({@link SmokeGrid#setSubdomain}) z sąsiednimi podobszarami przez
+ * {@link HaloTransport}.
+ * <p>
+ * Halo to width płaszczyzn X po każdej stronie liczonego zakresu [fromX, toX), które nie są ścianą pomieszczenia.
+ * Po wymianie halo zawiera kopie skrajnych liczonych płaszczyzn sąsiada, razem z ich ścianami Y i Z,
+ * więc kernele mogą czytać sąsiednie komórki tak samo jak w niepodzielonej siatce.
+ */
+class HaloExchange {
+
+    final HaloTransport transport;
+
+    /**
+     * Liczba płaszczyzn halo po każdej stronie
+     */
+    final int width;
+
+    private final SmokeGrid room;
+
+    /**
+     * Liczba komórek jednej płaszczyzny X od (x, 0, 0) do (x, Y - 1, Z - 1) w tablicach pól
+     */
+    private final int planeCells;
+
+    private final double[] send, receive;
+
+    HaloExchange(SmokeGrid room, HaloTransport transport, int width) {
+        if (width < 1 || room.toX - room.fromX < width) {
+            throw new IllegalArgumentException("Subdomain of " + (room.toX - room.fromX)
+                    + " planes cannot fill a halo of " + width + " planes");
+        }
+        this.room = room;
+        this.transport = transport;
+        this.width = width;
+        this.planeCells = room.index(0, room.gridSize[1] - 1, room.gridSize[2] - 1) - room.index(0, 0, 0) + 1;
+        this.send = new double[width * planeCells];
+        this.receive = new double[width * planeCells];
+    }
+
+    /**
+     * Wymienia halo pola z obydwoma sąsiadami - najpierw z niższą rangą, potem z wyższą
+     */
+    void exchange(GridField field) {
+        int rank = transport.rank();
+        try {
+            if (rank > 0) {
+                pack(field, room.fromX);
+                transport.exchange(rank - 1, send, receive);
+                unpack(field, room.fromX - width);
+            }
+            if (rank < transport.ranks() - 1) {
+                pack(field, room.toX - width);
+                transport.exchange(rank + 1, send, receive);
+                unpack(field, room.toX);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Suma wartości wszystkich podobszarów
+     */
+    double sum(double value) {
+        try {
+            return transport.sum(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Największa z wartości wszystkich podobszarów
+     */
+    double max(double value) {
+        try {
+            return transport.max(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void pack(GridField field, int firstX) {
+        for (int plane = 0; plane < width; plane++) {
+            int from = room.index(firstX + plane, 0, 0);
+            int offset = plane * planeCells;
+            for (int i = 0; i < planeCells; i++) {
+                send[offset + i] = field.get(from + i);
+            }
+        }
+    }
+
+    private void unpack(GridField field, int firstX) {
+        for (int plane = 0; plane < width; plane++) {
+            int from = room.index(firstX + plane, 0, 0);
+            int offset = plane * planeCells;
+            for (int i = 0; i < planeCells; i++) {
+                field.set(from + i, receive[offset + i]);
+            }
+        }
+    }
+}
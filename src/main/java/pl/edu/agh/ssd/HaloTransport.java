@@ -0,0 +1,44 @@
+package pl.edu.agh.ssd;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Transport danych pomiędzy podobszarami pomieszczenia podzielonego przez {@link DomainDecomposition}.
+ * <p>
+ * Każdy podobszar ma swoją rangę 0..ranks-1 w kolejności osi X i wymienia dane tylko z sąsiadami (rank - 1
+ * i rank + 1) oraz bierze udział w redukcjach całego pomieszczenia. Wszystkie podobszary muszą wywoływać
+ * metody transportu w tej samej kolejności - każda z nich czeka na odpowiednie wywołanie u sąsiadów.
+ * Implementacje: {@link InProcessHaloTransport} (podobszary w wątkach jednej maszyny wirtualnej)
+ * i {@link SocketHaloTransport} (podobszary w osobnych procesach, połączone przez TCP).
+ */
+public interface HaloTransport extends Closeable {
+
+    /**
+     * Numer tego podobszaru
+     */
+    int rank();
+
+    /**
+     * Liczba podobszarów
+     */
+    int ranks();
+
+    /**
+     * Wysyła data do sąsiada i odbiera od niego tyle samo liczb do received. Sąsiad musi w tym samym czasie
+     * wywołać exchange z tą rangą i tablicami tej samej długości.
+     *
+     * @param neighbour ranga sąsiada, rank() - 1 albo rank() + 1
+     */
+    void exchange(int neighbour, double[] data, double[] received) throws IOException;
+
+    /**
+     * Suma wartości wszystkich podobszarów, dodawanych w kolejności rang - wynik jest taki sam we wszystkich
+     */
+    double sum(double value) throws IOException;
+
+    /**
+     * Największa z wartości wszystkich podobszarów (NaN, jeśli którakolwiek jest NaN)
+     */
+    double max(double value) throws IOException;
+}
@@ -0,0 +1,231 @@
+package pl.edu.agh.ssd;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Uruchamia symulację bez interfejsu graficznego (bez JavaFX) i zapisuje wyniki na dysk.
+ * <p>
+ * Kroki wykonywane są jeden po drugim, bez czekania na klatki animacji, a mierzony jest wyłącznie czas
+ * {@link SmokeSimulation#update()}. W katalogu wyjściowym powstają pliki:
+ * <ul>
+ *     <li>{@code steps.csv} - czas każdego kroku, całkowita ilość dymu, iteracje i residuum solvera ciśnienia
+ *     (NaN, gdy tolerancja jest zerowa, a nie podano {@code --report-residual}),
+ *     krok czasowy i czas symulacji po kroku,</li>
+ *     <li>{@code density.raw} - końcowa gęstość dymu jako liczby double (little-endian) w kolejności x, y, z
+ *     (z zmienia się najszybciej), bez ścian pomieszczenia,</li>
+ *     <li>{@code summary.txt} - parametry przebiegu i przepustowość w krokach i komórkach na sekundę,</li>
+ *     <li>{@code metrics.csv} - skumulowane pomiary faz kroku ({@link SimulationMetrics}) co
+ *     {@code --metrics-interval} kroków, tylko gdy ta opcja jest podana,</li>
+ *     <li>{@code checkpoint.bin} - punkt kontrolny ({@link SimulationCheckpoint}) co {@code --checkpoint-interval}
+ *     kroków, tylko gdy ta opcja jest podana. Stan kopiowany jest do pamięci pomiędzy krokami, a zapisywany na dysk
+ *     w osobnym wątku, równolegle z kolejnymi krokami,</li>
+ *     <li>{@code frames.bin} - klatki gęstości (i opcjonalnie prędkości i temperatury) co {@code --frames-interval}
+ *     kroków w formacie {@link FrameRecorder}, tylko gdy ta opcja jest podana. Przy wznowieniu z punktu kontrolnego
+ *     klatki dopisywane są do istniejącego pliku.</li>
+ * </ul>
+ * Z opcją {@code --duration} symulacja liczona jest do podanego czasu symulacji ({@link SmokeSimulation#stepTowards})
+ * zamiast przez {@code --steps} kroków - z adaptacyjnym krokiem ({@code --cfl}) liczba kroków zależy od przepływu.
+ * Z opcją {@code --restore} symulacja wznawiana jest od punktu kontrolnego i liczona do kroku {@code --steps}
+ * albo do czasu {@code --duration}.
+ * Parametry scenariusza opisuje {@link ScenarioConfig}.
+ */
+public class HeadlessRunner {
+
+    public static void main(String[] args) throws IOException {
+        ScenarioConfig config;
+        try {
+            config = ScenarioConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java -cp <classes> pl.edu.agh.ssd.HeadlessRunner [options]");
+            System.err.println(ScenarioConfig.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        Files.createDirectories(config.output);
+        SmokeSimulation simulation;
+        try {
+            simulation = config.restore != null ? config.restoreSimulation() : config.createSimulation();
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        PressureSolver solver = simulation.getPressureSolver();
+        solver.setResidualReporting(config.reportResidual);
+        PrintWriter metricsCsv = null;
+        if (config.metricsInterval > 0) {
+            metricsCsv = new PrintWriter(Files.newBufferedWriter(config.output.resolve("metrics.csv"), StandardCharsets.UTF_8));
+            SimulationMetrics metrics = new SimulationMetrics();
+            metrics.setCsvOutput(metricsCsv, config.metricsInterval);
+            simulation.setMetrics(metrics);
+        }
+        ExecutorService checkpointWriter = config.checkpointInterval > 0 ? Executors.newSingleThreadExecutor() : null;
+        Future<?> pendingCheckpoint = null;
+        FrameRecorder frames = null;
+        if (config.framesInterval > 0) {
+            try {
+                frames = new FrameRecorder(config.output.resolve("frames.bin"), simulation.room, config.framesFields,
+                        config.framesQueue);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(2);
+                return;
+            }
+        }
+        long firstStep = simulation.getStepCount() + 1;
+        long totalNanos = 0;
+        try (PrintWriter steps = new PrintWriter(Files.newBufferedWriter(config.output.resolve("steps.csv"),
+                StandardCharsets.UTF_8))) {
+            steps.println("step,nanos,total_density,pressure_iterations,pressure_residual,time_step,simulation_time");
+            for (long step = firstStep; config.duration > 0 || step <= config.steps; step++) {
+                long start = System.nanoTime();
+                if (config.duration > 0) {
+                    if (!simulation.stepTowards(config.duration)) {
+                        break;
+                    }
+                } else {
+                    simulation.update();
+                }
+                long nanos = System.nanoTime() - start;
+                totalNanos += nanos;
+                steps.printf(Locale.ROOT, "%d,%d,%.17g,%d,%.6e,%.6e,%.17g%n", step, nanos, totalDensity(simulation.room),
+                        solver.getLastIterations(), solver.getLastResidual(), simulation.getTimeStep(),
+                        simulation.getSimulationTime());
+                if (frames != null && step % config.framesInterval == 0) {
+                    frames.record(simulation.room, step);
+                }
+                if (checkpointWriter != null && step % config.checkpointInterval == 0) {
+                    // Najwyżej jeden zapis w toku - kopia w pamięci nie może rosnąć szybciej niż dysk nadąża
+                    awaitCheckpoint(pendingCheckpoint);
+                    SimulationCheckpoint checkpoint = SimulationCheckpoint.capture(simulation);
+                    pendingCheckpoint = checkpointWriter.submit(() -> {
+                        checkpoint.write(config.output.resolve("checkpoint.bin"), config.checkpointCompress);
+                        return null;
+                    });
+                }
+            }
+            awaitCheckpoint(pendingCheckpoint);
+        } finally {
+            simulation.shutdown();
+            if (checkpointWriter != null) {
+                checkpointWriter.shutdownNow();
+            }
+            if (frames != null) {
+                frames.close();
+            }
+            if (metricsCsv != null) {
+                metricsCsv.close();
+            }
+        }
+
+        writeDensity(simulation.room, config.output.resolve("density.raw"));
+
+        long executedSteps = simulation.getStepCount() - firstStep + 1;
+        double seconds = totalNanos / 1e9;
+        double cells = (double) config.width * config.height * config.depth;
+        String summary = String.format(Locale.ROOT, String.join(System.lineSeparator(),
+                        "grid %dx%dx%d %s %s, %d steps, %d threads, %s pressure solver, %s relaxation, %s kernels",
+                        "time %.3f s, %.2f steps/s, %.3e cells/s",
+                        "simulated time %.6g, %s time step%s",
+                        "pressure iterations %d", ""),
+                config.width, config.height, config.depth, config.precision, config.storage, simulation.getStepCount(), config.threads, config.pressureSolver,
+                config.relaxationScheme, kernelsName(simulation), seconds, executedSteps / seconds, executedSteps * cells / seconds,
+                simulation.getSimulationTime(), simulation.isAdaptiveTimeStep() ? "adaptive" : "fixed",
+                simulation.isAdaptiveTimeStep() ? String.format(Locale.ROOT, " (CFL %.3g)", config.cflTarget) : "",
+                solver.getTotalIterations());
+        if (frames != null) {
+            summary += String.format(Locale.ROOT, "frames %d written, %d dropped, %.1f MB%n", frames.getWrittenFrames(),
+                    frames.getDroppedFrames(), frames.getWrittenBytes() / 1e6);
+        }
+        if (simulation.getMetrics() != null) {
+            summary += simulation.getMetrics().snapshot() + System.lineSeparator();
+        }
+        Files.write(config.output.resolve("summary.txt"), summary.getBytes(StandardCharsets.UTF_8));
+        System.out.print(summary);
+    }
+
+    /**
+     * Czeka na zakończenie zapisu punktu kontrolnego i przekazuje jego błąd
+     */
+    private static void awaitCheckpoint(Future<?> checkpoint) throws IOException {
+        if (checkpoint == null) {
+            return;
+        }
+        try {
+            checkpoint.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing a checkpoint", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("Checkpoint write failed", e.getCause());
+        }
+    }
+
+    /**
+     * Nazwa kerneli do podsumowania - także gdy włączone kernele wektorowe nie mogą liczyć pól tej siatki
+     */
+    static String kernelsName(SmokeSimulation simulation) {
+        if (!simulation.isVectorKernels()) {
+            return "scalar";
+        }
+        return simulation.isVectorKernelsEffective() ? "vector" : "scalar (vector kernels need heap storage)";
+    }
+
+    /**
+     * Suma gęstości dymu we wszystkich komórkach wewnętrznych
+     */
+    static double totalDensity(SmokeGrid room) {
+        double sum = 0;
+        for (int x = 1; x < room.gridSize[0] - 1; x++) {
+            for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                int i = room.index(x, y, 1);
+                for (int z = 1; z < room.gridSize[2] - 1; z++, i++) {
+                    sum += room.density.get(i);
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Zapisuje gęstość komórek wewnętrznych jako surowe liczby double, po jednym wierszu z na raz
+     */
+    static void writeDensity(SmokeGrid room, Path file) throws IOException {
+        int depth = room.gridSize[2] - 2;
+        ByteBuffer row = ByteBuffer.allocate(depth * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int x = 1; x < room.gridSize[0] - 1; x++) {
+                for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                    row.clear();
+                    int i = room.index(x, y, 1);
+                    for (int z = 0; z < depth; z++, i++) {
+                        row.putDouble(room.density.get(i));
+                    }
+                    row.flip();
+                    while (row.hasRemaining()) {
+                        channel.write(row);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package pl.edu.agh.ssd;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Exchanger;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link HaloTransport} dla podobszarów liczonych w wątkach jednej maszyny wirtualnej - dane kopiowane są
+ * bezpośrednio pomiędzy tablicami sąsiadów. Transporty wszystkich rang tworzy {@link #connect(int)},
+ * a każdy z nich używany jest przez jeden wątek.
+ */
+public class InProcessHaloTransport implements HaloTransport {
+
+    /**
+     * Czas, po którym oczekiwanie na sąsiada kończy się błędem - np. gdy wątek innego podobszaru zakończył się wyjątkiem
+     */
+    private static final long TIMEOUT_SECONDS = 600;
+
+    /**
+     * Co ile oczekujący na sąsiada wątek sprawdza, czy transport nie został zamknięty przez inną rangę
+     */
+    private static final long POLL_MILLIS = 100;
+
+    private final int rank;
+
+    /**
+     * Wspólny stan wszystkich rang jednego podziału
+     */
+    private final Group group;
+
+    private InProcessHaloTransport(int rank, Group group) {
+        this.rank = rank;
+        this.group = group;
+    }
+
+    /**
+     * Tworzy połączone transporty wszystkich rang
+     *
+     * @return transport rangi r na pozycji r
+     */
+    public static InProcessHaloTransport[] connect(int ranks) {
+        if (ranks < 1) {
+            throw new IllegalArgumentException("Rank count must be positive: " + ranks);
+        }
+        Group group = new Group(ranks);
+        InProcessHaloTransport[] transports = new InProcessHaloTransport[ranks];
+        for (int rank = 0; rank < ranks; rank++) {
+            transports[rank] = new InProcessHaloTransport(rank, group);
+        }
+        return transports;
+    }
+
+    @Override
+    public int rank() {
+        return rank;
+    }
+
+    @Override
+    public int ranks() {
+        return group.values.length;
+    }
+
+    @Override
+    public void exchange(int neighbour, double[] data, double[] received) throws IOException {
+        if (Math.abs(neighbour - rank) != 1 || neighbour < 0 || neighbour >= ranks()) {
+            throw new IllegalArgumentException("Rank " + neighbour + " is not a neighbour of rank " + rank);
+        }
+        Exchanger<double[]> exchanger = group.exchangers.get(Math.min(rank, neighbour));
+        double[] other = exchange(exchanger, data, neighbour);
+        if (other.length != received.length) {
+            throw new IllegalStateException("Halo sizes of ranks " + rank + " and " + neighbour + " differ");
+        }
+        System.arraycopy(other, 0, received, 0, received.length);
+        // Druga wymiana czeka, aż sąsiad skopiuje dane - dopiero potem każda strona może nadpisać swoją tablicę
+        exchange(exchanger, null, neighbour);
+    }
+
+    /**
+     * Wymiana z sąsiadem w krótkich odcinkach czasu - pomiędzy nimi sprawdzane jest, czy inna ranga nie zamknęła
+     * transportu po błędzie. Przerwane oczekiwanie wycofuje dane, więc następna próba paruje się z sąsiadem normalnie.
+     */
+    private double[] exchange(Exchanger<double[]> exchanger, double[] data, int neighbour) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (true) {
+            if (group.closed) {
+                throw new IOException("Halo transport was closed by another rank");
+            }
+            try {
+                return exchanger.exchange(data, POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted during halo exchange", e);
+            } catch (TimeoutException e) {
+                if (System.nanoTime() - deadline > 0) {
+                    throw new IOException("Rank " + neighbour + " did not take part in the halo exchange", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public double sum(double value) throws IOException {
+        double[] values = gather(value);
+        double sum = values[0];
+        for (int r = 1; r < values.length; r++) {
+            sum += values[r];
+        }
+        release();
+        return sum;
+    }
+
+    @Override
+    public double max(double value) throws IOException {
+        double[] values = gather(value);
+        double max = values[0];
+        for (int r = 1; r < values.length; r++) {
+            max = Math.max(max, values[r]);
+        }
+        release();
+        return max;
+    }
+
+    /**
+     * Zapisuje wartość tej rangi i czeka na wartości pozostałych
+     */
+    private double[] gather(double value) throws IOException {
+        group.values[rank] = value;
+        await();
+        return group.values;
+    }
+
+    /**
+     * Czeka, aż wszystkie rangi odczytają wartości - dopiero potem można zapisać wartości następnej redukcji
+     */
+    private void release() throws IOException {
+        await();
+    }
+
+    private void await() throws IOException {
+        try {
+            int phase = group.phaser.arrive();
+            if (phase < 0 || group.phaser.awaitAdvanceInterruptibly(phase, TIMEOUT_SECONDS, TimeUnit.SECONDS) < 0) {
+                throw new IOException("Halo transport was closed by another rank");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during a reduction", e);
+        } catch (TimeoutException e) {
+            throw new IOException("Not all ranks took part in a reduction", e);
+        }
+    }
+
+    /**
+     * Zamyka transport wszystkich rang - pozostałe rangi nie czekają wtedy na tę, która skończyła pracę,
+     * tylko dostają błąd przy najbliższej wymianie lub redukcji
+     */
+    @Override
+    public void close() {
+        group.closed = true;
+        group.phaser.forceTermination();
+    }
+
+    private static final class Group {
+        /**
+         * Wymiana z sąsiadem: exchangers.get(r) łączy rangi r i r + 1
+         */
+        final List<Exchanger<double[]>> exchangers;
+        final double[] values;
+        final Phaser phaser;
+        volatile boolean closed;
+
+        Group(int ranks) {
+            exchangers = new ArrayList<>();
+            for (int r = 0; r < ranks - 1; r++) {
+                exchangers.add(new Exchanger<>());
+            }
+            values = new double[ranks];
+            phaser = new Phaser(ranks);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package pl.edu.agh.ssd;
 
 import javafx.animation.*;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.scene.Group;
 import javafx.scene.PerspectiveCamera;
 import javafx.scene.PointLight;
@@ -15,13 +16,26 @@ import javafx.scene.transform.Rotate;
 import javafx.stage.Stage;
 import javafx.util.Duration;
 
+import java.util.Arrays;
+
 public class Main extends Application {
     private static final int WINDOW_SIZE = 800;
     private PhongMaterial[] materials;
+    private final PhongMaterial sourceMaterial = new PhongMaterial(Color.BLUE);
+    private final PhongMaterial barrierMaterial = new PhongMaterial(Color.RED);
+    private final PhongMaterial windMaterial = new PhongMaterial(Color.LIMEGREEN);
 
     private double mouseOldX;
     private double objectAngleY = 0;  // Kąt obrotu wokół osi Y dla obiektów
     private Box[][][] boxGrid;
+    private VolumeMeshRenderer meshRenderer;
+
+    /**
+     * Stan każdego pudełka ustawiony w poprzedniej klatce ({@link #boxState(byte, double)}), w kolejności
+     * {@link DensitySnapshot#index}
+     */
+    private byte[] boxState;
+    private static final byte BOX_SOURCE = 10, BOX_BARRIER = 11, BOX_WIND = 12, BOX_HIDDEN = -1, BOX_UNKNOWN = -2;
 
     @Override
     public void start(Stage stage) {
@@ -50,13 +64,33 @@ public class Main extends Application {
         TextField diffRateField = new TextField("0.00001");  // Domyślny współczynnik dyfuzji
         Label decayRateLabel = new Label("Decay Rate:");
         TextField decayRateField = new TextField("0.02");  // Domyślny współczynnik zaniku
+        Label threadsLabel = new Label("Solver Threads:");
+        TextField threadsField = new TextField(String.valueOf(Runtime.getRuntime().availableProcessors()));  // Domyślnie wszystkie rdzenie
+        Label relaxationLabel = new Label("Relaxation Scheme:");
+        ComboBox<RelaxationScheme> relaxationBox = new ComboBox<>();
+        relaxationBox.getItems().addAll(RelaxationScheme.values());
+        relaxationBox.setValue(RelaxationScheme.GAUSS_SEIDEL);
+        Label pressureSolverLabel = new Label("Pressure Solver:");
+        ComboBox<String> pressureSolverBox = new ComboBox<>();
+        pressureSolverBox.getItems().addAll(PressureSolver.NAMES);
+        pressureSolverBox.setValue(PressureSolver.NAMES[0]);
+
+        Label rendererLabel = new Label("Renderer:");
+        ComboBox<String> rendererBox = new ComboBox<>();
+        rendererBox.getItems().addAll("mesh", "boxes");
+        rendererBox.setValue("mesh");  // Jedna siatka trójkątów zamiast pudełka na komórkę - także dla dużych siatek
+
+        CheckBox temperatureBox = new CheckBox("Temperature and Buoyancy");  // Gorący dym unosi się siłą wyporu
+        CheckBox adaptiveStepBox = new CheckBox("Adaptive Time Step (CFL)");  // Krok czasowy dobierany do prędkości przepływu
 
         Button startButton = new Button("Start Simulation");
 
         VBox inputLayout = new VBox(10);
         inputLayout.getChildren().addAll(widthLabel, widthField, heightLabel, heightField, depthLabel, depthField,
                 timeStepLabel, timeStepField, velocityLabel, velocityField, densityLabel, densityField,
-                diffRateLabel, diffRateField, decayRateLabel, decayRateField, startButton);
+                diffRateLabel, diffRateField, decayRateLabel, decayRateField, threadsLabel, threadsField,
+                relaxationLabel, relaxationBox, pressureSolverLabel, pressureSolverBox, rendererLabel, rendererBox,
+                temperatureBox, adaptiveStepBox, startButton);
         inputLayout.setStyle("-fx-padding: 20; -fx-alignment: center;");
 
         // Scena formularza
@@ -76,14 +110,17 @@ public class Main extends Application {
                 double density = Double.parseDouble(densityField.getText());
                 double diffRate = Double.parseDouble(diffRateField.getText());
                 double decayRate = Double.parseDouble(decayRateField.getText());
+                int threads = Integer.parseInt(threadsField.getText());
 
-                if (width <= 0 || height <= 0 || depth <= 0 || timeStep <= 0 || velocity <= 0 || density < 0) {
+                if (width <= 0 || height <= 0 || depth <= 0 || timeStep <= 0 || velocity <= 0 || density < 0 || threads <= 0) {
                     showError("Invalid input values. Please check your parameters.");
                     return;
                 }
 
                 // Uruchamiamy symulację z wprowadzonymi parametrami
-                startSimulation(stage, width, height, depth, timeStep, velocity, density, diffRate, decayRate);
+                startSimulation(stage, width, height, depth, timeStep, velocity, density, diffRate, decayRate, threads,
+                        relaxationBox.getValue(), PressureSolver.create(pressureSolverBox.getValue()),
+                        rendererBox.getValue().equals("mesh"), temperatureBox.isSelected(), adaptiveStepBox.isSelected());
             } catch (NumberFormatException ex) {
                 showError("Please enter valid numbers.");
             }
@@ -99,20 +136,26 @@ public class Main extends Application {
     }
 
     private void startSimulation(Stage stage, int width, int height, int depth, double timeStep, double velocity,
-                                 double density, double diffRate, double decayRate) {
-        // Tworzymy przestrzeń dla boxów
-        boxGrid = new Box[width][height][depth];
+                                 double density, double diffRate, double decayRate, int threads,
+                                 RelaxationScheme relaxationScheme, PressureSolver pressureSolver, boolean mesh,
+                                 boolean temperature, boolean adaptiveTimeStep) {
         Group group = new Group();
-
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                for (int k = 0; k < depth; k++) {
-                    Box cube = new Box(5, 5, 5);
-                    cube.setTranslateX((int)(i - width / 2) * 5);
-                    cube.setTranslateY((int)(j - height / 2) * 5);
-                    cube.setTranslateZ((int)(k - depth / 2) * 5);
-                    boxGrid[i][j][k] = cube;
-                    group.getChildren().add(cube);
+        if (mesh) {
+            meshRenderer = new VolumeMeshRenderer(width, height, depth, 5);
+            group.getChildren().add(meshRenderer.getView());
+        } else {
+            // Tworzymy przestrzeń dla boxów
+            boxGrid = new Box[width][height][depth];
+            for (int i = 0; i < width; i++) {
+                for (int j = 0; j < height; j++) {
+                    for (int k = 0; k < depth; k++) {
+                        Box cube = new Box(5, 5, 5);
+                        cube.setTranslateX((int)(i - width / 2) * 5);
+                        cube.setTranslateY((int)(j - height / 2) * 5);
+                        cube.setTranslateZ((int)(k - depth / 2) * 5);
+                        boxGrid[i][j][k] = cube;
+                        group.getChildren().add(cube);
+                    }
                 }
             }
         }
@@ -158,7 +201,16 @@ public class Main extends Application {
 
         // Inicjalizujemy symulację
         SmokeSimulation smokeSimulation = new SmokeSimulation(width, height, depth, timeStep, velocity, density,
-                diffRate, decayRate);
+                diffRate, decayRate, threads);
+        smokeSimulation.setRelaxationScheme(relaxationScheme);
+        smokeSimulation.setPressureSolver(pressureSolver);
+        if (temperature) {
+            smokeSimulation.enableTemperature(SmokeSimulation.DEFAULT_SOURCE_TEMPERATURE, SmokeSimulation.DEFAULT_BUOYANCY,
+                    SmokeSimulation.DEFAULT_SMOKE_WEIGHT, SmokeSimulation.DEFAULT_COOLING_RATE);
+        }
+        if (adaptiveTimeStep) {
+            smokeSimulation.enableAdaptiveTimeStep(SmokeSimulation.DEFAULT_CFL_TARGET);
+        }
 
         // Przykładowa logika: dodajemy źródła, wiatr, bariery
         smokeSimulation.addSource(15, 48, 15);
@@ -166,72 +218,125 @@ public class Main extends Application {
         smokeSimulation.addBound(15, 31, 24, 24, 0, 31);
         smokeSimulation.addBound(40, 46, 10, 10, 0, 49);
 
-        Timeline editSourcesTimeLine =  new Timeline(new KeyFrame(Duration.seconds(3), event -> {
-            smokeSimulation.removeSource(15, 48, 15); // Usuwamy źródło dymu
-            smokeSimulation.addSource(48, 48, 1);
-        }));
+        // Kroki liczone są w osobnym wątku, a wątek JavaFX rysuje tylko najnowszą gotową kopię gęstości
+        SimulationThread simulationThread = new SimulationThread(smokeSimulation);
+        stage.setOnHidden(event -> simulationThread.shutdown());
+
+        Timeline editSourcesTimeLine =  new Timeline(new KeyFrame(Duration.seconds(3), event -> simulationThread.execute(simulation -> {
+            simulation.removeSource(15, 48, 15); // Usuwamy źródło dymu
+            simulation.addSource(48, 48, 1);
+        })));
 
         editSourcesTimeLine.setCycleCount(1);
         editSourcesTimeLine.play();
 
-        // Timeline symulacji
-        Timeline timeline = getTimeline(smokeSimulation);
-        timeline.play();
+        // Rysowanie w każdej klatce animacji, niezależnie od tempa symulacji
+        getRenderTimer(stage, simulationThread).start();
     }
 
-    private Timeline getTimeline(SmokeSimulation smokeSimulation) {
-        Timeline timeline = new Timeline(new KeyFrame(Duration.seconds(0.1), event -> {
-            smokeSimulation.update();
-            for (int i = 0; i < smokeSimulation.room.gridSize[0]; i++) {
-                for (int j = 0; j < smokeSimulation.room.gridSize[1]; j++) {
-                    for (int k = 0; k < smokeSimulation.room.gridSize[2]; k++) {
-                        double density = smokeSimulation.room.density[i][j][k];
-                        if (smokeSimulation.room.isSource[i][j][k]) {
-                            boxGrid[i][j][k].setMaterial(new PhongMaterial(Color.BLUE));
-                            boxGrid[i][j][k].setVisible(true);
-                        } else if (smokeSimulation.room.isBarrier[i][j][k]) {
-                            boxGrid[i][j][k].setMaterial(new PhongMaterial(Color.RED));
-                            boxGrid[i][j][k].setVisible(true);
-                        } else if (smokeSimulation.room.isWindSource[i][j][k]) {
-                            boxGrid[i][j][k].setMaterial(new PhongMaterial(Color.LIMEGREEN));
-                            boxGrid[i][j][k].setVisible(true);
-                        } else if (density > 0.3) {
-                            boxGrid[i][j][k].setMaterial(getMaterial(density));
-                            boxGrid[i][j][k].setVisible(true);
-                        } else {
-                            boxGrid[i][j][k].setVisible(false);
+    private AnimationTimer getRenderTimer(Stage stage, SimulationThread simulationThread) {
+        return new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                if (simulationThread.getFailure() != null) {
+                    stop();
+                    // Okna dialogowego nie można pokazać w trakcie obsługi klatki animacji
+                    Platform.runLater(() -> showError("Simulation failed: " + simulationThread.getFailure()));
+                    return;
+                }
+                DensitySnapshot snapshot = simulationThread.takeSnapshot();
+                if (snapshot == null) {
+                    return;
+                }
+                if (meshRenderer != null) {
+                    meshRenderer.update(snapshot);
+                } else {
+                    updateBoxes(snapshot);
+                }
+                stage.setTitle("Smoke simulation - step " + snapshot.getStep());
+            }
+        };
+    }
+
+    /**
+     * Ustawia materiał i widoczność tylko tych pudełek, których stan zmienił się od poprzedniej klatki.
+     * Komórki źródeł, wiatru i przeszkód dostają swój materiał raz, a komórki dymu - gdy zmieni się przedział gęstości.
+     */
+    private void updateBoxes(DensitySnapshot snapshot) {
+        if (boxState == null) {
+            boxState = new byte[snapshot.density.length];
+            Arrays.fill(boxState, BOX_UNKNOWN);
+        }
+        for (int i = 0; i < snapshot.sizeX; i++) {
+            for (int j = 0; j < snapshot.sizeY; j++) {
+                for (int k = 0; k < snapshot.sizeZ; k++) {
+                    int cell = snapshot.index(i, j, k);
+                    byte state = boxState(snapshot.cellType[cell], snapshot.density[cell]);
+                    if (state == boxState[cell]) {
+                        continue;
+                    }
+                    Box box = boxGrid[i][j][k];
+                    if (state == BOX_HIDDEN) {
+                        box.setVisible(false);
+                    } else {
+                        box.setMaterial(boxMaterial(state));
+                        // Pudełko ukryte w poprzedniej klatce (albo jeszcze nieustawione) trzeba pokazać
+                        if (boxState[cell] == BOX_HIDDEN || boxState[cell] == BOX_UNKNOWN) {
+                            box.setVisible(true);
                         }
                     }
+                    boxState[cell] = state;
                 }
             }
-        }));
-        timeline.setCycleCount(Animation.INDEFINITE);
-        return timeline;
+        }
+    }
+
+    /**
+     * Stan pudełka: numer materiału dymu (0-9), {@link #BOX_SOURCE}, {@link #BOX_BARRIER}, {@link #BOX_WIND}
+     * albo {@link #BOX_HIDDEN}
+     */
+    private static byte boxState(byte type, double density) {
+        if (type == SmokeGrid.SOURCE) {
+            return BOX_SOURCE;
+        } else if (type == SmokeGrid.BARRIER) {
+            return BOX_BARRIER;
+        } else if (type == SmokeGrid.WIND_SOURCE) {
+            return BOX_WIND;
+        } else if (density > 0.3) {
+            return (byte) densityBucket(density);
+        }
+        return BOX_HIDDEN;
     }
 
-    private PhongMaterial getMaterial(double density) {
+    private PhongMaterial boxMaterial(byte state) {
+        switch (state) {
+            case BOX_SOURCE:
+                return sourceMaterial;
+            case BOX_BARRIER:
+                return barrierMaterial;
+            case BOX_WIND:
+                return windMaterial;
+            default:
+                return materials[state];
+        }
+    }
+
+    /**
+     * Numer materiału z {@link #materials} dla gęstości: przedziały [0, 0.1), [0.1, 0.2), ..., [0.9, 1]
+     * po obcięciu gęstości do [0, 1]
+     */
+    private static int densityBucket(double density) {
         double normDensity = Math.max(0.0, Math.min(1.0, density));
-        if (normDensity >= 0 && normDensity < 0.1) {
-            return materials[0];
-        } else if (normDensity >= 0.1 && normDensity < 0.2) {
-            return materials[1];
-        } else if (normDensity >= 0.2 && normDensity < 0.3) {
-            return materials[2];
-        } else if (normDensity >= 0.3 && normDensity < 0.4) {
-            return materials[3];
-        } else if (normDensity >= 0.4 && normDensity < 0.5) {
-            return materials[4];
-        } else if (normDensity >= 0.5 && normDensity < 0.6) {
-            return materials[5];
-        } else if (normDensity >= 0.6 && normDensity < 0.7) {
-            return materials[6];
-        } else if (normDensity >= 0.7 && normDensity < 0.8) {
-            return materials[7];
-        } else if (normDensity >= 0.8 && normDensity < 0.9) {
-            return materials[8];
-        } else {
-            return materials[9];
+        for (int bucket = 1; bucket < 10; bucket++) {
+            if (normDensity < bucket / 10.0) {
+                return bucket - 1;
+            }
         }
+        return 9;
+    }
+
+    public static Color densityToColor(double density) {
+        return new Color(0, 0, 0, density);
     }
 
     public static void main(String[] args) {
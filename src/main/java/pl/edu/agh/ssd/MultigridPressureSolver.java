@@ -0,0 +1,538 @@
+package pl.edu.agh.ssd;
+
+import java.util.Arrays;
+
+/**
+ * Geometryczny solver wielosiatkowy (cykl V) równania ciśnienia.
+ * <p>
+ * Relaksacja szybko wygładza błędy krótkofalowe, ale informacja przechodzi w niej tylko o jedną komórkę
+ * na przebieg, więc na dużych siatkach potrzebuje O(N) przebiegów. Cykl V wygładza błąd na siatce drobnej,
+ * przenosi residuum na siatkę dwa razy rzadszą (restrykcja), rozwiązuje tam równanie na poprawkę i
+ * przenosi poprawkę z powrotem (prolongacja), aż do siatki na tyle małej, że wystarczy kilkadziesiąt przebiegów.
+ * <p>
+ * Maski przeszkód, źródeł i wiatru są respektowane na każdym poziomie: komórka siatki rzadszej jest płynem
+ * tylko wtedy, gdy płynem są wszystkie jej komórki potomne, a w pozostałych komórkach poprawka wynosi zero.
+ * Komórki siatki drobnej przy przeszkodach nie dostają więc poprawki z siatki rzadszej i wygładzane są tylko
+ * relaksacją - traktowanie komórek mieszanych jako płynu przeszacowuje poprawkę i cykl przestaje być zbieżny.
+ * Na ścianach pomieszczenia obowiązuje ten sam warunek zerowej pochodnej co w {@link SmokeSimulation#enforceBoundaryConditions}.
+ * Przy nieparzystym rozmiarze siatki drobniejszej ostatnia komórka siatki rzadszej w danej osi ma tylko jedną warstwę
+ * komórek potomnych - poziom pamięta rozmiary swoich komórek, a operator, restrykcja i prolongacja uwzględniają
+ * ich rzeczywiste objętości, powierzchnie ścian i położenia środków.
+ * Jedna iteracja solvera to jeden cykl V.
+ */
+public class MultigridPressureSolver extends PressureSolver {
+
+    /**
+     * Liczba przebiegów wygładzania przed i po korekcie z siatki rzadszej
+     */
+    private static final int PRE_SMOOTHING = 2;
+    private static final int POST_SMOOTHING = 2;
+
+    /**
+     * Liczba przebiegów relaksacji na najrzadszej siatce
+     */
+    private static final int COARSEST_SWEEPS = 40;
+
+    /**
+     * Siatka nie jest dalej zagęszczana, gdy któryś z jej wymiarów jest mniejszy od tej wartości
+     */
+    private static final int MIN_COARSE_SIZE = 4;
+
+    /**
+     * Poziomy siatki od najdrobniejszej (rozmiar siatki symulacji) do najrzadszej
+     */
+    private Level[] levels;
+
+    /**
+     * Wersja geometrii ({@link SmokeGrid#geometryVersion}), z której wyliczono maski płynu poziomów
+     */
+    private int maskVersion;
+
+    @Override
+    public String getName() {
+        return "multigrid";
+    }
+
+    @Override
+    int iterate(SmokeSimulation simulation, GridField pressure, GridField divergence) {
+        SmokeGrid room = simulation.room;
+        SlabExecutor executor = simulation.executor;
+        prepareLevels(room);
+        Level fine = levels[0];
+        load(room, executor, fine, pressure, divergence);
+
+        int iterations = 0;
+        while (iterations < maxIterations && !(tolerance > 0 && residualNorm(executor, fine) <= tolerance)) {
+            vCycle(executor, 0);
+            iterations++;
+        }
+
+        store(room, executor, fine, pressure);
+        simulation.enforceBoundaryConditions(0, pressure);
+        return iterations;
+    }
+
+    private void vCycle(SlabExecutor executor, int depth) {
+        Level level = levels[depth];
+        if (depth == levels.length - 1) {
+            smooth(executor, level, COARSEST_SWEEPS);
+            return;
+        }
+        Level coarse = levels[depth + 1];
+        smooth(executor, level, PRE_SMOOTHING);
+        computeResidual(executor, level);
+        restrict(executor, level, coarse);
+        vCycle(executor, depth + 1);
+        prolongate(executor, coarse, level);
+        smooth(executor, level, POST_SMOOTHING);
+    }
+
+    /**
+     * Tworzy poziomy siatki, jeśli nie istnieją albo zmienił się rozmiar pomieszczenia
+     */
+    private void prepareLevels(SmokeGrid room) {
+        int nx = room.gridSize[0] - 2;
+        int ny = room.gridSize[1] - 2;
+        int nz = room.gridSize[2] - 2;
+        if (levels != null && levels[0].nx == nx && levels[0].ny == ny && levels[0].nz == nz) {
+            return;
+        }
+        int count = 1;
+        for (int x = nx, y = ny, z = nz; Math.min(x, Math.min(y, z)) >= MIN_COARSE_SIZE; count++) {
+            x = (x + 1) / 2;
+            y = (y + 1) / 2;
+            z = (z + 1) / 2;
+        }
+        levels = new Level[count];
+        maskVersion = 0;
+        levels[0] = new Level(nx, ny, nz);
+        for (int i = 1; i < count; i++) {
+            Level finer = levels[i - 1];
+            levels[i] = new Level(finer);
+        }
+    }
+
+    /**
+     * Kopiuje ciśnienie i dywergencję do najdrobniejszego poziomu. Po zmianie geometrii przepisuje też maskę płynu
+     * z {@link SmokeGrid#cellType} i wylicza maski poziomów rzadszych.
+     * Współrzędne poziomu 0 pokrywają się ze współrzędnymi siatki symulacji - warstwa duchów poziomu to ściany pomieszczenia.
+     */
+    private void load(SmokeGrid room, SlabExecutor executor, Level fine, GridField pressure, GridField divergence) {
+        executor.forEach(0, fine.nx + 2, (from, to) -> {
+            for (int x = from; x < to; x++) {
+                for (int y = 0; y < fine.ny + 2; y++) {
+                    int cell = room.index(x, y, 0);
+                    int i = fine.index(x, y, 0);
+                    for (int z = 0; z < fine.nz + 2; z++, cell++, i++) {
+                        fine.u[i] = pressure.get(cell);
+                        fine.f[i] = divergence.get(cell);
+                    }
+                }
+            }
+        });
+        if (maskVersion == room.geometryVersion) {
+            return;
+        }
+        maskVersion = room.geometryVersion;
+        executor.forEach(0, fine.nx + 2, (from, to) -> {
+            for (int x = from; x < to; x++) {
+                for (int y = 0; y < fine.ny + 2; y++) {
+                    int cell = room.index(x, y, 0);
+                    int i = fine.index(x, y, 0);
+                    for (int z = 0; z < fine.nz + 2; z++, cell++, i++) {
+                        fine.fluid[i] = fine.isInterior(x, y, z) && room.cellType[cell] == SmokeGrid.FLUID;
+                    }
+                }
+            }
+        });
+        for (int depth = 1; depth < levels.length; depth++) {
+            Level finer = levels[depth - 1];
+            Level coarse = levels[depth];
+            executor.forEach(1, coarse.nx + 1, (from, to) -> {
+                for (int x = from; x < to; x++) {
+                    for (int y = 1; y <= coarse.ny; y++) {
+                        int i = coarse.index(x, y, 1);
+                        for (int z = 1; z <= coarse.nz; z++, i++) {
+                            coarse.fluid[i] = allChildrenFluid(finer, x, y, z);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private static boolean allChildrenFluid(Level finer, int x, int y, int z) {
+        for (int cx = 2 * x - 1; cx <= Math.min(2 * x, finer.nx); cx++) {
+            for (int cy = 2 * y - 1; cy <= Math.min(2 * y, finer.ny); cy++) {
+                for (int cz = 2 * z - 1; cz <= Math.min(2 * z, finer.nz); cz++) {
+                    if (!finer.fluid[finer.index(cx, cy, cz)]) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Przepisuje ciśnienie z komórek wewnętrznych poziomu 0 do pola siatki
+     */
+    private static void store(SmokeGrid room, SlabExecutor executor, Level fine, GridField pressure) {
+        executor.forEach(1, fine.nx + 1, (from, to) -> {
+            for (int x = from; x < to; x++) {
+                for (int y = 1; y <= fine.ny; y++) {
+                    int cell = room.index(x, y, 1);
+                    int i = fine.index(x, y, 1);
+                    for (int z = 1; z <= fine.nz; z++, cell++, i++) {
+                        if (fine.fluid[i]) {
+                            pressure.set(cell, fine.u[i]);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Przebiegi relaksacji czerwono-czarnej; kolory liczone są równolegle
+     */
+    private static void smooth(SlabExecutor executor, Level level, int sweeps) {
+        for (int sweep = 0; sweep < sweeps; sweep++) {
+            for (int color = 0; color < 2; color++) {
+                int sweepColor = color;
+                level.copyToGhosts();
+                executor.forEach(1, level.nx + 1, (from, to) -> {
+                    int sx = level.strideX;
+                    int sy = level.strideY;
+                    double[] u = level.u;
+                    double[] f = level.f;
+                    for (int x = from; x < to; x++) {
+                        for (int y = 1; y <= level.ny; y++) {
+                            int firstZ = SmokeSimulation.firstZ(x, y, sweepColor);
+                            int i = level.index(x, y, firstZ);
+                            for (int z = firstZ; z <= level.nz; z += 2, i += 2) {
+                                if (!level.fluid[i]) continue;
+                                if (level.uniform) {
+                                    u[i] = (f[i] + u[i + sx] + u[i - sx] + u[i + sy] + u[i - sy] + u[i + 1] + u[i - 1]) / 6;
+                                } else {
+                                    u[i] += level.weightedResidualAt(i, x, y, z) * level.volume(x, y, z)
+                                            / level.diagonal(x, y, z);
+                                }
+                            }
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * r = f + (suma sąsiadów) - 6 * u w komórkach płynu, zero w pozostałych. Na poziomie z komórkami niepełnymi
+     * residuum jest przeliczone na pełną komórkę ({@link Level#weightedResidualAt}).
+     */
+    private static void computeResidual(SlabExecutor executor, Level level) {
+        level.copyToGhosts();
+        executor.forEach(1, level.nx + 1, (from, to) -> {
+            for (int x = from; x < to; x++) {
+                for (int y = 1; y <= level.ny; y++) {
+                    int i = level.index(x, y, 1);
+                    for (int z = 1; z <= level.nz; z++, i++) {
+                        if (!level.fluid[i]) {
+                            level.r[i] = 0;
+                        } else {
+                            level.r[i] = level.uniform ? level.residualAt(i) : level.weightedResidualAt(i, x, y, z);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Pierwiastek ze średniej kwadratów residuum po komórkach wewnętrznych - ta sama miara co {@link PressureSolver#residual}
+     */
+    private static double residualNorm(SlabExecutor executor, Level level) {
+        level.copyToGhosts();
+        double sum = executor.sum(1, level.nx + 1, (from, to) -> {
+            double partial = 0;
+            for (int x = from; x < to; x++) {
+                for (int y = 1; y <= level.ny; y++) {
+                    int i = level.index(x, y, 1);
+                    for (int z = 1; z <= level.nz; z++, i++) {
+                        if (level.fluid[i]) {
+                            double r = level.residualAt(i);
+                            partial += r * r;
+                        }
+                    }
+                }
+            }
+            return partial;
+        });
+        return Math.sqrt(sum / ((double) level.nx * level.ny * level.nz));
+    }
+
+    /**
+     * Prawa strona na siatce rzadszej: średnia residuum z komórek potomnych pomnożona przez 4,
+     * bo operator nie jest dzielony przez h^2, a krok siatki rzadszej jest dwa razy większy.
+     * Przy nieparzystym rozmiarze siatki drobniejszej komórki rzadsze przy ścianie mają mniej niż osiem
+     * komórek potomnych - średnia ważona objętościami liczona jest z tych, które istnieją.
+     * Przybliżenie początkowe poprawki na siatce rzadszej to zero.
+     */
+    private static void restrict(SlabExecutor executor, Level finer, Level coarse) {
+        Arrays.fill(coarse.u, 0);
+        executor.forEach(1, coarse.nx + 1, (from, to) -> {
+            for (int x = from; x < to; x++) {
+                for (int y = 1; y <= coarse.ny; y++) {
+                    int i = coarse.index(x, y, 1);
+                    for (int z = 1; z <= coarse.nz; z++, i++) {
+                        if (!coarse.fluid[i]) {
+                            coarse.f[i] = 0;
+                            continue;
+                        }
+                        double sum = 0;
+                        double volume = 0;
+                        for (int cx = 2 * x - 1; cx <= Math.min(2 * x, finer.nx); cx++) {
+                            for (int cy = 2 * y - 1; cy <= Math.min(2 * y, finer.ny); cy++) {
+                                for (int cz = 2 * z - 1; cz <= Math.min(2 * z, finer.nz); cz++) {
+                                    double childVolume = finer.volume(cx, cy, cz);
+                                    sum += childVolume * finer.r[finer.index(cx, cy, cz)];
+                                    volume += childVolume;
+                                }
+                            }
+                        }
+                        coarse.f[i] = 4 * sum / volume;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Dodaje poprawkę z siatki rzadszej do każdej komórki płynu siatki drobniejszej. Interpolacja trójliniowa
+     * pomiędzy środkami komórek: komórka potomna leży w 1/4 odległości od środka rodzica w stronę jednego
+     * z sąsiadów, więc w każdej osi rodzic ma wagę 3/4, a ten sąsiad 1/4. Przy komórkach niepełnych wagi
+     * wynikają z rzeczywistych położeń środków ({@link Level#parentWeightX}).
+     */
+    private static void prolongate(SlabExecutor executor, Level coarse, Level finer) {
+        coarse.copyToGhosts();
+        executor.forEach(1, finer.nx + 1, (from, to) -> {
+            for (int x = from; x < to; x++) {
+                int cx = (x + 1) / 2;
+                int nx = (x & 1) == 1 ? -coarse.strideX : coarse.strideX;
+                for (int y = 1; y <= finer.ny; y++) {
+                    int cy = (y + 1) / 2;
+                    int ny = (y & 1) == 1 ? -coarse.strideY : coarse.strideY;
+                    int i = finer.index(x, y, 1);
+                    int parentRow = coarse.index(cx, cy, 0);
+                    for (int z = 1; z <= finer.nz; z++, i++) {
+                        if (!finer.fluid[i]) continue;
+                        int p = parentRow + (z + 1) / 2;
+                        int nz = (z & 1) == 1 ? -1 : 1;
+                        double[] e = coarse.u;
+                        if (coarse.uniform) {
+                            finer.u[i] += (27 * e[p]
+                                    + 9 * (e[p + nx] + e[p + ny] + e[p + nz])
+                                    + 3 * (e[p + nx + ny] + e[p + nx + nz] + e[p + ny + nz])
+                                    + e[p + nx + ny + nz]) / 64;
+                            continue;
+                        }
+                        double ax = coarse.parentWeightX[x];
+                        double ay = coarse.parentWeightY[y];
+                        double az = coarse.parentWeightZ[z];
+                        finer.u[i] += ax * (ay * (az * e[p] + (1 - az) * e[p + nz])
+                                + (1 - ay) * (az * e[p + ny] + (1 - az) * e[p + ny + nz]))
+                                + (1 - ax) * (ay * (az * e[p + nx] + (1 - az) * e[p + nx + nz])
+                                + (1 - ay) * (az * e[p + nx + ny] + (1 - az) * e[p + nx + ny + nz]));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Jeden poziom siatki: nx * ny * nz komórek wewnętrznych otoczonych warstwą duchów
+     */
+    private static final class Level {
+        final int nx, ny, nz;
+        final int strideX, strideY;
+
+        /**
+         * Niewiadoma (ciśnienie na poziomie 0, poprawka na poziomach rzadszych), prawa strona i residuum
+         */
+        final double[] u, f, r;
+        final boolean[] fluid;
+
+        /**
+         * Rozmiary komórek w osiach X, Y i Z jako część pełnej komórki poziomu, razem z warstwą duchów (duch ma
+         * rozmiar sąsiedniej komórki wewnętrznej). Rozmiar mniejszy od 1 ma ostatnia komórka poziomu rzadszego,
+         * gdy siatka drobniejsza ma w tej osi nieparzystą liczbę komórek.
+         */
+        final double[] sizeX, sizeY, sizeZ;
+
+        /**
+         * Czy wszystkie komórki poziomu są pełne - wtedy operatorem jest zwykły 7-punktowy laplasjan
+         */
+        final boolean uniform;
+
+        /**
+         * Wagi rodzica w prolongacji z tego poziomu, indeksowane współrzędną komórki poziomu drobniejszego
+         * (sąsiad rodzica ma wagę 1 - waga rodzica). Null na poziomie 0.
+         */
+        final double[] parentWeightX, parentWeightY, parentWeightZ;
+
+        /**
+         * Poziom 0 - same pełne komórki
+         */
+        Level(int nx, int ny, int nz) {
+            this(nx, ny, nz, null);
+        }
+
+        /**
+         * Poziom dwa razy rzadszy od finer
+         */
+        Level(Level finer) {
+            this((finer.nx + 1) / 2, (finer.ny + 1) / 2, (finer.nz + 1) / 2, finer);
+        }
+
+        private Level(int nx, int ny, int nz, Level finer) {
+            this.nx = nx;
+            this.ny = ny;
+            this.nz = nz;
+            this.strideY = nz + 2;
+            this.strideX = (ny + 2) * strideY;
+            int size = (nx + 2) * strideX;
+            this.u = new double[size];
+            this.f = new double[size];
+            this.r = new double[size];
+            this.fluid = new boolean[size];
+            this.sizeX = sizes(finer == null ? null : finer.sizeX, finer == null ? 0 : finer.nx, nx);
+            this.sizeY = sizes(finer == null ? null : finer.sizeY, finer == null ? 0 : finer.ny, ny);
+            this.sizeZ = sizes(finer == null ? null : finer.sizeZ, finer == null ? 0 : finer.nz, nz);
+            this.uniform = allFull(sizeX) && allFull(sizeY) && allFull(sizeZ);
+            this.parentWeightX = finer == null ? null : parentWeights(finer.sizeX, finer.nx, sizeX, nx);
+            this.parentWeightY = finer == null ? null : parentWeights(finer.sizeY, finer.ny, sizeY, ny);
+            this.parentWeightZ = finer == null ? null : parentWeights(finer.sizeZ, finer.nz, sizeZ, nz);
+        }
+
+        /**
+         * Rozmiary count komórek osi (razem z duchami) - pełne na poziomie 0, a na poziomie rzadszym połowa
+         * sumy rozmiarów komórek potomnych
+         */
+        private static double[] sizes(double[] finerSizes, int finerCount, int count) {
+            double[] sizes = new double[count + 2];
+            if (finerSizes == null) {
+                Arrays.fill(sizes, 1);
+                return sizes;
+            }
+            for (int x = 1; x <= count; x++) {
+                sizes[x] = (finerSizes[2 * x - 1] + (2 * x <= finerCount ? finerSizes[2 * x] : 0)) / 2;
+            }
+            sizes[0] = sizes[1];
+            sizes[count + 1] = sizes[count];
+            return sizes;
+        }
+
+        private static boolean allFull(double[] sizes) {
+            for (double size : sizes) {
+                if (size != 1) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Waga rodzica dla każdej komórki drobniejszej z położeń środków komórek, liczonych w komórkach drobniejszych
+         * od ściany. Sąsiad rodzica za ścianą to jego odbicie względem ściany.
+         */
+        private static double[] parentWeights(double[] finerSizes, int finerCount, double[] sizes, int count) {
+            double[] start = new double[finerCount + 2];
+            for (int x = 1; x <= finerCount; x++) {
+                start[x + 1] = start[x] + finerSizes[x];
+            }
+            double length = start[finerCount + 1];
+            double[] weights = new double[finerCount + 2];
+            for (int x = 1; x <= finerCount; x++) {
+                int parent = (x + 1) / 2;
+                int neighbour = (x & 1) == 1 ? parent - 1 : parent + 1;
+                double child = start[x] + finerSizes[x] / 2;
+                double parentCenter = start[2 * parent - 1] + sizes[parent];
+                double neighbourCenter;
+                if (neighbour == 0) {
+                    neighbourCenter = -parentCenter;
+                } else if (neighbour > count) {
+                    neighbourCenter = 2 * length - parentCenter;
+                } else {
+                    neighbourCenter = start[2 * neighbour - 1] + sizes[neighbour];
+                }
+                weights[x] = (neighbourCenter - child) / (neighbourCenter - parentCenter);
+            }
+            return weights;
+        }
+
+        int index(int x, int y, int z) {
+            return x * strideX + y * strideY + z;
+        }
+
+        boolean isInterior(int x, int y, int z) {
+            return x >= 1 && x <= nx && y >= 1 && y <= ny && z >= 1 && z <= nz;
+        }
+
+        double residualAt(int i) {
+            return f[i] + u[i + strideX] + u[i - strideX] + u[i + strideY] + u[i - strideY] + u[i + 1] + u[i - 1] - 6 * u[i];
+        }
+
+        /**
+         * Objętość komórki jako część pełnej komórki poziomu
+         */
+        double volume(int x, int y, int z) {
+            return sizeX[x] * sizeY[y] * sizeZ[z];
+        }
+
+        /**
+         * Suma współczynników ścian komórki - współczynnik ściany to jej pole podzielone przez odległość środków
+         * komórek po obu stronach, 1 dla ściany pomiędzy dwiema pełnymi komórkami
+         */
+        double diagonal(int x, int y, int z) {
+            return sizeY[y] * sizeZ[z] * (2 / (sizeX[x - 1] + sizeX[x]) + 2 / (sizeX[x] + sizeX[x + 1]))
+                    + sizeX[x] * sizeZ[z] * (2 / (sizeY[y - 1] + sizeY[y]) + 2 / (sizeY[y] + sizeY[y + 1]))
+                    + sizeX[x] * sizeY[y] * (2 / (sizeZ[z - 1] + sizeZ[z]) + 2 / (sizeZ[z] + sizeZ[z + 1]));
+        }
+
+        /**
+         * Residuum operatora objętości skończonych z rozmiarami komórek, podzielone przez objętość komórki -
+         * dla pełnych komórek równe {@link #residualAt}
+         */
+        double weightedResidualAt(int i, int x, int y, int z) {
+            double flux = sizeY[y] * sizeZ[z] * (2 * (u[i - strideX] - u[i]) / (sizeX[x - 1] + sizeX[x])
+                    + 2 * (u[i + strideX] - u[i]) / (sizeX[x] + sizeX[x + 1]))
+                    + sizeX[x] * sizeZ[z] * (2 * (u[i - strideY] - u[i]) / (sizeY[y - 1] + sizeY[y])
+                    + 2 * (u[i + strideY] - u[i]) / (sizeY[y] + sizeY[y + 1]))
+                    + sizeX[x] * sizeY[y] * (2 * (u[i - 1] - u[i]) / (sizeZ[z - 1] + sizeZ[z])
+                    + 2 * (u[i + 1] - u[i]) / (sizeZ[z] + sizeZ[z + 1]));
+            return f[i] + flux / volume(x, y, z);
+        }
+
+        /**
+         * Warunek zerowej pochodnej na ścianach: komórka ducha przyjmuje wartość sąsiedniej komórki wewnętrznej
+         */
+        void copyToGhosts() {
+            for (int y = 1; y <= ny; y++) {
+                for (int z = 1; z <= nz; z++) {
+                    u[index(0, y, z)] = u[index(1, y, z)];
+                    u[index(nx + 1, y, z)] = u[index(nx, y, z)];
+                }
+            }
+            for (int x = 1; x <= nx; x++) {
+                for (int z = 1; z <= nz; z++) {
+                    u[index(x, 0, z)] = u[index(x, 1, z)];
+                    u[index(x, ny + 1, z)] = u[index(x, ny, z)];
+                }
+                for (int y = 1; y <= ny; y++) {
+                    u[index(x, y, 0)] = u[index(x, y, 1)];
+                    u[index(x, y, nz + 1)] = u[index(x, y, nz)];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package pl.edu.agh.ssd;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Pole siatki przechowujące wartości double poza stertą Javy - w pamięci bezpośredniej albo w tymczasowym pliku
+ * odwzorowanym w pamięci ({@link FieldStorage}). Garbage collector nie przegląda ani nie kopiuje takich pól,
+ * a pola w pliku mogą być większe niż pamięć RAM, bo system operacyjny zapisuje nieużywane strony na dysk.
+ * <p>
+ * Jeden bufor NIO mieści najwyżej 2^31 - 1 bajtów, dlatego wartości podzielone są na fragmenty po
+ * {@link #CHUNK_SIZE} komórek, a indeks komórki wybiera fragment i pozycję w nim.
+ * <p>
+ * Poza stertą są tylko pola siatki - solvery wielosiatkowy i gradientów sprzężonych trzymają swoje wektory
+ * robocze w tablicach na stercie, więc dla największych siatek właściwy jest solver relaksacyjny.
+ */
+public final class OffHeapGridField extends GridField {
+
+    /**
+     * Liczba komórek we fragmencie (2^27 liczb double, czyli 1 GiB)
+     */
+    static final int CHUNK_BITS = 27;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * Fragmenty wartości komórek razem z warstwą duchów
+     */
+    private final DoubleBuffer[] chunks;
+
+    /**
+     * Pole w pamięci bezpośredniej
+     */
+    OffHeapGridField(int X, int Y, int Z) {
+        super(X, Y, Z);
+        this.chunks = new DoubleBuffer[chunkCount()];
+        for (int chunk = 0; chunk < chunks.length; chunk++) {
+            chunks[chunk] = ByteBuffer.allocateDirect(chunkLength(chunk) * Double.BYTES)
+                    .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        }
+    }
+
+    /**
+     * Pole w tymczasowym pliku odwzorowanym w pamięci. Plik usuwany jest zaraz po odwzorowaniu - jego strony
+     * pozostają dostępne do zwolnienia pola, a po zakończeniu programu nic nie zostaje na dysku.
+     *
+     * @param directory katalog na plik, najlepiej na lokalnym, szybkim dysku
+     */
+    OffHeapGridField(int X, int Y, int Z, Path directory) {
+        super(X, Y, Z);
+        this.chunks = new DoubleBuffer[chunkCount()];
+        try {
+            Path file = Files.createTempFile(directory, "smoke-field-", ".bin");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                for (int chunk = 0; chunk < chunks.length; chunk++) {
+                    chunks[chunk] = channel.map(FileChannel.MapMode.READ_WRITE, (long) chunk * CHUNK_SIZE * Double.BYTES,
+                            (long) chunkLength(chunk) * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+                }
+            } finally {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    // Systemy, które nie pozwalają usunąć odwzorowanego pliku - usuwamy go przy wyjściu
+                    file.toFile().deleteOnExit();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot map a grid field file in " + directory, e);
+        }
+    }
+
+    private int chunkCount() {
+        return (length + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+    }
+
+    private int chunkLength(int chunk) {
+        return Math.min(CHUNK_SIZE, length - chunk * CHUNK_SIZE);
+    }
+
+    @Override
+    double get(int i) {
+        return chunks[i >>> CHUNK_BITS].get(i & CHUNK_MASK);
+    }
+
+    @Override
+    void set(int i, double value) {
+        chunks[i >>> CHUNK_BITS].put(i & CHUNK_MASK, value);
+    }
+
+    @Override
+    void fill(int from, int to, double value) {
+        for (int i = from; i < to; i++) {
+            set(i, value);
+        }
+    }
+
+    @Override
+    void copyFrom(GridField other, int from, int to) {
+        DoubleBuffer[] source = ((OffHeapGridField) other).chunks;
+        while (from < to) {
+            int chunk = from >>> CHUNK_BITS;
+            int offset = from & CHUNK_MASK;
+            int count = Math.min(to - from, CHUNK_SIZE - offset);
+            chunks[chunk].put(offset, source[chunk], offset, count);
+            from += count;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package pl.edu.agh.ssd;
+
+/**
+ * Solver równania ciśnienia używany w kroku projekcji {@link SmokeSimulation}.
+ * <p>
+ * W każdej komórce płynu rozwiązywane jest równanie
+ * 6 * p - (suma ciśnień sześciu sąsiadów) = divergence.
+ * Komórki źródeł, wiatru i przeszkód zachowują swoje ciśnienie, a na ścianach pomieszczenia ciśnienie
+ * kopiowane jest z sąsiedniej komórki wewnętrznej ({@link SmokeSimulation#enforceBoundaryConditions}).
+ * <p>
+ * Solver wykonuje iteracje aż residuum spadnie do {@link #setTolerance tolerancji} albo do osiągnięcia
+ * {@link #setMaxIterations limitu iteracji}. Domyślnie tolerancja wynosi 0, a limit 4 iteracje,
+ * czyli zawsze wykonywane są 4 przebiegi jak w pierwotnej implementacji.
+ * <p>
+ * Residuum po rozwiązaniu kosztuje dodatkowy przebieg po siatce, dlatego liczone jest tylko przy dodatniej tolerancji
+ * (zwykle wystarcza wtedy wartość zmierzona przy sprawdzaniu zbieżności) albo gdy włączono
+ * {@link #setResidualReporting raportowanie residuum}.
+ */
+public abstract class PressureSolver {
+
+    /**
+     * Nazwy solverów rozpoznawane przez {@link #create(String)}
+     */
+    public static final String[] NAMES = {"relaxation", "multigrid", "conjugate-gradient"};
+
+    /**
+     * Docelowe residuum (RMS po komórkach wewnętrznych), 0 wyłącza sprawdzanie zbieżności
+     */
+    double tolerance = 0;
+
+    /**
+     * Maksymalna liczba iteracji w jednym wywołaniu
+     */
+    int maxIterations = 4;
+
+    /**
+     * Czy zaczynać od ciśnienia z tej samej projekcji w poprzednim kroku zamiast od zera
+     */
+    boolean warmStart = false;
+
+    /**
+     * Czy liczyć residuum po każdym wywołaniu także przy zerowej tolerancji
+     */
+    boolean residualReporting = false;
+
+    /**
+     * Liczba iteracji i końcowe residuum ostatniego wywołania (NaN, gdy residuum nie było liczone)
+     */
+    int lastIterations;
+    double lastResidual;
+
+    /**
+     * Residuum bieżącego pola ciśnienia zmierzone w trakcie iteracji, NaN gdy pole zmieniło się od pomiaru.
+     * Solver, który zmienia ciśnienie po {@link #converged}, musi je unieważnić.
+     */
+    double measuredResidual = Double.NaN;
+
+    /**
+     * Suma iteracji wszystkich wywołań od utworzenia solvera
+     */
+    long totalIterations;
+
+    /**
+     * Tworzy solver o podanej nazwie (patrz {@link #NAMES})
+     */
+    public static PressureSolver create(String name) {
+        switch (name) {
+            case "relaxation":
+                return new RelaxationPressureSolver();
+            case "multigrid":
+                return new MultigridPressureSolver();
+            case "conjugate-gradient":
+                return new ConjugateGradientPressureSolver();
+            default:
+                throw new IllegalArgumentException("Unknown pressure solver: " + name);
+        }
+    }
+
+    /**
+     * @return nazwa solvera rozpoznawana przez {@link #create(String)}
+     */
+    public abstract String getName();
+
+    public void setTolerance(double tolerance) {
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("Tolerance must not be negative: " + tolerance);
+        }
+        this.tolerance = tolerance;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        if (maxIterations < 1) {
+            throw new IllegalArgumentException("Iteration cap must be positive: " + maxIterations);
+        }
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Włącza start solvera od ciśnienia z poprzedniego kroku. Obie projekcje kroku (pól "prev" po dyfuzji i pól
+     * velocity po adwekcji) mają osobne pola ciśnienia, więc każda zaczyna od własnego wyniku sprzed kroku.
+     */
+    public void setWarmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+    }
+
+    public boolean isWarmStart() {
+        return warmStart;
+    }
+
+    /**
+     * Włącza liczenie residuum po każdym wywołaniu solvera, np. do zapisu w wynikach przebiegu. Bez tego przy zerowej
+     * tolerancji {@link #getLastResidual()} zwraca NaN.
+     */
+    public void setResidualReporting(boolean residualReporting) {
+        this.residualReporting = residualReporting;
+    }
+
+    public boolean isResidualReporting() {
+        return residualReporting;
+    }
+
+    /**
+     * @return liczba iteracji wykonanych w ostatnim wywołaniu solvera
+     */
+    public int getLastIterations() {
+        return lastIterations;
+    }
+
+    /**
+     * @return residuum (RMS po komórkach wewnętrznych) po ostatnim wywołaniu solvera, NaN gdy tolerancja jest zerowa,
+     * a {@link #setResidualReporting raportowanie residuum} wyłączone
+     */
+    public double getLastResidual() {
+        return lastResidual;
+    }
+
+    public long getTotalIterations() {
+        return totalIterations;
+    }
+
+    /**
+     * Rozwiązuje równanie ciśnienia w miejscu. Pole pressure zawiera na wejściu przybliżenie początkowe.
+     */
+    void solve(SmokeSimulation simulation, GridField pressure, GridField divergence) {
+        measuredResidual = Double.NaN;
+        int iterations = iterate(simulation, pressure, divergence);
+        lastIterations = iterations;
+        if (!Double.isNaN(measuredResidual)) {
+            // Iteracje skończyły się sprawdzeniem zbieżności na tym samym polu - residuum jest już znane
+            lastResidual = measuredResidual;
+        } else if (tolerance > 0 || residualReporting) {
+            lastResidual = residual(simulation, pressure, divergence);
+        } else {
+            lastResidual = Double.NaN;
+        }
+        totalIterations += iterations;
+    }
+
+    /**
+     * Wykonuje iteracje solvera z uwzględnieniem tolerancji i limitu iteracji
+     *
+     * @return liczba wykonanych iteracji
+     */
+    abstract int iterate(SmokeSimulation simulation, GridField pressure, GridField divergence);
+
+    /**
+     * Czy residuum jest już wystarczająco małe, aby zakończyć iteracje. Przy zerowej tolerancji residuum
+     * nie jest liczone i solver zawsze wykonuje {@link #maxIterations} iteracji. Zmierzone residuum zapamiętywane jest
+     * w {@link #measuredResidual}.
+     */
+    boolean converged(SmokeSimulation simulation, GridField pressure, GridField divergence) {
+        if (tolerance <= 0) {
+            return false;
+        }
+        measuredResidual = residual(simulation, pressure, divergence);
+        return measuredResidual <= tolerance;
+    }
+
+    /**
+     * Residuum równania ciśnienia: pierwiastek ze średniej kwadratów
+     * divergence + (suma sąsiadów) - 6 * p po komórkach wewnętrznych (komórki inne niż płyn liczą się jako zero).
+     * Przy włączonym {@link ActiveRegion} sumowane są tylko komórki obszaru liczonego, a w podzielonym pomieszczeniu
+     * sumy podobszarów dodawane są przez {@link HaloExchange#sum}.
+     */
+    static double residual(SmokeSimulation simulation, GridField pressure, GridField divergence) {
+        SmokeGrid room = simulation.room;
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        double sum = simulation.executor.sum(room.fromX, room.toX, (from, to) -> {
+            double partial = 0;
+            for (int x = from; x < to; x++) {
+                for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                    for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                        int fromZ = room.runFrom(run, x, y);
+                        int toZ = room.runTo(run, x, y);
+                        int i = room.index(x, y, fromZ);
+                        for (int z = fromZ; z < toZ; z++, i++) {
+                            double r = divergence.get(i)
+                                    + pressure.get(i + strideX) + pressure.get(i - strideX)
+                                    + pressure.get(i + strideY) + pressure.get(i - strideY)
+                                    + pressure.get(i + 1) + pressure.get(i - 1)
+                                    - 6 * pressure.get(i);
+                            partial += r * r;
+                        }
+                    }
+                }
+            }
+            return partial;
+        });
+        if (simulation.halo != null) {
+            sum = simulation.halo.sum(sum);
+        }
+        double cells = (double) (room.domainSize[0] - 2) * (room.gridSize[1] - 2) * (room.gridSize[2] - 2);
+        return Math.sqrt(sum / cells);
+    }
+}
@@ -0,0 +1,81 @@
+package pl.edu.agh.ssd;
+
+/**
+ * Solver ciśnienia oparty na relaksacji Gaussa-Seidela - pierwotna metoda projekcji symulacji.
+ * Kolejność aktualizacji komórek wybierana jest przez {@link SmokeSimulation#setRelaxationScheme}.
+ */
+public class RelaxationPressureSolver extends PressureSolver {
+
+    @Override
+    public String getName() {
+        return "relaxation";
+    }
+
+    @Override
+    int iterate(SmokeSimulation simulation, GridField pressure, GridField divergence) {
+        if (converged(simulation, pressure, divergence)) {
+            return 0;
+        }
+        SmokeGrid room = simulation.room;
+        for (int iteration = 1; iteration <= maxIterations; iteration++) {
+            measuredResidual = Double.NaN;
+            if (simulation.relaxationScheme == RelaxationScheme.RED_BLACK) {
+                for (int color = 0; color < 2; color++) {
+                    int sweepColor = color;
+                    if (simulation.vectorized()) {
+                        simulation.executor.forEach(room.fromX, room.toX, (from, to) -> VectorKernels.pressureSweep(
+                                room, (DoubleGridField) pressure, (DoubleGridField) divergence, sweepColor, from, to));
+                    } else if (simulation.vectorizedFloat()) {
+                        simulation.executor.forEach(room.fromX, room.toX, (from, to) -> VectorKernels.pressureSweep(
+                                room, (FloatGridField) pressure, (FloatGridField) divergence, sweepColor, from, to));
+                    } else if (simulation.floatKernels()) {
+                        simulation.executor.forEach(room.fromX, room.toX, (from, to) -> FloatKernels.pressureSweep(
+                                room, (FloatGridField) pressure, (FloatGridField) divergence, sweepColor, from, to));
+                    } else {
+                        simulation.executor.forEach(room.fromX, room.toX,
+                                (from, to) -> sweep(room, pressure, divergence, sweepColor, from, to));
+                    }
+                    if (color == 0 && simulation.halo != null) {
+                        simulation.halo.exchange(pressure);
+                    }
+                }
+            } else if (simulation.floatKernels()) {
+                FloatKernels.pressureSweep(room, (FloatGridField) pressure, (FloatGridField) divergence,
+                        SmokeSimulation.ALL_CELLS, room.fromX, room.toX);
+            } else {
+                sweep(room, pressure, divergence, SmokeSimulation.ALL_CELLS, room.fromX, room.toX);
+            }
+            simulation.enforceBoundaryConditions(0, pressure);
+            if (iteration < maxIterations && converged(simulation, pressure, divergence)) {
+                return iteration;
+            }
+        }
+        return maxIterations;
+    }
+
+    /**
+     * Jeden przebieg relaksacji po płaszczyznach X z zakresu [fromX, toX)
+     *
+     * @param color {@link SmokeSimulation#ALL_CELLS} dla wszystkich komórek po kolei, albo 0/1 dla komórek z parzystym/nieparzystym x + y + z
+     */
+    private static void sweep(SmokeGrid room, GridField pressure, GridField divergence, int color, int fromX, int toX) {
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        int step = color == SmokeSimulation.ALL_CELLS ? 1 : 2;
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int firstZ = SmokeSimulation.firstZ(x + room.originX, y, color, room.runFrom(run, x, y));
+                    int lastZ = room.runTo(run, x, y);
+                    int i = room.index(x, y, firstZ);
+                    for (int z = firstZ; z < lastZ; z += step, i += step) {
+                        pressure.set(i, (divergence.get(i) +
+                                pressure.get(i + strideX) + pressure.get(i - strideX) +
+                                pressure.get(i + strideY) + pressure.get(i - strideY) +
+                                pressure.get(i + 1) + pressure.get(i - 1)) / 6);
+                    }
+                }
+            }
+        }
+    }
+}
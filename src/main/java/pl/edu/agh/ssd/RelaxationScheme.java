@@ -0,0 +1,20 @@
+package pl.edu.agh.ssd;
+
+/**
+ * Kolejność aktualizacji komórek w relaksacji Gaussa-Seidela używanej przez dyfuzję i równanie ciśnienia
+ */
+public enum RelaxationScheme {
+
+    /**
+     * Aktualizacja w miejscu w kolejności leksykograficznej (x, y, z). Wyniki są identyczne z pierwotną
+     * implementacją, ale każda komórka zależy od poprzedniej, więc pętla działa na jednym wątku.
+     */
+    GAUSS_SEIDEL,
+
+    /**
+     * Aktualizacja szachownicowa: najpierw wszystkie komórki z parzystym x + y + z, potem z nieparzystym.
+     * Komórki jednego koloru mają sąsiadów wyłącznie w drugim kolorze, więc każdy kolor liczony jest
+     * równolegle. Zbieżność jest taka sama jak leksykograficznej, ale wyniki nie są z nią identyczne bitowo.
+     */
+    RED_BLACK
+}
@@ -0,0 +1,495 @@
+package pl.edu.agh.ssd;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Parametry scenariusza symulacji uruchamianej bez interfejsu graficznego.
+ * <p>
+ * Parametry podaje się jako opcje wiersza poleceń ({@code --nazwa wartość}) albo w pliku scenariusza
+ * ({@code --scenario plik}), w którym każda linia ma postać {@code nazwa wartość}, a linie zaczynające się
+ * od {@code #} są pomijane. Opcje {@code source}, {@code wind} i {@code barrier} można podawać wielokrotnie.
+ * Wartości domyślne odpowiadają domyślnym wartościom formularza w {@link Main}.
+ */
+public class ScenarioConfig {
+
+    static final String USAGE = String.join(System.lineSeparator(),
+            "Options (each may also be given as a 'name value' line in a --scenario file):",
+            "  --scenario FILE            read options from FILE",
+            "  --size XxYxZ               grid size (default 50x50x50)",
+            "  --steps N                  number of simulation steps (default 100)",
+            "  --duration T               simulated time to reach instead of a step count (default 0 = use --steps)",
+            "  --time-step DT             time step (default 0.1)",
+            "  --cfl C                    adaptive time step keeping the advection backtrace within C cells (default 0 = fixed step)",
+            "  --min-time-step DT         shortest adaptive time step (default 0.01 x --time-step)",
+            "  --max-time-step DT         longest adaptive time step (default 10 x --time-step)",
+            "  --diff-rate RATE           diffusion rate (default 0.00001)",
+            "  --decay-rate RATE          smoke decay per --time-step (default 0.02)",
+            "  --source-velocity V        velocity of smoke leaving a source (default 3)",
+            "  --source-density D         density of smoke at a source (default 100)",
+            "  --source X,Y,Z             smoke source cell (repeatable)",
+            "  --wind X,Y,Z,VX,VY,VZ      wind source cell and its velocity (repeatable)",
+            "  --barrier X0,X1,Y0,Y1,Z0,Z1  inclusive block of barrier cells (repeatable)",
+            "  --threads N                solver threads (default 1)",
+            "  --precision P              field precision: double or float (default double); float halves the field memory",
+            "                             and shortens the step only with --vector-kernels",
+            "  --storage S                field storage: heap, direct or mapped (default heap)",
+            "  --spill-dir DIR            directory for mapped field files (default java.io.tmpdir)",
+            "  --vector-kernels [true|false]  SIMD kernels, needs --add-modules jdk.incubator.vector (default false)",
+            "  --relaxation SCHEME        gauss-seidel or red-black (default gauss-seidel)",
+            "  --pressure-solver NAME     " + String.join(", ", PressureSolver.NAMES) + " (default relaxation)",
+            "  --tolerance T              pressure residual tolerance, 0 = fixed iteration count (default 0)",
+            "  --max-iterations N         pressure solver iteration cap (default 4)",
+            "  --warm-start [true|false]  start each pressure solve from the same projection's pressure",
+            "                             of the previous step",
+            "  --report-residual [true|false]  compute the pressure residual for steps.csv after every solve (one extra pass,",
+            "                             default false: the residual is reported only with a positive --tolerance)",
+            "  --temperature [true|false]  heat transport and buoyancy (default false)",
+            "  --source-temperature K     air temperature at smoke sources in kelvin (default 373.15)",
+            "  --buoyancy B               upward acceleration per kelvin above ambient (default 0.01)",
+            "  --smoke-weight W           downward acceleration per unit of smoke density (default 0.0005)",
+            "  --cooling-rate R           rate at which hot air cools towards ambient (default 0.2)",
+            "  --active-threshold T       skip blocks whose density and velocity stay below T (default off)",
+            "  --metrics-interval N       write per-phase metrics to metrics.csv every N steps (default 0 = off)",
+            "  --checkpoint-interval N    write checkpoint.bin to the output directory every N steps (default 0 = off)",
+            "  --checkpoint-compress [true|false]  gzip checkpoint files",
+            "  --frames-interval N        append a frame to frames.bin in the output directory every N steps (default 0 = off)",
+            "  --frames-fields LIST       comma-separated frame fields: density, velocity, temperature (default density)",
+            "  --frames-queue N           frames waiting for the writer before new ones are dropped (default 4)",
+            "  --restore FILE             continue a checkpoint up to --steps or --duration; grid, geometry, solver and time step come from FILE",
+            "  --output DIR               output directory (default headless-output)");
+
+    int width = 50, height = 50, depth = 50;
+    int steps = 100;
+    double timeStep = 0.1;
+
+    /**
+     * Czas symulacji, do którego liczyć zamiast liczby kroków, 0 - liczba kroków {@link #steps}
+     */
+    double duration = 0;
+
+    /**
+     * Docelowa liczba Couranta adaptacyjnego kroku czasowego (0 - stały krok) i zakres kroków (0 - domyślny
+     * względem {@link #timeStep})
+     */
+    double cflTarget = 0;
+    double minTimeStep = 0, maxTimeStep = 0;
+    double diffRate = 0.00001;
+    double decayRate = 0.02;
+    double sourceVelocity = 3;
+    double sourceDensity = 100;
+    int threads = 1;
+    FieldPrecision precision = FieldPrecision.DOUBLE;
+    boolean vectorKernels = false;
+    FieldStorage storage = FieldStorage.HEAP;
+    Path spillDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+    RelaxationScheme relaxationScheme = RelaxationScheme.GAUSS_SEIDEL;
+    String pressureSolver = "relaxation";
+    double tolerance = 0;
+    int maxIterations = 4;
+    boolean warmStart = false;
+
+    /**
+     * Czy liczyć residuum ciśnienia po każdym rozwiązaniu także przy zerowej tolerancji ({@link PressureSolver#setResidualReporting})
+     */
+    boolean reportResidual = false;
+    boolean temperature = false;
+    double sourceTemperature = SmokeSimulation.DEFAULT_SOURCE_TEMPERATURE;
+    double buoyancy = SmokeSimulation.DEFAULT_BUOYANCY;
+    double smokeWeight = SmokeSimulation.DEFAULT_SMOKE_WEIGHT;
+    double coolingRate = SmokeSimulation.DEFAULT_COOLING_RATE;
+    int metricsInterval = 0;
+    int checkpointInterval = 0;
+    boolean checkpointCompress = false;
+    int framesInterval = 0;
+    int framesFields = FrameRecorder.DENSITY;
+    int framesQueue = 4;
+
+    /**
+     * Punkt kontrolny, od którego wznawiana jest symulacja, null przy nowej symulacji
+     */
+    Path restore;
+
+    /**
+     * Próg {@link ActiveRegion}, wartość ujemna wyłącza śledzenie aktywnych bloków
+     */
+    double activeThreshold = -1;
+    Path output = Paths.get("headless-output");
+
+    /**
+     * Źródła dymu {x, y, z}
+     */
+    final List<int[]> sources = new ArrayList<>();
+
+    /**
+     * Źródła wiatru {x, y, z, vx, vy, vz}
+     */
+    final List<double[]> winds = new ArrayList<>();
+
+    /**
+     * Bloki przeszkód {x0, x1, y0, y1, z0, z1}
+     */
+    final List<int[]> barriers = new ArrayList<>();
+
+    /**
+     * Odczytuje scenariusz z argumentów wiersza poleceń
+     *
+     * @throws IllegalArgumentException przy nieznanej opcji albo błędnej wartości
+     * @throws IOException              gdy nie da się odczytać pliku scenariusza
+     */
+    public static ScenarioConfig parse(String[] args) throws IOException {
+        ScenarioConfig config = new ScenarioConfig();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected an option, got: " + args[i]);
+            }
+            String name = args[i].substring(2);
+            String value;
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                value = args[++i];
+            } else if (name.equals("warm-start") || name.equals("vector-kernels") || name.equals("checkpoint-compress")
+                    || name.equals("temperature") || name.equals("report-residual")) {
+                value = "true";
+            } else {
+                throw new IllegalArgumentException("Missing value for --" + name);
+            }
+            if (name.equals("scenario")) {
+                config.load(Paths.get(value));
+            } else {
+                config.set(name, value);
+            }
+        }
+        config.validate();
+        return config;
+    }
+
+    /**
+     * Wczytuje opcje z pliku scenariusza
+     */
+    void load(Path file) throws IOException {
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+", 2);
+            set(parts[0], parts.length > 1 ? parts[1].trim() : "true");
+        }
+    }
+
+    /**
+     * Ustawia jedną opcję scenariusza
+     */
+    void set(String name, String value) {
+        try {
+            switch (name) {
+                case "size":
+                    int[] size = ints(value, 3, "x");
+                    width = size[0];
+                    height = size[1];
+                    depth = size[2];
+                    break;
+                case "steps":
+                    steps = Integer.parseInt(value);
+                    break;
+                case "time-step":
+                    timeStep = Double.parseDouble(value);
+                    break;
+                case "duration":
+                    duration = Double.parseDouble(value);
+                    break;
+                case "cfl":
+                    cflTarget = Double.parseDouble(value);
+                    break;
+                case "min-time-step":
+                    minTimeStep = Double.parseDouble(value);
+                    break;
+                case "max-time-step":
+                    maxTimeStep = Double.parseDouble(value);
+                    break;
+                case "diff-rate":
+                    diffRate = Double.parseDouble(value);
+                    break;
+                case "decay-rate":
+                    decayRate = Double.parseDouble(value);
+                    break;
+                case "source-velocity":
+                    sourceVelocity = Double.parseDouble(value);
+                    break;
+                case "source-density":
+                    sourceDensity = Double.parseDouble(value);
+                    break;
+                case "source":
+                    sources.add(ints(value, 3, ","));
+                    break;
+                case "wind":
+                    winds.add(doubles(value, 6));
+                    break;
+                case "barrier":
+                    barriers.add(ints(value, 6, ","));
+                    break;
+                case "threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "precision":
+                    precision = FieldPrecision.valueOf(value.toUpperCase(Locale.ROOT));
+                    break;
+                case "storage":
+                    storage = FieldStorage.valueOf(value.toUpperCase(Locale.ROOT));
+                    break;
+                case "spill-dir":
+                    spillDirectory = Paths.get(value);
+                    break;
+                case "vector-kernels":
+                    vectorKernels = Boolean.parseBoolean(value);
+                    if (vectorKernels && !SmokeSimulation.VECTOR_API_AVAILABLE) {
+                        throw new IllegalArgumentException("--vector-kernels needs the JVM option --add-modules jdk.incubator.vector");
+                    }
+                    break;
+                case "relaxation":
+                    relaxationScheme = RelaxationScheme.valueOf(value.toUpperCase(Locale.ROOT).replace('-', '_'));
+                    break;
+                case "pressure-solver":
+                    PressureSolver.create(value);
+                    pressureSolver = value;
+                    break;
+                case "tolerance":
+                    tolerance = Double.parseDouble(value);
+                    break;
+                case "max-iterations":
+                    maxIterations = Integer.parseInt(value);
+                    break;
+                case "warm-start":
+                    warmStart = Boolean.parseBoolean(value);
+                    break;
+                case "report-residual":
+                    reportResidual = Boolean.parseBoolean(value);
+                    break;
+                case "temperature":
+                    temperature = Boolean.parseBoolean(value);
+                    break;
+                case "source-temperature":
+                    sourceTemperature = Double.parseDouble(value);
+                    break;
+                case "buoyancy":
+                    buoyancy = Double.parseDouble(value);
+                    break;
+                case "smoke-weight":
+                    smokeWeight = Double.parseDouble(value);
+                    break;
+                case "cooling-rate":
+                    coolingRate = Double.parseDouble(value);
+                    break;
+                case "active-threshold":
+                    activeThreshold = Double.parseDouble(value);
+                    if (activeThreshold < 0) {
+                        throw new IllegalArgumentException("Active region threshold must not be negative: " + value);
+                    }
+                    break;
+                case "metrics-interval":
+                    metricsInterval = Integer.parseInt(value);
+                    break;
+                case "checkpoint-interval":
+                    checkpointInterval = Integer.parseInt(value);
+                    break;
+                case "checkpoint-compress":
+                    checkpointCompress = Boolean.parseBoolean(value);
+                    break;
+                case "frames-interval":
+                    framesInterval = Integer.parseInt(value);
+                    break;
+                case "frames-fields":
+                    framesFields = frameFields(value);
+                    break;
+                case "frames-queue":
+                    framesQueue = Integer.parseInt(value);
+                    break;
+                case "restore":
+                    restore = Paths.get(value);
+                    break;
+                case "output":
+                    output = Paths.get(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+        }
+    }
+
+    /**
+     * Sprawdza zakresy tak samo jak formularz w {@link Main} oraz czy wszystkie komórki leżą w siatce
+     */
+    void validate() {
+        if (width < 3 || height < 3 || depth < 3) {
+            throw new IllegalArgumentException("Grid must be at least 3 cells along each axis");
+        }
+        if (steps < 0 || timeStep <= 0 || sourceVelocity <= 0 || sourceDensity < 0 || threads <= 0 || metricsInterval < 0
+                || checkpointInterval < 0 || framesInterval < 0 || framesQueue <= 0
+                || sourceTemperature <= 0 || buoyancy < 0 || smokeWeight < 0 || coolingRate < 0
+                || !(duration >= 0) || Double.isInfinite(duration) || !(cflTarget >= 0) || !(minTimeStep >= 0) || !(maxTimeStep >= 0)) {
+            throw new IllegalArgumentException("Invalid input values. Please check your parameters.");
+        }
+        if (cflTarget > 0 && effectiveMinTimeStep() > effectiveMaxTimeStep()) {
+            throw new IllegalArgumentException("Minimum time step exceeds maximum time step");
+        }
+        if (storage != FieldStorage.HEAP && precision != FieldPrecision.DOUBLE) {
+            throw new IllegalArgumentException("Off-heap storage supports only double precision");
+        }
+        if (storage == FieldStorage.MAPPED && !Files.isDirectory(spillDirectory)) {
+            throw new IllegalArgumentException("Spill directory does not exist: " + spillDirectory);
+        }
+        if (restore != null && !Files.isRegularFile(restore)) {
+            throw new IllegalArgumentException("Checkpoint file does not exist: " + restore);
+        }
+        for (int[] source : sources) {
+            checkCell(source[0], source[1], source[2]);
+        }
+        for (double[] wind : winds) {
+            checkCell((int) wind[0], (int) wind[1], (int) wind[2]);
+        }
+        for (int[] barrier : barriers) {
+            checkCell(barrier[0], barrier[2], barrier[4]);
+            checkCell(barrier[1], barrier[3], barrier[5]);
+        }
+    }
+
+    private void checkCell(int x, int y, int z) {
+        if (x < 0 || x >= width || y < 0 || y >= height || z < 0 || z >= depth) {
+            throw new IllegalArgumentException("Cell " + x + "," + y + "," + z + " is outside the "
+                    + width + "x" + height + "x" + depth + " grid");
+        }
+    }
+
+    /**
+     * Odtwarza symulację z punktu kontrolnego {@link #restore}. Rozmiar siatki, precyzja, parametry i solver
+     * pochodzą z pliku i zastępują opcje scenariusza, a z opcji brane są tylko wątki, miejsce przechowywania pól
+     * i kernele wektorowe (jeśli są włączone).
+     */
+    public SmokeSimulation restoreSimulation() throws IOException {
+        SmokeSimulation simulation = SimulationCheckpoint.read(restore, threads, storage, spillDirectory);
+        SmokeGrid room = simulation.room;
+        width = room.gridSize[0];
+        height = room.gridSize[1];
+        depth = room.gridSize[2];
+        precision = room.precision;
+        if (vectorKernels) {
+            simulation.setVectorKernels(true);
+        }
+        vectorKernels = simulation.isVectorKernels();
+        relaxationScheme = simulation.relaxationScheme;
+        pressureSolver = simulation.getPressureSolver().getName();
+        temperature = simulation.isTemperatureEnabled();
+        timeStep = simulation.baseTimeStep;
+        cflTarget = simulation.isAdaptiveTimeStep() ? simulation.cflTarget : 0;
+        return simulation;
+    }
+
+    /**
+     * Tworzy symulację z parametrami, solverem i geometrią scenariusza
+     */
+    public SmokeSimulation createSimulation() {
+        return createSimulation(null);
+    }
+
+    /**
+     * Tworzy symulację, której siatka używa podanej maski przeszkód zamiast budować własną z {@link #barriers}.
+     * Maska może być wspólna dla wielu symulacji o tym samym rozmiarze siatki ({@link ScenarioSweep}) -
+     * symulacje tylko ją czytają, a {@link SmokeSimulation#addBound} na takiej symulacji zgłasza wyjątek.
+     *
+     * @param sharedBarriers maska {@link SmokeGrid#isBarrier} siatki tego samego rozmiaru albo null
+     */
+    SmokeSimulation createSimulation(boolean[] sharedBarriers) {
+        SmokeGrid room = new SmokeGrid(width, height, depth, precision, storage, spillDirectory);
+        SmokeSimulation simulation = new SmokeSimulation(room, timeStep, sourceVelocity, sourceDensity, diffRate, decayRate, threads);
+        simulation.setRelaxationScheme(relaxationScheme);
+        simulation.setVectorKernels(vectorKernels);
+        PressureSolver solver = PressureSolver.create(pressureSolver);
+        solver.setTolerance(tolerance);
+        solver.setMaxIterations(maxIterations);
+        solver.setWarmStart(warmStart);
+        simulation.setPressureSolver(solver);
+        if (activeThreshold >= 0) {
+            simulation.enableActiveRegions(activeThreshold);
+        }
+        if (temperature) {
+            simulation.enableTemperature(sourceTemperature, buoyancy, smokeWeight, coolingRate);
+        }
+        if (cflTarget > 0) {
+            simulation.enableAdaptiveTimeStep(cflTarget, effectiveMinTimeStep(), effectiveMaxTimeStep());
+        }
+        if (sharedBarriers != null) {
+            room.shareBarriers(sharedBarriers);
+        } else {
+            for (int[] barrier : barriers) {
+                simulation.addBound(barrier[0], barrier[1], barrier[2], barrier[3], barrier[4], barrier[5]);
+            }
+        }
+        for (int[] source : sources) {
+            simulation.addSource(source[0], source[1], source[2]);
+        }
+        for (double[] wind : winds) {
+            simulation.addWind((int) wind[0], (int) wind[1], (int) wind[2], wind[3], wind[4], wind[5]);
+        }
+        return simulation;
+    }
+
+    double effectiveMinTimeStep() {
+        return minTimeStep > 0 ? minTimeStep : timeStep * SmokeSimulation.DEFAULT_MIN_STEP_FRACTION;
+    }
+
+    double effectiveMaxTimeStep() {
+        return maxTimeStep > 0 ? maxTimeStep : timeStep * SmokeSimulation.DEFAULT_MAX_STEP_MULTIPLE;
+    }
+
+    private static int frameFields(String value) {
+        int fields = 0;
+        for (String part : value.split(",")) {
+            switch (part.trim().toLowerCase(Locale.ROOT)) {
+                case "density":
+                    fields |= FrameRecorder.DENSITY;
+                    break;
+                case "velocity":
+                    fields |= FrameRecorder.VELOCITY;
+                    break;
+                case "temperature":
+                    fields |= FrameRecorder.TEMPERATURE;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown frame field: " + part);
+            }
+        }
+        return fields;
+    }
+
+    private static int[] ints(String value, int count, String separator) {
+        String[] parts = value.split(separator);
+        if (parts.length != count) {
+            throw new NumberFormatException(value);
+        }
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+
+    private static double[] doubles(String value, int count) {
+        String[] parts = value.split(",");
+        if (parts.length != count) {
+            throw new NumberFormatException(value);
+        }
+        double[] result = new double[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = Double.parseDouble(parts[i].trim());
+        }
+        return result;
+    }
+}
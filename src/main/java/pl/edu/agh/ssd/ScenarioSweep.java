@@ -0,0 +1,360 @@
+package pl.edu.agh.ssd;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Uruchamia wiele wariantów jednego scenariusza bez interfejsu graficznego, równolegle na ograniczonej puli wątków.
+ * <p>
+ * Scenariusz bazowy podaje się tak samo jak dla {@link HeadlessRunner} (opcje {@link ScenarioConfig}), a warianty
+ * opcjami {@code --vary nazwa=w1:w2:...} - symulowany jest każdy wariant iloczynu kartezjańskiego wartości.
+ * Wartość opcji {@code source}, {@code wind} i {@code barrier} zastępuje wszystkie takie elementy scenariusza bazowego.
+ * Jeśli warianty nie zmieniają rozmiaru siatki ani przeszkód, wszystkie symulacje korzystają z jednej maski
+ * przeszkód, zbudowanej raz i tylko czytanej.
+ * <p>
+ * Dla każdego wariantu zbierane są: całkowita masa dymu na końcu i jej maksimum oraz, dla każdej komórki
+ * {@code --probe}, czas symulacji ({@link SmokeSimulation#getSimulationTime()}), w którym gęstość dymu w komórce po raz pierwszy
+ * osiągnęła {@code --threshold}. Wyniki trafiają do pliku {@code runs.csv} w katalogu {@code --output},
+ * po jednym wierszu na wariant w kolejności wariantów. Każda symulacja liczy na jednym wątku (albo na
+ * {@code --threads} wątkach), a jednocześnie działa najwyżej {@code --parallel} symulacji.
+ */
+public class ScenarioSweep {
+
+    static final String USAGE = String.join(System.lineSeparator(),
+            "Sweep options (all other options describe the base scenario, see HeadlessRunner):",
+            "  --vary NAME=V1:V2:...      values of one scenario option to sweep (repeatable, cartesian product)",
+            "  --probe X,Y,Z              cell whose time to --threshold density is reported (repeatable)",
+            "  --threshold D              probe density threshold (default 1)",
+            "  --parallel N               simulations running at once (default: available processors)",
+            "  --output DIR               output directory for runs.csv (default sweep-output)");
+
+    /**
+     * Opcje scenariusza, których wartość zastępuje listę zamiast dodawać do niej element
+     */
+    private static final List<String> LIST_OPTIONS = Arrays.asList("source", "wind", "barrier");
+
+    /**
+     * Argumenty scenariusza bazowego
+     */
+    final List<String> baseArgs = new ArrayList<>();
+
+    /**
+     * Nazwy zmienianych opcji i ich wartości
+     */
+    final List<String> names = new ArrayList<>();
+    final List<String[]> values = new ArrayList<>();
+
+    /**
+     * Komórki pomiarowe {x, y, z}
+     */
+    final List<int[]> probes = new ArrayList<>();
+
+    double threshold = 1;
+    int parallel = Runtime.getRuntime().availableProcessors();
+    Path output = Paths.get("sweep-output");
+
+    /**
+     * Wyniki jednego wariantu
+     */
+    static final class Result {
+        final String[] parameters;
+        long steps;
+        double seconds;
+        double finalMass, peakMass;
+        long peakMassStep;
+
+        /**
+         * Czas symulacji osiągnięcia progu w komórkach pomiarowych, NaN gdy próg nie został osiągnięty
+         */
+        double[] probeTimes;
+
+        /**
+         * Komunikat błędu, gdy wariant nie mógł zostać policzony
+         */
+        String error;
+
+        Result(String[] parameters) {
+            this.parameters = parameters;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        ScenarioSweep sweep;
+        try {
+            sweep = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java -cp <classes> pl.edu.agh.ssd.ScenarioSweep [options]");
+            System.err.println(USAGE);
+            System.err.println(ScenarioConfig.USAGE);
+            System.exit(2);
+            return;
+        }
+        Files.createDirectories(sweep.output);
+        List<Result> results = sweep.run();
+        sweep.writeResults(results, sweep.output.resolve("runs.csv"));
+    }
+
+    /**
+     * Oddziela opcje przeglądu od opcji scenariusza bazowego i sprawdza wszystkie warianty
+     *
+     * @throws IllegalArgumentException przy błędnej opcji albo wariancie
+     */
+    static ScenarioSweep parse(String[] args) throws IOException {
+        ScenarioSweep sweep = new ScenarioSweep();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            boolean sweepOption = name.equals("--vary") || name.equals("--probe") || name.equals("--threshold")
+                    || name.equals("--parallel") || name.equals("--output");
+            if (!sweepOption) {
+                sweep.baseArgs.add(name);
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + name);
+            }
+            String value = args[++i];
+            try {
+                switch (name) {
+                    case "--vary":
+                        int separator = value.indexOf('=');
+                        if (separator <= 0 || separator == value.length() - 1) {
+                            throw new IllegalArgumentException("Expected --vary NAME=V1:V2:..., got: " + value);
+                        }
+                        sweep.names.add(value.substring(0, separator));
+                        sweep.values.add(value.substring(separator + 1).split(":"));
+                        break;
+                    case "--probe":
+                        String[] parts = value.split(",");
+                        if (parts.length != 3) {
+                            throw new NumberFormatException(value);
+                        }
+                        sweep.probes.add(new int[]{Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                                Integer.parseInt(parts[2].trim())});
+                        break;
+                    case "--threshold":
+                        sweep.threshold = Double.parseDouble(value);
+                        break;
+                    case "--parallel":
+                        sweep.parallel = Integer.parseInt(value);
+                        break;
+                    default:
+                        sweep.output = Paths.get(value);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+            }
+        }
+        if (sweep.parallel <= 0) {
+            throw new IllegalArgumentException("Invalid input values. Please check your parameters.");
+        }
+        // Błędne warianty zgłaszane są przed uruchomieniem którejkolwiek symulacji
+        for (int variant = 0; variant < sweep.variantCount(); variant++) {
+            ScenarioConfig config = sweep.config(variant);
+            for (int[] probe : sweep.probes) {
+                if (probe[0] < 0 || probe[0] >= config.width || probe[1] < 0 || probe[1] >= config.height
+                        || probe[2] < 0 || probe[2] >= config.depth) {
+                    throw new IllegalArgumentException("Probe " + probe[0] + "," + probe[1] + "," + probe[2]
+                            + " is outside the grid");
+                }
+            }
+        }
+        return sweep;
+    }
+
+    int variantCount() {
+        int count = 1;
+        for (String[] options : values) {
+            count = Math.multiplyExact(count, options.length);
+        }
+        return count;
+    }
+
+    /**
+     * Wartości zmienianych opcji wariantu - ostatnia opcja zmienia się najszybciej
+     */
+    String[] parameters(int variant) {
+        String[] parameters = new String[names.size()];
+        for (int option = names.size() - 1; option >= 0; option--) {
+            String[] options = values.get(option);
+            parameters[option] = options[variant % options.length];
+            variant /= options.length;
+        }
+        return parameters;
+    }
+
+    /**
+     * Scenariusz wariantu: scenariusz bazowy ze zmienionymi opcjami
+     */
+    ScenarioConfig config(int variant) throws IOException {
+        ScenarioConfig config = ScenarioConfig.parse(baseArgs.toArray(new String[0]));
+        String[] parameters = parameters(variant);
+        for (int option = 0; option < names.size(); option++) {
+            String name = names.get(option);
+            if (name.equals("scenario") || name.equals("output") || name.equals("restore")) {
+                throw new IllegalArgumentException("Option cannot be swept: " + name);
+            }
+            if (LIST_OPTIONS.contains(name)) {
+                config.sources.removeIf(source -> name.equals("source"));
+                config.winds.removeIf(wind -> name.equals("wind"));
+                config.barriers.removeIf(barrier -> name.equals("barrier"));
+            }
+            config.set(name, parameters[option]);
+        }
+        config.validate();
+        return config;
+    }
+
+    /**
+     * Uruchamia wszystkie warianty i czeka na ich wyniki
+     */
+    List<Result> run() throws IOException {
+        int count = variantCount();
+        boolean shareBarriers = !names.contains("size") && !names.contains("barrier");
+        boolean[] barriers = null;
+        if (shareBarriers) {
+            // Maska przeszkód jest taka sama we wszystkich wariantach - budujemy ją raz na siatce scenariusza bazowego
+            SmokeSimulation base = config(0).createSimulation();
+            barriers = base.room.isBarrier;
+            base.shutdown();
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallel, count));
+        List<Future<Result>> futures = new ArrayList<>();
+        try {
+            for (int variant = 0; variant < count; variant++) {
+                ScenarioConfig config = config(variant);
+                String[] parameters = parameters(variant);
+                boolean[] sharedBarriers = barriers;
+                int number = variant;
+                futures.add(pool.submit(() -> {
+                    Result result = run(config, parameters, sharedBarriers);
+                    synchronized (System.out) {
+                        System.out.printf(Locale.ROOT, "run %d/%d %s: %s%n", number + 1, count, String.join(" ", parameters),
+                                result.error != null ? result.error : String.format(Locale.ROOT, "%.2f s", result.seconds));
+                    }
+                    return result;
+                }));
+            }
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for sweep runs", e);
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Sweep run failed", e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Symuluje jeden wariant i zbiera jego wyniki
+     */
+    Result run(ScenarioConfig config, String[] parameters, boolean[] sharedBarriers) {
+        Result result = new Result(parameters);
+        result.probeTimes = new double[probes.size()];
+        Arrays.fill(result.probeTimes, Double.NaN);
+        SmokeSimulation simulation;
+        try {
+            simulation = config.createSimulation(sharedBarriers);
+        } catch (RuntimeException e) {
+            result.error = e.toString();
+            return result;
+        }
+        try {
+            SmokeGrid room = simulation.room;
+            int[] probeCells = new int[probes.size()];
+            for (int probe = 0; probe < probeCells.length; probe++) {
+                int[] cell = probes.get(probe);
+                probeCells[probe] = room.index(cell[0], cell[1], cell[2]);
+            }
+            int pending = probeCells.length;
+            long start = System.nanoTime();
+            for (int step = 1; config.duration > 0 || step <= config.steps; step++) {
+                if (config.duration > 0) {
+                    if (!simulation.stepTowards(config.duration)) {
+                        break;
+                    }
+                } else {
+                    simulation.update();
+                }
+                double mass = HeadlessRunner.totalDensity(room);
+                if (mass > result.peakMass) {
+                    result.peakMass = mass;
+                    result.peakMassStep = step;
+                }
+                result.finalMass = mass;
+                for (int probe = 0; probe < probeCells.length && pending > 0; probe++) {
+                    if (Double.isNaN(result.probeTimes[probe]) && room.density.get(probeCells[probe]) >= threshold) {
+                        result.probeTimes[probe] = simulation.getSimulationTime();
+                        pending--;
+                    }
+                }
+                result.steps = step;
+            }
+            result.seconds = (System.nanoTime() - start) / 1e9;
+        } catch (RuntimeException e) {
+            result.error = e.toString();
+        } finally {
+            simulation.shutdown();
+        }
+        return result;
+    }
+
+    /**
+     * Zapisuje wyniki wariantów jako CSV
+     */
+    void writeResults(List<Result> results, Path file) throws IOException {
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            List<String> header = new ArrayList<>();
+            header.add("run");
+            for (String name : names) {
+                header.add(name);
+            }
+            header.addAll(Arrays.asList("steps", "seconds", "final_mass", "peak_mass", "peak_mass_step"));
+            for (int[] probe : probes) {
+                header.add("time_to_threshold_" + probe[0] + "_" + probe[1] + "_" + probe[2]);
+            }
+            header.add("error");
+            csv.println(String.join(",", header));
+            for (int run = 0; run < results.size(); run++) {
+                Result result = results.get(run);
+                StringBuilder line = new StringBuilder().append(run + 1);
+                for (String parameter : result.parameters) {
+                    line.append(",\"").append(parameter).append('"');
+                }
+                line.append(String.format(Locale.ROOT, ",%d,%.3f,%.17g,%.17g,%d", result.steps, result.seconds,
+                        result.finalMass, result.peakMass, result.peakMassStep));
+                for (double time : result.probeTimes) {
+                    line.append(',');
+                    if (!Double.isNaN(time)) {
+                        line.append(String.format(Locale.ROOT, "%.6g", time));
+                    }
+                }
+                line.append(',');
+                if (result.error != null) {
+                    line.append('"').append(result.error.replace('"', '\'')).append('"');
+                }
+                csv.println(line);
+            }
+        }
+    }
+}
@@ -0,0 +1,578 @@
+package pl.edu.agh.ssd;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Punkt kontrolny symulacji - binarny zapis pełnego stanu {@link SmokeSimulation}, z którego można wznowić
+ * obliczenia z bitowo identycznym wynikiem.
+ * <p>
+ * Plik zawiera parametry symulacji i solvera ciśnienia, wszystkie pola siatki (razem z polami "prev", ciśnieniem
+ * i warstwą duchów) w ich własnej precyzji, maski przeszkód, źródeł i wiatru (jeden bajt na komórkę) oraz stan
+ * {@link ActiveRegion}. Liczby zapisywane są w kolejności little-endian. Plik może być skompresowany GZIP-em -
+ * odczyt rozpoznaje to sam. Nie są zapisywane: liczba wątków, miejsce przechowywania pól i pomiary.
+ * <p>
+ * Zapis bez zatrzymywania symulacji odbywa się w dwóch etapach: {@link #capture} kopiuje stan do pamięci
+ * w czasie porównywalnym z jednym przejściem po polach, a {@link #write(Path, boolean)} (np. w osobnym wątku)
+ * zapisuje kopię na dysk, w czasie gdy symulacja liczy dalej. Dla siatek większych niż sterta
+ * {@link #write(SmokeSimulation, Path, boolean)} zapisuje stan bezpośrednio z pól, bez kopii w pamięci.
+ * Plik zapisywany jest najpierw pod nazwą tymczasową i przenoszony na miejsce docelowe dopiero po zapisaniu
+ * całości, więc przerwany zapis nie niszczy poprzedniego punktu kontrolnego.
+ */
+public final class SimulationCheckpoint {
+
+    /**
+     * Znacznik początku pliku ("SMKC") i wersja formatu
+     */
+    private static final int MAGIC = 0x534D4B43;
+    private static final int VERSION = 4;
+
+    /**
+     * Wersja formatu sprzed zapisu parametrów temperatury - odczytywana z wyłączonym transportem temperatury
+     */
+    private static final int VERSION_WITHOUT_TEMPERATURE = 1;
+
+    /**
+     * Wersja formatu sprzed zapisu czasu symulacji i adaptacyjnego kroku - odczytywana ze stałym krokiem,
+     * a czas symulacji to liczba kroków razy krok
+     */
+    private static final int VERSION_WITHOUT_ADAPTIVE_STEP = 2;
+
+    /**
+     * Wersja formatu, w której obie projekcje kroku dzieliły jedno pole ciśnienia - ciśnienie projekcji pól "prev"
+     * odczytywane jest jako kopia wspólnego pola
+     */
+    private static final int VERSION_SHARED_PRESSURE = 3;
+
+    /**
+     * Bity masek w bajcie komórki
+     */
+    private static final int BARRIER = 1, SOURCE = 2, WIND_SOURCE = 4;
+
+    /**
+     * Rozmiar bufora przy kopiowaniu pól i rozmiar fragmentów kopii w pamięci
+     */
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int CHUNK_SIZE = 1 << 24;
+
+    /**
+     * Kopia stanu symulacji w pamięci
+     */
+    private final List<ByteBuffer> chunks;
+
+    private SimulationCheckpoint(List<ByteBuffer> chunks) {
+        this.chunks = chunks;
+    }
+
+    /**
+     * Kopiuje stan symulacji do pamięci. Wywoływać pomiędzy krokami symulacji - kopia nie zależy od dalszych zmian pól.
+     */
+    public static SimulationCheckpoint capture(SmokeSimulation simulation) {
+        MemoryChannel memory = new MemoryChannel();
+        try {
+            serialize(simulation, memory);
+            memory.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Writing to memory cannot fail", e);
+        }
+        return new SimulationCheckpoint(memory.chunks);
+    }
+
+    /**
+     * Zapisuje skopiowany stan do pliku. Można wywołać z innego wątku niż wątek symulacji.
+     *
+     * @param compress czy kompresować plik GZIP-em
+     */
+    public void write(Path file, boolean compress) throws IOException {
+        writeAtomically(file, compress, channel -> {
+            for (ByteBuffer chunk : chunks) {
+                ByteBuffer data = chunk.duplicate();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+        });
+    }
+
+    /**
+     * Liczba bajtów stanu przed kompresją
+     */
+    public long size() {
+        long size = 0;
+        for (ByteBuffer chunk : chunks) {
+            size += chunk.remaining();
+        }
+        return size;
+    }
+
+    /**
+     * Zapisuje stan symulacji bezpośrednio z pól do pliku, bez kopii w pamięci. Symulacja nie może w tym czasie
+     * wykonywać kroków.
+     *
+     * @param compress czy kompresować plik GZIP-em
+     */
+    public static void write(SmokeSimulation simulation, Path file, boolean compress) throws IOException {
+        writeAtomically(file, compress, channel -> serialize(simulation, channel));
+    }
+
+    /**
+     * Odtwarza symulację z pliku punktu kontrolnego z polami na stercie
+     *
+     * @param threads liczba wątków solvera
+     */
+    public static SmokeSimulation read(Path file, int threads) throws IOException {
+        return read(file, threads, FieldStorage.HEAP, null);
+    }
+
+    /**
+     * Odtwarza symulację z pliku punktu kontrolnego. Kolejne kroki dają te same wyniki, co kroki symulacji,
+     * z której zapisano punkt kontrolny.
+     *
+     * @param threads        liczba wątków solvera
+     * @param storage        miejsce przechowywania pól odtworzonej siatki
+     * @param spillDirectory katalog na pliki pól przy {@link FieldStorage#MAPPED}
+     * @throws IOException przy błędzie odczytu, uszkodzonym albo obciętym pliku
+     */
+    public static SmokeSimulation read(Path file, int threads, FieldStorage storage, Path spillDirectory) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(2);
+            channel.read(magic, 0);
+            boolean compressed = magic.get(0) == (byte) 0x1f && magic.get(1) == (byte) 0x8b;
+            if (compressed) {
+                InputStream in = new GZIPInputStream(Channels.newInputStream(channel), BUFFER_SIZE);
+                return deserialize(Channels.newChannel(in), threads, storage, spillDirectory);
+            }
+            return deserialize(channel, threads, storage, spillDirectory);
+        }
+    }
+
+    private static void serialize(SmokeSimulation simulation, WritableByteChannel channel) throws IOException {
+        SmokeGrid room = simulation.room;
+        PressureSolver solver = simulation.pressureSolver;
+        Output out = new Output(channel);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(room.gridSize[0]);
+        out.putInt(room.gridSize[1]);
+        out.putInt(room.gridSize[2]);
+        out.putString(room.precision.name());
+        out.putLong(simulation.stepCount);
+
+        out.putDouble(simulation.baseTimeStep);
+        out.putDouble(simulation.defaultSourceVelocity);
+        out.putDouble(simulation.defaultSourceDensity);
+        out.putDouble(simulation.diffRate);
+        out.putDouble(simulation.decayRate);
+        out.putString(simulation.relaxationScheme.name());
+        out.putByte(simulation.vectorKernels ? 1 : 0);
+        out.putByte(simulation.temperatureEnabled ? 1 : 0);
+        out.putDouble(simulation.ambientTemperature);
+        out.putDouble(simulation.sourceTemperature);
+        out.putDouble(simulation.buoyancy);
+        out.putDouble(simulation.smokeWeight);
+        out.putDouble(simulation.coolingRate);
+        out.putDouble(simulation.simulationTime);
+        out.putByte(simulation.adaptiveTimeStep ? 1 : 0);
+        out.putDouble(simulation.cflTarget);
+        out.putDouble(simulation.minTimeStep);
+        out.putDouble(simulation.maxTimeStep);
+
+        out.putString(solver.getName());
+        out.putDouble(solver.tolerance);
+        out.putInt(solver.maxIterations);
+        out.putByte(solver.warmStart ? 1 : 0);
+        out.putInt(solver.lastIterations);
+        out.putDouble(solver.lastResidual);
+        out.putLong(solver.totalIterations);
+
+        for (GridField field : fields(room)) {
+            out.putField(field, room.precision);
+        }
+        out.putField(room.prevPressure, room.precision);
+        for (int i = 0; i < room.density.length; i++) {
+            out.putByte((room.isBarrier[i] ? BARRIER : 0) | (room.isSource[i] ? SOURCE : 0)
+                    | (room.isWindSource[i] ? WIND_SOURCE : 0));
+        }
+
+        ActiveRegion active = room.active;
+        out.putByte(active != null ? 1 : 0);
+        if (active != null) {
+            out.putDouble(active.threshold);
+            out.putByte(active.dirty ? 1 : 0);
+            for (boolean processed : active.processed) {
+                out.putByte(processed ? 1 : 0);
+            }
+        }
+        out.flush();
+    }
+
+    private static SmokeSimulation deserialize(ReadableByteChannel channel, int threads, FieldStorage storage,
+                                               Path spillDirectory) throws IOException {
+        Input in = new Input(channel);
+        if (in.getInt() != MAGIC) {
+            throw new IOException("Not a simulation checkpoint");
+        }
+        int version = in.getInt();
+        if (version != VERSION && version != VERSION_SHARED_PRESSURE && version != VERSION_WITHOUT_ADAPTIVE_STEP
+                && version != VERSION_WITHOUT_TEMPERATURE) {
+            throw new IOException("Unsupported checkpoint version " + version);
+        }
+        int X = in.getInt();
+        int Y = in.getInt();
+        int Z = in.getInt();
+        FieldPrecision precision = in.getEnum(FieldPrecision.class);
+        long stepCount = in.getLong();
+        if (X < 3 || Y < 3 || Z < 3) {
+            throw new IOException("Invalid grid size in checkpoint: " + X + "x" + Y + "x" + Z);
+        }
+
+        double timeStep = in.getDouble();
+        double sourceVelocity = in.getDouble();
+        double sourceDensity = in.getDouble();
+        double diffRate = in.getDouble();
+        double decayRate = in.getDouble();
+        RelaxationScheme relaxationScheme = in.getEnum(RelaxationScheme.class);
+        boolean vectorKernels = in.getByte() != 0;
+        boolean temperatureEnabled = false;
+        double[] temperature = {SmokeGrid.AMBIENT_TEMPERATURE, SmokeGrid.AMBIENT_TEMPERATURE, 0, 0, 0};
+        if (version != VERSION_WITHOUT_TEMPERATURE) {
+            temperatureEnabled = in.getByte() != 0;
+            for (int i = 0; i < temperature.length; i++) {
+                temperature[i] = in.getDouble();
+            }
+        }
+        double simulationTime = stepCount * timeStep;
+        boolean adaptiveTimeStep = false;
+        double[] adaptiveStep = {SmokeSimulation.DEFAULT_CFL_TARGET, timeStep, timeStep};
+        if (version == VERSION || version == VERSION_SHARED_PRESSURE) {
+            simulationTime = in.getDouble();
+            adaptiveTimeStep = in.getByte() != 0;
+            for (int i = 0; i < adaptiveStep.length; i++) {
+                adaptiveStep[i] = in.getDouble();
+            }
+        }
+
+        PressureSolver solver;
+        try {
+            solver = PressureSolver.create(in.getString());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid checkpoint: " + e.getMessage());
+        }
+        solver.tolerance = in.getDouble();
+        solver.maxIterations = in.getInt();
+        solver.warmStart = in.getByte() != 0;
+        solver.lastIterations = in.getInt();
+        solver.lastResidual = in.getDouble();
+        solver.totalIterations = in.getLong();
+
+        SmokeGrid room = new SmokeGrid(X, Y, Z, precision, storage, spillDirectory);
+        for (GridField field : fields(room)) {
+            in.getField(field, precision);
+        }
+        if (version == VERSION) {
+            in.getField(room.prevPressure, precision);
+        } else {
+            room.prevPressure.copyFrom(room.pressure);
+        }
+        for (int i = 0; i < room.density.length; i++) {
+            int masks = in.getByte();
+            room.isBarrier[i] = (masks & BARRIER) != 0;
+            room.isSource[i] = (masks & SOURCE) != 0;
+            room.isWindSource[i] = (masks & WIND_SOURCE) != 0;
+        }
+        room.rebuildGeometry();
+
+        if (in.getByte() != 0) {
+            ActiveRegion active = new ActiveRegion(room, in.getDouble());
+            active.dirty = in.getByte() != 0;
+            for (int b = 0; b < active.processed.length; b++) {
+                active.processed[b] = in.getByte() != 0;
+            }
+            active.updateRows();
+            if (temperatureEnabled) {
+                active.ambientTemperature = temperature[0];
+            }
+            room.active = active;
+        }
+
+        SmokeSimulation simulation = new SmokeSimulation(room, timeStep, sourceVelocity, sourceDensity, diffRate, decayRate, threads);
+        simulation.stepCount = stepCount;
+        // Pola ustawiane bezpośrednio - enableTemperature oznaczyłoby geometrię jako zmienioną
+        simulation.temperatureEnabled = temperatureEnabled;
+        simulation.ambientTemperature = temperature[0];
+        simulation.sourceTemperature = temperature[1];
+        simulation.buoyancy = temperature[2];
+        simulation.smokeWeight = temperature[3];
+        simulation.coolingRate = temperature[4];
+        simulation.simulationTime = simulationTime;
+        simulation.adaptiveTimeStep = adaptiveTimeStep;
+        simulation.cflTarget = adaptiveStep[0];
+        simulation.minTimeStep = adaptiveStep[1];
+        simulation.maxTimeStep = adaptiveStep[2];
+        simulation.setRelaxationScheme(relaxationScheme);
+        // Kernele wektorowe dają te same wyniki co skalarne, więc bez modułu Vector API symulacja liczy skalarnie
+        simulation.setVectorKernels(vectorKernels && SmokeSimulation.VECTOR_API_AVAILABLE);
+        simulation.setPressureSolver(solver);
+        return simulation;
+    }
+
+    /**
+     * Wszystkie pola siatki w kolejności zapisu
+     */
+    private static GridField[] fields(SmokeGrid room) {
+        return new GridField[]{room.velocityX, room.velocityY, room.velocityZ,
+                room.prevVelocityX, room.prevVelocityY, room.prevVelocityZ,
+                room.temperature, room.prevTemperature, room.density, room.prevDensity,
+                room.pressure, room.divergence};
+    }
+
+    private interface ChannelWriter {
+        void write(WritableByteChannel channel) throws IOException;
+    }
+
+    /**
+     * Zapisuje plik pod nazwą tymczasową w tym samym katalogu i przenosi go na miejsce docelowe
+     */
+    private static void writeAtomically(Path file, boolean compress, ChannelWriter writer) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                if (compress) {
+                    // Pola zawierają głównie zera i wolno zmieniające się wartości - najszybszy poziom kompresji
+                    // zmniejsza plik prawie tak samo jak domyślny, a działa kilka razy szybciej
+                    try (OutputStream out = new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE) {
+                        {
+                            def.setLevel(Deflater.BEST_SPEED);
+                        }
+                    }) {
+                        writer.write(Channels.newChannel(out));
+                    }
+                } else {
+                    writer.write(channel);
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Zapis liczb little-endian do kanału przez bufor
+     */
+    private static final class Output {
+
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        Output(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        void putByte(int value) throws IOException {
+            ensure(1);
+            buffer.put((byte) value);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            ensure(Double.BYTES);
+            buffer.putDouble(value);
+        }
+
+        void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            ensure(bytes.length);
+            buffer.put(bytes);
+        }
+
+        void putField(GridField field, FieldPrecision precision) throws IOException {
+            int bytes = precision == FieldPrecision.FLOAT ? Float.BYTES : Double.BYTES;
+            for (int i = 0; i < field.length; ) {
+                ensure(bytes);
+                // Tyle komórek, ile mieści się w buforze - bez sprawdzania miejsca przy każdej liczbie
+                int to = Math.min(field.length, i + buffer.remaining() / bytes);
+                if (bytes == Float.BYTES) {
+                    for (; i < to; i++) {
+                        buffer.putFloat((float) field.get(i));
+                    }
+                } else {
+                    for (; i < to; i++) {
+                        buffer.putDouble(field.get(i));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Odczyt liczb little-endian z kanału przez bufor
+     */
+    private static final class Input {
+
+        private final ReadableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        Input(ReadableByteChannel channel) {
+            this.channel = channel;
+            buffer.flip();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Checkpoint file is truncated");
+                }
+            }
+            buffer.flip();
+        }
+
+        int getByte() throws IOException {
+            ensure(1);
+            return buffer.get() & 0xff;
+        }
+
+        int getInt() throws IOException {
+            ensure(Integer.BYTES);
+            return buffer.getInt();
+        }
+
+        long getLong() throws IOException {
+            ensure(Long.BYTES);
+            return buffer.getLong();
+        }
+
+        double getDouble() throws IOException {
+            ensure(Double.BYTES);
+            return buffer.getDouble();
+        }
+
+        String getString() throws IOException {
+            int length = getInt();
+            if (length < 0 || length > 256) {
+                throw new IOException("Invalid string length in checkpoint: " + length);
+            }
+            ensure(length);
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        <E extends Enum<E>> E getEnum(Class<E> type) throws IOException {
+            String name = getString();
+            try {
+                return Enum.valueOf(type, name);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid " + type.getSimpleName() + " in checkpoint: " + name);
+            }
+        }
+
+        void getField(GridField field, FieldPrecision precision) throws IOException {
+            int bytes = precision == FieldPrecision.FLOAT ? Float.BYTES : Double.BYTES;
+            for (int i = 0; i < field.length; ) {
+                ensure(bytes);
+                int to = Math.min(field.length, i + buffer.remaining() / bytes);
+                if (bytes == Float.BYTES) {
+                    for (; i < to; i++) {
+                        field.set(i, buffer.getFloat());
+                    }
+                } else {
+                    for (; i < to; i++) {
+                        field.set(i, buffer.getDouble());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Kanał zbierający zapisane bajty we fragmentach na stercie
+     */
+    private static final class MemoryChannel implements WritableByteChannel {
+
+        final List<ByteBuffer> chunks = new ArrayList<>();
+        private ByteBuffer current;
+
+        @Override
+        public int write(ByteBuffer source) {
+            int written = source.remaining();
+            while (source.hasRemaining()) {
+                if (current == null || !current.hasRemaining()) {
+                    finishChunk();
+                    current = ByteBuffer.allocate(CHUNK_SIZE);
+                }
+                int count = Math.min(source.remaining(), current.remaining());
+                ByteBuffer slice = source.slice();
+                slice.limit(count);
+                current.put(slice);
+                source.position(source.position() + count);
+            }
+            return written;
+        }
+
+        private void finishChunk() {
+            if (current != null) {
+                current.flip();
+                chunks.add(current);
+                current = null;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            finishChunk();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package pl.edu.agh.ssd;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Pomiary kroku {@link SmokeSimulation#update()}: czas każdej fazy, liczba przetworzonych komórek,
+ * iteracje solvera ciśnienia i zaalokowane bajty.
+ * <p>
+ * Pomiary są wyłączone, dopóki obiekt nie zostanie przekazany do {@link SmokeSimulation#setMetrics}.
+ * Bez niego symulacja wykonuje tylko porównania z null, więc koszt wyłączonych pomiarów jest pomijalny.
+ * <p>
+ * Czas fazy nie obejmuje warunków brzegowych i odbicia od przeszkód wywoływanych w jej trakcie - są one
+ * liczone osobno jako {@link Phase#BOUNDARY}. Komórki to komórki wewnętrzne przetworzone przez kernele fazy
+ * (jedno wywołanie kernela to wszystkie komórki wewnętrzne siatki). Bajty alokacji mierzone są tylko dla wątku
+ * wywołującego {@code update()}, bez wątków roboczych {@link SlabExecutor}.
+ */
+public class SimulationMetrics {
+
+    /**
+     * Fazy kroku symulacji
+     */
+    public enum Phase {
+        DIFFUSE, PROJECT, ADVECT, FADE, BOUNDARY, COPY,
+        /**
+         * Wyznaczanie aktywnych bloków ({@link ActiveRegion}), tylko gdy jest włączone
+         */
+        ACTIVE_REGION,
+        /**
+         * Wybór adaptacyjnego kroku czasowego (redukcja największej prędkości), tylko gdy jest włączony
+         */
+        TIME_STEP
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long[] nanos = new long[PHASES.length];
+    private final long[] cells = new long[PHASES.length];
+    private long steps;
+    private long stepNanos;
+    private long pressureIterations;
+    private long allocatedBytes;
+
+    private long phaseStart;
+    private long boundaryAtPhaseStart;
+    private long stepStart;
+    private long allocatedAtStepStart;
+
+    /**
+     * Zapis CSV co {@link #csvInterval} kroków, null gdy wyłączony
+     */
+    private PrintWriter csv;
+    private int csvInterval;
+
+    private final com.sun.management.ThreadMXBean threads = allocationCounter();
+
+    /**
+     * Włącza zapis skumulowanych pomiarów do CSV co podaną liczbę kroków
+     */
+    public void setCsvOutput(PrintWriter csv, int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("CSV interval must be positive: " + interval);
+        }
+        this.csv = csv;
+        this.csvInterval = interval;
+        csv.println(csvHeader());
+    }
+
+    void beginStep() {
+        allocatedAtStepStart = allocatedBytes();
+        stepStart = System.nanoTime();
+    }
+
+    void endStep(int solverIterations) {
+        stepNanos += System.nanoTime() - stepStart;
+        long allocated = allocatedBytes();
+        if (allocated >= 0) {
+            allocatedBytes += allocated - allocatedAtStepStart;
+        }
+        pressureIterations += solverIterations;
+        steps++;
+        if (csv != null && steps % csvInterval == 0) {
+            csv.println(snapshot().toCsv());
+            csv.flush();
+        }
+    }
+
+    void beginPhase() {
+        boundaryAtPhaseStart = nanos[Phase.BOUNDARY.ordinal()];
+        phaseStart = System.nanoTime();
+    }
+
+    /**
+     * Kończy fazę rozpoczętą w {@link #beginPhase()}, odejmując czas warunków brzegowych zmierzony w jej trakcie
+     *
+     * @param kernels liczba wywołań kernela na wszystkich komórkach wewnętrznych
+     */
+    void endPhase(Phase phase, int kernels, long interiorCells) {
+        long boundary = nanos[Phase.BOUNDARY.ordinal()] - boundaryAtPhaseStart;
+        nanos[phase.ordinal()] += System.nanoTime() - phaseStart - boundary;
+        cells[phase.ordinal()] += kernels * interiorCells;
+    }
+
+    void addBoundary(long start) {
+        nanos[Phase.BOUNDARY.ordinal()] += System.nanoTime() - start;
+    }
+
+    /**
+     * @return niezmienna kopia bieżących pomiarów
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(steps, stepNanos, nanos.clone(), cells.clone(), pressureIterations, allocatedBytes);
+    }
+
+    public void reset() {
+        Arrays.fill(nanos, 0);
+        Arrays.fill(cells, 0);
+        steps = 0;
+        stepNanos = 0;
+        pressureIterations = 0;
+        allocatedBytes = 0;
+    }
+
+    private long allocatedBytes() {
+        return threads == null ? -1 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (bean.isThreadAllocatedMemorySupported()) {
+                bean.setThreadAllocatedMemoryEnabled(true);
+                return bean;
+            }
+        }
+        return null;
+    }
+
+    static String csvHeader() {
+        StringBuilder header = new StringBuilder("steps,step_nanos");
+        for (Phase phase : PHASES) {
+            String name = phase.name().toLowerCase(Locale.ROOT);
+            header.append(',').append(name).append("_nanos");
+            header.append(',').append(name).append("_cells");
+        }
+        return header.append(",pressure_iterations,allocated_bytes").toString();
+    }
+
+    /**
+     * Skumulowane pomiary od utworzenia (lub {@link #reset()}) obiektu
+     */
+    public static final class Snapshot {
+        private final long steps;
+        private final long stepNanos;
+        private final long[] nanos;
+        private final long[] cells;
+        private final long pressureIterations;
+        private final long allocatedBytes;
+
+        Snapshot(long steps, long stepNanos, long[] nanos, long[] cells, long pressureIterations, long allocatedBytes) {
+            this.steps = steps;
+            this.stepNanos = stepNanos;
+            this.nanos = nanos;
+            this.cells = cells;
+            this.pressureIterations = pressureIterations;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public long getSteps() {
+            return steps;
+        }
+
+        /**
+         * @return łączny czas wywołań {@code update()}
+         */
+        public long getStepNanos() {
+            return stepNanos;
+        }
+
+        public long getNanos(Phase phase) {
+            return nanos[phase.ordinal()];
+        }
+
+        public long getCells(Phase phase) {
+            return cells[phase.ordinal()];
+        }
+
+        public long getPressureIterations() {
+            return pressureIterations;
+        }
+
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        String toCsv() {
+            StringBuilder row = new StringBuilder().append(steps).append(',').append(stepNanos);
+            for (Phase phase : PHASES) {
+                row.append(',').append(getNanos(phase)).append(',').append(getCells(phase));
+            }
+            return row.append(',').append(pressureIterations).append(',').append(allocatedBytes).toString();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(String.format(Locale.ROOT, "%d steps, %.3f ms/step",
+                    steps, steps == 0 ? 0 : stepNanos / 1e6 / steps));
+            for (Phase phase : PHASES) {
+                text.append(String.format(Locale.ROOT, ", %s %.3f ms", phase.name().toLowerCase(Locale.ROOT),
+                        steps == 0 ? 0 : getNanos(phase) / 1e6 / steps));
+            }
+            return text.append(String.format(Locale.ROOT, ", %d pressure iterations, %d bytes allocated",
+                    pressureIterations, allocatedBytes)).toString();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package pl.edu.agh.ssd;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Wątek wykonujący kroki {@link SmokeSimulation} niezależnie od wątku rysującego (np. wątku JavaFX).
+ * <p>
+ * Po każdym kroku wątek kopiuje gęstość dymu do {@link DensitySnapshot} i publikuje ją, a wątek rysujący odbiera
+ * najnowszą kopię przez {@link #takeSnapshot()} bez czekania. Kopie krążą w puli trzech buforów (potrójne
+ * buforowanie): jeden wypełnia wątek symulacji, jeden czeka na odebranie, a jeden jest rysowany. Kopia, której
+ * wątek rysujący nie zdążył odebrać, jest zastępowana nowszą, więc tempo symulacji i liczba klatek na sekundę
+ * nie zależą od siebie.
+ * <p>
+ * Symulacji nie wolno zmieniać z innych wątków w trakcie kroku - zmiany geometrii i źródeł przekazuje się przez
+ * {@link #execute}, a wątek symulacji wykonuje je pomiędzy krokami.
+ */
+public class SimulationThread {
+
+    private final SmokeSimulation simulation;
+
+    private final Thread thread;
+
+    /**
+     * Najnowsza opublikowana kopia (null, gdy wątek rysujący już ją odebrał) i bufor zwrócony przez wątek
+     * rysujący do ponownego użycia
+     */
+    private final AtomicReference<DensitySnapshot> published = new AtomicReference<>();
+    private final AtomicReference<DensitySnapshot> spare = new AtomicReference<>();
+
+    /**
+     * Kopia rysowana obecnie przez wątek rysujący, używana tylko przez ten wątek
+     */
+    private DensitySnapshot front;
+
+    /**
+     * Zmiany symulacji zlecone z innych wątków
+     */
+    private final Queue<Consumer<SmokeSimulation>> commands = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Minimalny odstęp pomiędzy początkami kroków w nanosekundach, 0 - bez ograniczenia
+     */
+    private volatile long stepPeriodNanos;
+
+    private volatile boolean paused;
+    private volatile boolean running = true;
+
+    /**
+     * Wyjątek, który zatrzymał wątek symulacji, null dopóki wątek działa poprawnie
+     */
+    private volatile Throwable failure;
+
+    /**
+     * Tworzy i uruchamia wątek symulacji
+     */
+    public SimulationThread(SmokeSimulation simulation) {
+        this.simulation = simulation;
+        this.thread = new Thread(this::run, "smoke-simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Ogranicza tempo symulacji do podanej liczby kroków na sekundę (0 - tak szybko, jak pozwala procesor)
+     */
+    public void setMaxStepsPerSecond(double stepsPerSecond) {
+        if (!(stepsPerSecond >= 0)) {
+            throw new IllegalArgumentException("Step rate must not be negative: " + stepsPerSecond);
+        }
+        this.stepPeriodNanos = stepsPerSecond == 0 ? 0 : (long) (1e9 / stepsPerSecond);
+    }
+
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Zleca zmianę symulacji (np. dodanie źródła), wykonywaną w wątku symulacji przed następnym krokiem
+     */
+    public void execute(Consumer<SmokeSimulation> command) {
+        commands.add(command);
+    }
+
+    /**
+     * Odbiera najnowszą kopię gęstości. Nie czeka na wątek symulacji.
+     *
+     * @return kopia opublikowana od poprzedniego wywołania albo null, gdy nie ma nowej. Poprzednio odebrana kopia
+     * wraca do puli i nie wolno jej już używać.
+     */
+    public DensitySnapshot takeSnapshot() {
+        DensitySnapshot latest = published.getAndSet(null);
+        if (latest == null) {
+            return null;
+        }
+        if (front != null) {
+            spare.set(front);
+        }
+        front = latest;
+        return latest;
+    }
+
+    /**
+     * Wyjątek, który zatrzymał wątek symulacji, albo null
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Zatrzymuje wątek symulacji po bieżącym kroku, czeka na jego zakończenie i zwalnia wątki solvera
+     */
+    public void shutdown() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        simulation.shutdown();
+    }
+
+    private void run() {
+        SmokeGrid room = simulation.room;
+        DensitySnapshot back = null;
+        long nextStep = System.nanoTime();
+        try {
+            while (running) {
+                Consumer<SmokeSimulation> command;
+                while ((command = commands.poll()) != null) {
+                    command.accept(simulation);
+                }
+                if (paused) {
+                    TimeUnit.MILLISECONDS.sleep(10);
+                    nextStep = System.nanoTime();
+                    continue;
+                }
+                long period = stepPeriodNanos;
+                if (period > 0) {
+                    long wait = nextStep - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    nextStep = Math.max(nextStep + period, System.nanoTime() - period);
+                }
+
+                simulation.update();
+
+                if (back == null) {
+                    back = spare.getAndSet(null);
+                }
+                if (back == null) {
+                    back = new DensitySnapshot(room.gridSize[0], room.gridSize[1], room.gridSize[2]);
+                }
+                back.copyFrom(room, simulation.getStepCount());
+                // Nieodebrana poprzednia kopia staje się buforem następnej
+                back = published.getAndSet(back);
+            }
+        } catch (InterruptedException e) {
+            // shutdown() przerywa oczekiwanie pomiędzy krokami
+        } catch (Throwable e) {
+            failure = e;
+        }
+    }
+}
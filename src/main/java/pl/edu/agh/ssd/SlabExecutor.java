@@ -0,0 +1,173 @@
+package pl.edu.agh.ssd;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Wykonawca pętli solvera dzielący zakres indeksów (zwykle płaszczyzn osi X) na plastry
+ * i uruchamiający je równolegle na {@link ForkJoinPool}.
+ * <p>
+ * Przy jednym wątku plastry nie są tworzone - zadanie wykonuje się od razu na wątku wywołującym.
+ */
+class SlabExecutor {
+
+    /**
+     * Praca wykonywana na plastrze [from, to)
+     */
+    interface SlabTask {
+        void run(int from, int to);
+    }
+
+    /**
+     * Praca na plastrze [from, to) zwracająca częściową sumę
+     */
+    interface SlabSum {
+        double run(int from, int to);
+    }
+
+    /**
+     * Praca na plastrze [from, to) dodająca kilka sum częściowych naraz do tablicy sums
+     */
+    interface SlabSums {
+        void run(int from, int to, double[] sums);
+    }
+
+    /**
+     * Liczba plastrów przypadających na jeden wątek - kilka plastrów na wątek wyrównuje obciążenie,
+     * gdy część płaszczyzn jest tańsza (np. zawiera dużo przeszkód)
+     */
+    private static final int SLABS_PER_THREAD = 4;
+
+    /**
+     * Maksymalna liczba plastrów w sumowaniu. Podział na plastry w {@link #sum} nie zależy od liczby wątków,
+     * więc kolejność dodawania sum częściowych, a zatem i wynik, jest taki sam dla dowolnej liczby wątków.
+     */
+    private static final int SUM_SLABS = 64;
+
+    /**
+     * Liczba wątków roboczych
+     */
+    final int threads;
+
+    /**
+     * Pula wątków, null w trybie jednowątkowym
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * @param threads liczba wątków roboczych (1 oznacza wykonanie sekwencyjne)
+     */
+    SlabExecutor(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be positive: " + threads);
+        }
+        this.threads = threads;
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * Wykonuje zadanie dla całego zakresu [from, to), równolegle po plastrach jeśli jest więcej niż jeden wątek
+     */
+    void forEach(int from, int to, SlabTask task) {
+        if (pool == null || to - from < 2) {
+            task.run(from, to);
+            return;
+        }
+        int grain = Math.max(1, (to - from) / (threads * SLABS_PER_THREAD));
+        pool.invoke(new SlabAction(task, from, to, grain));
+    }
+
+    /**
+     * Sumuje wyniki zadania po plastrach zakresu [from, to). Sumy częściowe dodawane są zawsze w kolejności plastrów.
+     */
+    double sum(int from, int to, SlabSum task) {
+        return sums(from, to, 1, (first, last, sums) -> sums[0] += task.run(first, last))[0];
+    }
+
+    /**
+     * Jak {@link #sum}, ale dla kilku sum liczonych w jednym przebiegu (np. dwóch iloczynów skalarnych)
+     *
+     * @param components liczba sum
+     * @return tablica sum o długości components
+     */
+    double[] sums(int from, int to, int components, SlabSums task) {
+        double[] totals = new double[components];
+        int count = to - from;
+        if (count <= 0) {
+            return totals;
+        }
+        int slabs = Math.min(count, SUM_SLABS);
+        double[][] partial = new double[slabs][components];
+        forEach(0, slabs, (first, last) -> {
+            for (int slab = first; slab < last; slab++) {
+                task.run(from + (int) ((long) count * slab / slabs),
+                        from + (int) ((long) count * (slab + 1) / slabs), partial[slab]);
+            }
+        });
+        for (double[] slab : partial) {
+            for (int c = 0; c < components; c++) {
+                totals[c] += slab[c];
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Największy z wyników zadania po plastrach zakresu [from, to), np. największa prędkość w siatce.
+     * NaN w którymkolwiek plastrze daje NaN.
+     *
+     * @return największy wynik albo {@link Double#NEGATIVE_INFINITY} dla pustego zakresu
+     */
+    double max(int from, int to, SlabSum task) {
+        int count = to - from;
+        if (count <= 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        int slabs = Math.min(count, SUM_SLABS);
+        double[] partial = new double[slabs];
+        forEach(0, slabs, (first, last) -> {
+            for (int slab = first; slab < last; slab++) {
+                partial[slab] = task.run(from + (int) ((long) count * slab / slabs),
+                        from + (int) ((long) count * (slab + 1) / slabs));
+            }
+        });
+        double max = Double.NEGATIVE_INFINITY;
+        for (double value : partial) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    /**
+     * Zamyka pulę wątków
+     */
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private static final class SlabAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SlabTask task;
+        private final int from, to, grain;
+
+        SlabAction(SlabTask task, int from, int to, int grain) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                task.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SlabAction(task, from, mid, grain), new SlabAction(task, mid, to, grain));
+        }
+    }
+}
@@ -1,10 +1,22 @@
 package pl.edu.agh.ssd;
 
-import javafx.scene.paint.Color;
+import java.nio.file.Path;
+import java.util.Arrays;
 
 
 public class SmokeGrid {
 
+    /**
+     * Typy komórek w {@link #cellType}. Komórka będąca jednocześnie np. źródłem i przeszkodą ma typ
+     * o najwyższym priorytecie: źródło dymu, potem źródło wiatru, potem przeszkoda.
+     */
+    static final byte FLUID = 0, SOURCE = 1, WIND_SOURCE = 2, BARRIER = 3;
+
+    /**
+     * Początkowa temperatura powietrza w pomieszczeniu [K]
+     */
+    static final double AMBIENT_TEMPERATURE = 293.15;
+
     /**
      * Rozmair siatki
      * gridSize[0] == X
@@ -13,33 +25,110 @@ public class SmokeGrid {
      */
     int[] gridSize;
  
+    /**
+     * Odległości w tablicach pól i masek pomiędzy sąsiednimi komórkami w osi X i Y
+     * (wszystkie pola siatki mają ten sam układ pamięci, patrz {@link GridField})
+     */
+    int strideX, strideY;
+
     /**
      * Aktualne prędkości komórki wzgledem odpowienich osi
      */
-    double[][][] velocityX, velocityY, velocityZ;
+    GridField velocityX, velocityY, velocityZ;
 
     /**
      * Poprzedzające prędkości komórki wzgledem odpowienich osi
      */
-    double[][][] prevVelocityX, prevVelocityY, prevVelocityZ;
+    GridField prevVelocityX, prevVelocityY, prevVelocityZ;
 
     /**
      * Aktualna i poprzedzająca wartość temperatury w komórce
      */
-    double[][][] temperature, prevTemperature;
+    GridField temperature, prevTemperature;
 
     /**
      * Gęstość dymu w komórce
      */
-    double[][][] density;
+    GridField density;
 
 //    test
-    double[][][] prevDensity;
+    GridField prevDensity;
+
+    /**
+     * Ciśnienie i dywergencja prędkości z kroku projekcji. Ciśnienie zostaje w siatce pomiędzy krokami,
+     * dzięki czemu solver może zacząć od wyniku poprzedniej projekcji. Każda z dwóch projekcji kroku ma własne
+     * ciśnienie - pressure dla pól velocity, prevPressure dla pól "prev" - więc start solvera pochodzi z tej samej
+     * projekcji w poprzednim kroku.
+     */
+    GridField pressure, prevPressure, divergence;
+
+    /**
+     * Przeszkody i źródła dymu, indeksowane tak samo jak pola siatki ({@link #index(int, int, int)})
+     */
+    boolean[] isBarrier, isSource, isWindSource;
+
+    /**
+     * Czy {@link #isBarrier} jest maską współdzieloną z innymi siatkami ({@link #shareBarriers}) - wtedy jest tylko
+     * do odczytu
+     */
+    boolean barriersShared;
+
+    /**
+     * Precyzja przechowywania pól
+     */
+    final FieldPrecision precision;
+
+    /**
+     * Miejsce przechowywania pól i katalog na ich pliki przy {@link FieldStorage#MAPPED}
+     */
+    final FieldStorage storage;
+    final Path spillDirectory;
+
+    /**
+     * Typ każdej komórki ({@link #FLUID}, {@link #SOURCE}, {@link #WIND_SOURCE}, {@link #BARRIER}) wyliczony z masek
+     */
+    byte[] cellType;
 
     /**
-     * Przeszkody i źródła dymu
+     * Ciągłe odcinki komórek płynu we wnętrzu siatki, wiersz po wierszu: odcinki wiersza (x, y) zajmują
+     * w {@link #fluidRuns} pozycje od fluidRunOffset[x * gridSize[1] + y] do fluidRunOffset[x * gridSize[1] + y + 1]
+     * jako pary [początek, koniec) osi Z. Kernele iterują tylko po tych odcinkach, bez sprawdzania masek w pętli.
      */
-    boolean[][][] isBarrier, isSource, isWindSource;
+    int[] fluidRuns, fluidRunOffset;
+
+    /**
+     * Indeksy komórek wewnętrznych, których typem jest {@link #BARRIER}
+     */
+    int[] obstacleCells;
+
+    /**
+     * Czy maski zmieniły się od ostatniego {@link #rebuildGeometry()}
+     */
+    boolean geometryDirty;
+
+    /**
+     * Licznik przebudów geometrii - pozwala solverom przechowywać dane wyliczone z masek
+     */
+    int geometryVersion;
+
+    /**
+     * Obszar liczony przez kernele symulacji, null gdy liczona jest cała siatka
+     */
+    ActiveRegion active;
+
+    /**
+     * Położenie siatki w pomieszczeniu podzielonym na podobszary ({@link DomainDecomposition}): globalny indeks X
+     * płaszczyzny 0 tej siatki i rozmiar całego pomieszczenia. Podział jest tylko w osi X, więc rozmiar Y i Z
+     * pomieszczenia jest równy rozmiarowi siatki. Dla niepodzielonej siatki originX = 0, a domainSize == gridSize.
+     */
+    int originX;
+    int[] domainSize;
+
+    /**
+     * Zakres [fromX, toX) płaszczyzn X liczonych przez kernele. Pozostałe płaszczyzny to ściany pomieszczenia
+     * albo halo - kopie płaszczyzn sąsiednich podobszarów. Dla niepodzielonej siatki [1, gridSize[0] - 1).
+     */
+    int fromX, toX;
 
 
     /**
@@ -50,72 +139,210 @@ public class SmokeGrid {
      * @param Z liczba komórek w siatce w osi Z
      */
     public SmokeGrid(int X, int Y, int Z) {
-        gridSize = new int[]{X, Y, Z};
-        velocityX = new double[X][Y][Z];
-        velocityY = new double[X][Y][Z];
-        velocityZ = new double[X][Y][Z];
-        prevVelocityX = new double[X][Y][Z];
-        prevVelocityY = new double[X][Y][Z];
-        prevVelocityZ = new double[X][Y][Z];
-        temperature = new double[X][Y][Z];
-        prevTemperature = new double[X][Y][Z];
-        density = new double[X][Y][Z];
-        prevDensity = new double[X][Y][Z];
-        isBarrier = new boolean[X][Y][Z];
-        isSource = new boolean[X][Y][Z];
-        isWindSource = new boolean[X][Y][Z];
+        this(X, Y, Z, FieldPrecision.DOUBLE);
+    }
 
-        initValues(velocityX, 0);
-        initValues(velocityY, 0);
-        initValues(velocityZ, 0);
+    /**
+     * Konstruktor siatki o polach przechowywanych z podaną precyzją
+     *
+     * @param X         liczba komórek w siatce w osi X
+     * @param Y         liczba komórek w siatce w osi Y
+     * @param Z         liczba komórek w siatce w osi Z
+     * @param precision precyzja pól siatki
+     */
+    public SmokeGrid(int X, int Y, int Z, FieldPrecision precision) {
+        this(X, Y, Z, precision, FieldStorage.HEAP, null);
+    }
 
-        initValues(prevVelocityX, 0);
-        initValues(prevVelocityY, 0);
-        initValues(prevVelocityZ, 0);
+    /**
+     * Konstruktor siatki o polach przechowywanych poza stertą Javy. Maski i mapa typów komórek (4 bajty na komórkę)
+     * pozostają na stercie.
+     *
+     * @param X              liczba komórek w siatce w osi X
+     * @param Y              liczba komórek w siatce w osi Y
+     * @param Z              liczba komórek w siatce w osi Z
+     * @param precision      precyzja pól siatki (poza stertą tylko {@link FieldPrecision#DOUBLE})
+     * @param storage        miejsce przechowywania pól
+     * @param spillDirectory katalog na pliki pól przy {@link FieldStorage#MAPPED}
+     */
+    public SmokeGrid(int X, int Y, int Z, FieldPrecision precision, FieldStorage storage, Path spillDirectory) {
+        this.precision = precision;
+        this.storage = storage;
+        this.spillDirectory = spillDirectory;
+        gridSize = new int[]{X, Y, Z};
+        domainSize = gridSize;
+        fromX = 1;
+        toX = X - 1;
+        velocityX = newField(0);
+        velocityY = newField(0);
+        velocityZ = newField(0);
+        prevVelocityX = newField(0);
+        prevVelocityY = newField(0);
+        prevVelocityZ = newField(0);
+        temperature = newField(AMBIENT_TEMPERATURE);
+        prevTemperature = newField(AMBIENT_TEMPERATURE);
+        density = newField(0);
+        prevDensity = newField(0);
+        pressure = newField(0);
+        prevPressure = newField(0);
+        divergence = newField(0);
 
-        initValues(temperature, 293.15);
-        initValues(prevTemperature, 293.15);
+        strideX = density.strideX;
+        strideY = density.strideY;
 
-        initValues(density, 0);
-        initValues(prevDensity, 0);
+        isBarrier = new boolean[density.length];
+        isSource = new boolean[density.length];
+        isWindSource = new boolean[density.length];
+        cellType = new byte[density.length];
+        fluidRunOffset = new int[X * Y + 1];
+        rebuildGeometry();
+    }
 
-        initBarrier(isBarrier);
-        initBarrier(isSource);
-        initBarrier(isWindSource);
+    /**
+     * Zastępuje maskę przeszkód maską współdzieloną z innymi siatkami tego samego rozmiaru. Od tej chwili maska jest
+     * tylko do odczytu - {@link SmokeSimulation#addBound} zgłasza wyjątek.
+     */
+    void shareBarriers(boolean[] barriers) {
+        if (barriers.length != isBarrier.length) {
+            throw new IllegalArgumentException("Shared barrier mask does not match the grid size");
+        }
+        isBarrier = barriers;
+        barriersShared = true;
+        geometryDirty = true;
     }
 
     /**
-     * Metoda pomocnicza inicjalizujaca wartosci pól klasy SmokeGrid typu double[][][]
-     *
-     * @param values tablica 3D dla której chcemy zainicjalizować wartości
+     * Wylicza mapę typów komórek, odcinki płynu i listę przeszkód z masek {@link #isSource},
+     * {@link #isWindSource} i {@link #isBarrier}
      */
-    private void initValues(double[][][] values, double value) {
+    void rebuildGeometry() {
+        int runCount = 0;
+        int obstacleCount = 0;
+        int[] runs = new int[16];
+        int[] obstacles = new int[16];
         for (int x = 0; x < gridSize[0]; x++) {
             for (int y = 0; y < gridSize[1]; y++) {
+                int row = x * gridSize[1] + y;
+                fluidRunOffset[row] = runCount;
+                boolean interiorRow = x > 0 && x < gridSize[0] - 1 && y > 0 && y < gridSize[1] - 1;
+                int runStart = -1;
                 for (int z = 0; z < gridSize[2]; z++) {
-                    values[x][y][z] = value;
+                    int i = index(x, y, z);
+                    byte type = isSource[i] ? SOURCE : isWindSource[i] ? WIND_SOURCE : isBarrier[i] ? BARRIER : FLUID;
+                    cellType[i] = type;
+                    if (!interiorRow || z == 0 || z == gridSize[2] - 1) continue;
+                    if (type == BARRIER) {
+                        if (obstacleCount == obstacles.length) obstacles = Arrays.copyOf(obstacles, 2 * obstacleCount);
+                        obstacles[obstacleCount++] = i;
+                    }
+                    if (type == FLUID && runStart < 0) {
+                        runStart = z;
+                    }
+                    if (type != FLUID && runStart >= 0) {
+                        if (runCount + 2 > runs.length) runs = Arrays.copyOf(runs, 2 * runs.length);
+                        runs[runCount++] = runStart;
+                        runs[runCount++] = z;
+                        runStart = -1;
+                    }
+                }
+                if (runStart >= 0) {
+                    if (runCount + 2 > runs.length) runs = Arrays.copyOf(runs, 2 * runs.length);
+                    runs[runCount++] = runStart;
+                    runs[runCount++] = gridSize[2] - 1;
                 }
             }
         }
+        fluidRunOffset[gridSize[0] * gridSize[1]] = runCount;
+        fluidRuns = Arrays.copyOf(runs, runCount);
+        obstacleCells = Arrays.copyOf(obstacles, obstacleCount);
+        geometryDirty = false;
+        geometryVersion++;
     }
 
     /**
-     * Metoda pomocnicza inicjalizujaca wartosci pól klasy SmokeGrid typu boolean[][][]
+     * Czyni siatkę podobszarem większego pomieszczenia
      *
-     * @param values tablica 3D dla której chcemy zainicjalizować wartości
+     * @param originX    globalny indeks X płaszczyzny 0 siatki
+     * @param domainSize rozmiar całego pomieszczenia
+     * @param fromX      pierwsza liczona płaszczyzna X siatki
+     * @param toX        koniec (wyłącznie) liczonych płaszczyzn X siatki
      */
-    private void initBarrier(boolean[][][] values) {
-        for (int x = 0; x < gridSize[0]; x++) {
-            for (int y = 0; y < gridSize[1]; y++) {
-                for (int z = 0; z < gridSize[2]; z++) {
-                    values[x][y][z] = false;
-                }
-            }
+    void setSubdomain(int originX, int[] domainSize, int fromX, int toX) {
+        if (domainSize[1] != gridSize[1] || domainSize[2] != gridSize[2] || originX < 0
+                || originX + gridSize[0] > domainSize[0] || fromX < 1 || toX > gridSize[0] - 1 || fromX >= toX) {
+            throw new IllegalArgumentException("Invalid subdomain of a " + domainSize[0] + "x" + domainSize[1] + "x"
+                    + domainSize[2] + " room");
+        }
+        this.originX = originX;
+        this.domainSize = domainSize.clone();
+        this.fromX = fromX;
+        this.toX = toX;
+    }
+
+    /**
+     * Czy siatka jest podobszarem podzielonego pomieszczenia
+     */
+    boolean isSubdomain() {
+        return domainSize != gridSize;
+    }
+
+    /**
+     * Metoda pomocnicza tworząca pole siatki wypełnione podaną wartością
+     *
+     * @param value początkowa wartość w każdej komórce
+     */
+    GridField newField(double value) {
+        GridField field = GridField.create(precision, storage, spillDirectory, gridSize[0], gridSize[1], gridSize[2]);
+        if (value != 0) {
+            field.fill(value);
         }
+        return field;
+    }
+
+    /**
+     * Pierwsza komórka osi Z liczona w wierszu (x, y) wnętrza siatki
+     */
+    int rowFrom(int x, int y) {
+        return active == null ? 1 : active.rowFrom[x * gridSize[1] + y];
+    }
+
+    /**
+     * Koniec (wyłącznie) zakresu osi Z liczonego w wierszu (x, y) wnętrza siatki
+     */
+    int rowTo(int x, int y) {
+        return active == null ? gridSize[2] - 1 : active.rowTo[x * gridSize[1] + y];
+    }
+
+    /**
+     * Pierwsza i ostatnia (wyłącznie) pozycja odcinków płynu wiersza (x, y) w {@link #fluidRuns}
+     */
+    int firstRun(int x, int y) {
+        return fluidRunOffset[x * gridSize[1] + y];
     }
 
-    public static Color densityToColor(double density) {
-        return new Color(0, 0, 0, density);
+    int lastRun(int x, int y) {
+        return fluidRunOffset[x * gridSize[1] + y + 1];
+    }
+
+    /**
+     * Początek odcinka płynu zaczynającego się na pozycji run, przycięty do obszaru liczonego wiersza (x, y)
+     */
+    int runFrom(int run, int x, int y) {
+        return Math.max(fluidRuns[run], rowFrom(x, y));
+    }
+
+    /**
+     * Koniec (wyłącznie) odcinka płynu zaczynającego się na pozycji run, przycięty do obszaru liczonego wiersza (x, y)
+     */
+    int runTo(int run, int x, int y) {
+        return Math.min(fluidRuns[run + 1], rowTo(x, y));
+    }
+
+    /**
+     * Indeks komórki (x, y, z) w tablicach pól i masek siatki
+     */
+    public int index(int x, int y, int z) {
+        return density.index(x, y, z);
     }
 
     /**
@@ -124,9 +351,9 @@ public class SmokeGrid {
     public void printGrid2D() {
         for (int x = 0; x < gridSize[0]; x++) {
             for (int y = 0; y < gridSize[1]; y++) {
-                if (isBarrier[x][y][0]) {
+                if (isBarrier[index(x, y, 0)]) {
                     System.out.print("X ");
-                } else if (isSource[x][y][0]) {
+                } else if (isSource[index(x, y, 0)]) {
                     System.out.print("S ");
                 } else {
                     System.out.print("O ");
@@ -11,9 +11,15 @@ public class SmokeSimulation {
      */
     SmokeGrid room;
     /**
-     * Krok czasowy
+     * Krok czasowy bieżącego kroku symulacji. W trybie adaptacyjnym ({@link #enableAdaptiveTimeStep}) wybierany
+     * przed każdym krokiem, w przeciwnym razie równy {@link #baseTimeStep}.
      */
     double timeStep;
+    /**
+     * Krok czasowy podany przy tworzeniu symulacji. W trybie adaptacyjnym jest jednostką czasu, w której podane
+     * jest zanikanie dymu {@link #decayRate}.
+     */
+    final double baseTimeStep;
     /**
      * Predkość dymu wydostającego się ze źródła
      */
@@ -27,6 +33,142 @@ public class SmokeSimulation {
 
     double decayRate;
 
+    /**
+     * Wykonawca równoległych pętli solvera
+     */
+    SlabExecutor executor;
+
+    /**
+     * Kolejność relaksacji w dyfuzji i równaniu ciśnienia
+     */
+    RelaxationScheme relaxationScheme = RelaxationScheme.GAUSS_SEIDEL;
+
+    /**
+     * Solver równania ciśnienia w kroku projekcji
+     */
+    PressureSolver pressureSolver = new RelaxationPressureSolver();
+
+    /**
+     * Oznaczenie przebiegu relaksacji po wszystkich komórkach zamiast po jednym kolorze szachownicy
+     */
+    static final int ALL_CELLS = -1;
+
+    /**
+     * Warunki brzegowe składowych prędkości X, Y i Z
+     */
+    private static final int[] VELOCITY_BOUNDARIES = {1, 2, 3};
+
+    /**
+     * Liczba przebiegów relaksacji w dyfuzji
+     */
+    static final int DIFFUSE_SWEEPS = 4;
+
+    /**
+     * Pomiary kroków symulacji, null gdy wyłączone
+     */
+    SimulationMetrics metrics;
+
+    /**
+     * Czy moduł {@code jdk.incubator.vector} jest dostępny w tej maszynie wirtualnej
+     * (JVM uruchomiona z {@code --add-modules jdk.incubator.vector})
+     */
+    static final boolean VECTOR_API_AVAILABLE = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    /**
+     * Czy kernele liczone są wektorowo ({@link VectorKernels})
+     */
+    boolean vectorKernels;
+
+    /**
+     * Liczba wykonanych kroków symulacji (zachowywana w punktach kontrolnych, {@link SimulationCheckpoint})
+     */
+    long stepCount;
+
+    /**
+     * Bieżące i poprzednie pola prędkości siatki w kolejności osi, przenoszone razem w {@link #advect(int[], GridField[],
+     * GridField[], GridField, GridField, GridField)}
+     */
+    final GridField[] velocities, previousVelocities;
+
+    /**
+     * Domyślne parametry transportu temperatury (formularz w {@link Main} i {@link ScenarioConfig})
+     */
+    static final double DEFAULT_SOURCE_TEMPERATURE = 373.15, DEFAULT_BUOYANCY = 0.01, DEFAULT_SMOKE_WEIGHT = 0.0005,
+            DEFAULT_COOLING_RATE = 0.2;
+
+    /**
+     * Czy liczony jest transport temperatury i siła wyporu ({@link #enableTemperature})
+     */
+    boolean temperatureEnabled;
+
+    /**
+     * Temperatura otoczenia i temperatura powietrza w źródłach dymu [K]
+     */
+    double ambientTemperature = SmokeGrid.AMBIENT_TEMPERATURE;
+    double sourceTemperature = SmokeGrid.AMBIENT_TEMPERATURE;
+
+    /**
+     * Przyspieszenie wyporu na kelwin nadwyżki temperatury i przyspieszenie opadania na jednostkę gęstości dymu
+     */
+    double buoyancy, smokeWeight;
+
+    /**
+     * Tempo stygnięcia: nadwyżka temperatury nad otoczeniem maleje jak exp(-coolingRate * t)
+     */
+    double coolingRate;
+
+    /**
+     * Domyślna docelowa liczba Couranta adaptacyjnego kroku czasowego
+     */
+    static final double DEFAULT_CFL_TARGET = 1.0;
+
+    /**
+     * Domyślny zakres adaptacyjnego kroku czasowego względem kroku podanego w konstruktorze
+     */
+    static final double DEFAULT_MIN_STEP_FRACTION = 0.01, DEFAULT_MAX_STEP_MULTIPLE = 10;
+
+    /**
+     * Względna tolerancja, z jaką krok trafia w czas docelowy {@link #advanceTo} - krótsza reszta nie tworzy
+     * osobnego kroku
+     */
+    private static final double TIME_TOLERANCE = 1e-9;
+
+    /**
+     * Czy krok czasowy wybierany jest z warunku CFL ({@link #enableAdaptiveTimeStep})
+     */
+    boolean adaptiveTimeStep;
+
+    /**
+     * Docelowa liczba Couranta - największe przesunięcie cofniętej pozycji w adwekcji w komórkach na krok
+     */
+    double cflTarget = DEFAULT_CFL_TARGET;
+
+    /**
+     * Zakres kroków czasowych trybu adaptacyjnego
+     */
+    double minTimeStep, maxTimeStep;
+
+    /**
+     * Czas symulacji - suma kroków czasowych wszystkich wykonanych kroków
+     */
+    double simulationTime;
+
+    /**
+     * Czas, którego nie może przekroczyć następny krok ({@link #stepTowards}), poza nim nieskończoność
+     */
+    private double targetTime = Double.POSITIVE_INFINITY;
+
+    /**
+     * Największa prędkość w siatce w komórkach na jednostkę czasu, wyznaczona przy ostatnim wyborze kroku
+     */
+    double maxCellSpeed;
+
+    /**
+     * Wymiana halo z sąsiednimi podobszarami, gdy siatka jest podobszarem pomieszczenia ({@link DomainDecomposition}),
+     * null dla niepodzielonej siatki
+     */
+    HaloExchange halo;
+
 
     /**
      * Konstruktor solvera symulacji
@@ -39,12 +181,302 @@ public class SmokeSimulation {
      * @param defaultSourceDensity  Gęstość dymu wydostającego się ze źródła
      */
     SmokeSimulation(int width, int height, int depth, double timeStep, double defaultSourceVelocity, double defaultSourceDensity, double diffRate, double decayRate) {
-        this.room = new SmokeGrid(width, height, depth);
+        this(width, height, depth, timeStep, defaultSourceVelocity, defaultSourceDensity, diffRate, decayRate, 1);
+    }
+
+    /**
+     * Konstruktor solvera symulacji wykonującego obliczenia na wielu wątkach
+     *
+     * @param width                 Szerokość pomieszczenia
+     * @param height                Wysokość pomieszczenia
+     * @param depth                 Głębokość pomieszczenia
+     * @param timeStep              krok czasowy
+     * @param defaultSourceVelocity Predkość dymu wydostającego się ze źródła
+     * @param defaultSourceDensity  Gęstość dymu wydostającego się ze źródła
+     * @param threads               liczba wątków solvera (1 - obliczenia sekwencyjne)
+     */
+    SmokeSimulation(int width, int height, int depth, double timeStep, double defaultSourceVelocity, double defaultSourceDensity, double diffRate, double decayRate, int threads) {
+        this(width, height, depth, timeStep, defaultSourceVelocity, defaultSourceDensity, diffRate, decayRate, threads, FieldPrecision.DOUBLE);
+    }
+
+    /**
+     * Konstruktor solvera symulacji z wyborem precyzji pól siatki
+     *
+     * @param width                 Szerokość pomieszczenia
+     * @param height                Wysokość pomieszczenia
+     * @param depth                 Głębokość pomieszczenia
+     * @param timeStep              krok czasowy
+     * @param defaultSourceVelocity Predkość dymu wydostającego się ze źródła
+     * @param defaultSourceDensity  Gęstość dymu wydostającego się ze źródła
+     * @param threads               liczba wątków solvera (1 - obliczenia sekwencyjne)
+     * @param precision             precyzja przechowywania pól ({@link FieldPrecision#FLOAT} zmniejsza zużycie pamięci o połowę)
+     */
+    SmokeSimulation(int width, int height, int depth, double timeStep, double defaultSourceVelocity, double defaultSourceDensity, double diffRate, double decayRate, int threads,
+                    FieldPrecision precision) {
+        this(new SmokeGrid(width, height, depth, precision), timeStep, defaultSourceVelocity, defaultSourceDensity, diffRate, decayRate, threads);
+    }
+
+    /**
+     * Konstruktor solvera symulacji na przygotowanej siatce, np. o polach przechowywanych poza stertą
+     * ({@link SmokeGrid#SmokeGrid(int, int, int, FieldPrecision, FieldStorage, java.nio.file.Path)})
+     *
+     * @param room                  siatka pomieszczenia
+     * @param timeStep              krok czasowy
+     * @param defaultSourceVelocity Predkość dymu wydostającego się ze źródła
+     * @param defaultSourceDensity  Gęstość dymu wydostającego się ze źródła
+     * @param threads               liczba wątków solvera (1 - obliczenia sekwencyjne)
+     */
+    SmokeSimulation(SmokeGrid room, double timeStep, double defaultSourceVelocity, double defaultSourceDensity, double diffRate, double decayRate, int threads) {
+        this.room = room;
         this.timeStep = timeStep;
+        this.baseTimeStep = timeStep;
+        this.minTimeStep = timeStep;
+        this.maxTimeStep = timeStep;
         this.defaultSourceVelocity = defaultSourceVelocity;
         this.defaultSourceDensity = defaultSourceDensity;
         this.diffRate = diffRate;
         this.decayRate = decayRate;
+        this.executor = new SlabExecutor(threads);
+        this.velocities = new GridField[]{room.velocityX, room.velocityY, room.velocityZ};
+        this.previousVelocities = new GridField[]{room.prevVelocityX, room.prevVelocityY, room.prevVelocityZ};
+    }
+
+    /**
+     * Wybór kolejności relaksacji w dyfuzji i równaniu ciśnienia. {@link RelaxationScheme#RED_BLACK}
+     * pozwala liczyć obie pętle równolegle kosztem bitowej zgodności z kolejnością leksykograficzną.
+     */
+    public void setRelaxationScheme(RelaxationScheme relaxationScheme) {
+        this.relaxationScheme = relaxationScheme;
+    }
+
+    /**
+     * Wybór solvera równania ciśnienia używanego w kroku projekcji
+     */
+    public void setPressureSolver(PressureSolver pressureSolver) {
+        this.pressureSolver = pressureSolver;
+    }
+
+    /**
+     * Aktualny solver ciśnienia - pozwala zmienić jego tolerancję i limit iteracji
+     * oraz odczytać liczbę iteracji i residuum ostatniej projekcji
+     */
+    public PressureSolver getPressureSolver() {
+        return pressureSolver;
+    }
+
+    /**
+     * Włącza pomiary faz kroku symulacji (null wyłącza)
+     */
+    public void setMetrics(SimulationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public SimulationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Włącza wektorowe (SIMD) wersje kerneli dyfuzji, adwekcji i projekcji ({@link VectorKernels}).
+     * Dotyczy pól na stercie - przy polach poza stertą kernele pozostają skalarne. Przy polach
+     * {@link FieldPrecision#FLOAT} wektorowe są dyfuzja i projekcja, a adwekcja pozostaje skalarna.
+     * Relaksacja jest wektorowa tylko w kolejności {@link RelaxationScheme#RED_BLACK}.
+     * Wyniki są bitowo identyczne z kernelami skalarnymi. Czy kernele wektorowe są rzeczywiście używane,
+     * podaje {@link #isVectorKernelsEffective()}.
+     *
+     * @throws IllegalStateException gdy moduł {@code jdk.incubator.vector} nie jest dostępny
+     */
+    public void setVectorKernels(boolean vectorKernels) {
+        if (vectorKernels && !VECTOR_API_AVAILABLE) {
+            throw new IllegalStateException("Vector kernels need the JVM option --add-modules jdk.incubator.vector");
+        }
+        this.vectorKernels = vectorKernels;
+    }
+
+    public boolean isVectorKernels() {
+        return vectorKernels;
+    }
+
+    /**
+     * Czy włączone kernele wektorowe są używane - pola poza stertą i podobszary liczone są zawsze skalarnie
+     */
+    public boolean isVectorKernelsEffective() {
+        return vectorKernels && room.storage == FieldStorage.HEAP && !room.isSubdomain();
+    }
+
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * Czas symulacji po wykonanych krokach
+     */
+    public double getSimulationTime() {
+        return simulationTime;
+    }
+
+    /**
+     * Krok czasowy ostatniego kroku symulacji
+     */
+    public double getTimeStep() {
+        return timeStep;
+    }
+
+    /**
+     * Czy bieżące kernele mają liczyć wektorowo - pola siatki muszą być przechowywane w double
+     */
+    boolean vectorized() {
+        return vectorKernels && room.precision == FieldPrecision.DOUBLE && room.storage == FieldStorage.HEAP && !room.isSubdomain();
+    }
+
+    /**
+     * Czy bieżące kernele mają liczyć bezpośrednio na tablicach pól float ({@link FloatKernels})
+     */
+    boolean floatKernels() {
+        return room.precision == FieldPrecision.FLOAT;
+    }
+
+    /**
+     * Czy bieżące kernele mają liczyć wektorowo na polach float - relaksacja, dywergencja i gradient ciśnienia,
+     * bo adwekcja pól float liczona jest zawsze skalarnie przez {@link FloatKernels}
+     */
+    boolean vectorizedFloat() {
+        return vectorKernels && room.precision == FieldPrecision.FLOAT && !room.isSubdomain();
+    }
+
+    /**
+     * Włącza pomijanie nieruchomego powietrza bez dymu: kernele liczą tylko bloki siatki, w których gęstość
+     * lub prędkość przekracza próg, razem z otoczką (patrz {@link ActiveRegion}).
+     *
+     * @param threshold próg wartości bezwzględnej gęstości i składowych prędkości
+     */
+    public void enableActiveRegions(double threshold) {
+        if (!(threshold >= 0)) {
+            throw new IllegalArgumentException("Threshold must not be negative: " + threshold);
+        }
+        if (room.isSubdomain()) {
+            throw new IllegalStateException("Active regions are not supported in a decomposed room");
+        }
+        room.active = new ActiveRegion(room, threshold);
+        if (temperatureEnabled) {
+            room.active.ambientTemperature = ambientTemperature;
+        }
+    }
+
+    /**
+     * Przywraca liczenie całej siatki w każdym kroku
+     */
+    public void disableActiveRegions() {
+        room.active = null;
+    }
+
+    /**
+     * Włącza transport temperatury: źródła dymu ogrzewają powietrze, temperatura dyfunduje (z tym samym
+     * współczynnikiem co dym), jest przenoszona przez przepływ i stygnie do temperatury otoczenia, a nadwyżka
+     * temperatury i ciężar dymu dają siłę wyporu w osi Y (w górę, czyli w stronę malejących y, tak jak wypływ
+     * ze źródeł). Dyfuzja i adwekcja temperatury liczone są w tych samych przebiegach po siatce co dym.
+     *
+     * @param sourceTemperature temperatura powietrza w źródłach dymu [K]
+     * @param buoyancy          przyspieszenie wyporu na kelwin nadwyżki temperatury
+     * @param smokeWeight       przyspieszenie opadania na jednostkę gęstości dymu
+     * @param coolingRate       tempo stygnięcia (0 - brak wymiany ciepła poza dyfuzją)
+     */
+    public void enableTemperature(double sourceTemperature, double buoyancy, double smokeWeight, double coolingRate) {
+        if (!(sourceTemperature > 0) || !(buoyancy >= 0) || !(smokeWeight >= 0) || !(coolingRate >= 0)
+                || Double.isInfinite(sourceTemperature + buoyancy + smokeWeight + coolingRate)) {
+            throw new IllegalArgumentException("Invalid temperature parameters");
+        }
+        this.temperatureEnabled = true;
+        this.sourceTemperature = sourceTemperature;
+        this.buoyancy = buoyancy;
+        this.smokeWeight = smokeWeight;
+        this.coolingRate = coolingRate;
+        for (int i = 0; i < room.isSource.length; i++) {
+            if (room.isSource[i]) {
+                setTemperature(i, sourceTemperature);
+            }
+        }
+        if (room.active != null) {
+            room.active.ambientTemperature = ambientTemperature;
+        }
+        geometryChanged();
+    }
+
+    /**
+     * Wyłącza transport temperatury - pola temperatury zostają bez zmian
+     */
+    public void disableTemperature() {
+        temperatureEnabled = false;
+        if (room.active != null) {
+            room.active.ambientTemperature = Double.NaN;
+        }
+    }
+
+    public boolean isTemperatureEnabled() {
+        return temperatureEnabled;
+    }
+
+    /**
+     * Włącza adaptacyjny krok czasowy: przed każdym krokiem wyznaczana jest największa prędkość w siatce
+     * (równoległa redukcja po płaszczyznach X), a krok wybierany jest tak, żeby cofnięta pozycja w adwekcji
+     * przesunęła się najwyżej o cflTarget komórek. Silny wiatr skraca krok zamiast przestrzeliwać cofniętą pozycję,
+     * a przy spokojnym przepływie krok rośnie do maxTimeStep. Zanikanie dymu skalowane jest długością kroku
+     * względem kroku podanego w konstruktorze, więc na jednostkę czasu symulacji dym zanika tak samo jak przy stałym kroku.
+     *
+     * @param cflTarget   docelowa liczba Couranta (przesunięcie w komórkach na krok)
+     * @param minTimeStep najkrótszy krok - przy bardzo dużych prędkościach warunek CFL zostaje wtedy przekroczony
+     * @param maxTimeStep najdłuższy krok, używany też przy nieruchomym powietrzu
+     */
+    public void enableAdaptiveTimeStep(double cflTarget, double minTimeStep, double maxTimeStep) {
+        if (!(cflTarget > 0) || !(minTimeStep > 0) || !(maxTimeStep >= minTimeStep) || Double.isInfinite(cflTarget + maxTimeStep)) {
+            throw new IllegalArgumentException("Invalid adaptive time step parameters");
+        }
+        this.adaptiveTimeStep = true;
+        this.cflTarget = cflTarget;
+        this.minTimeStep = minTimeStep;
+        this.maxTimeStep = maxTimeStep;
+    }
+
+    /**
+     * Włącza adaptacyjny krok czasowy z domyślnym zakresem kroków: od {@link #DEFAULT_MIN_STEP_FRACTION} do
+     * {@link #DEFAULT_MAX_STEP_MULTIPLE} kroków podanych w konstruktorze
+     */
+    public void enableAdaptiveTimeStep(double cflTarget) {
+        enableAdaptiveTimeStep(cflTarget, baseTimeStep * DEFAULT_MIN_STEP_FRACTION, baseTimeStep * DEFAULT_MAX_STEP_MULTIPLE);
+    }
+
+    /**
+     * Przywraca stały krok czasowy podany w konstruktorze
+     */
+    public void disableAdaptiveTimeStep() {
+        adaptiveTimeStep = false;
+        timeStep = baseTimeStep;
+    }
+
+    public boolean isAdaptiveTimeStep() {
+        return adaptiveTimeStep;
+    }
+
+    private void setTemperature(int i, double temperature) {
+        room.temperature.set(i, temperature);
+        room.prevTemperature.set(i, temperature);
+    }
+
+    /**
+     * Zmiana geometrii lub pól poza krokiem symulacji - przy następnym kroku trzeba przebudować mapę typów komórek
+     * i przejrzeć całą siatkę
+     */
+    private void geometryChanged() {
+        room.geometryDirty = true;
+        if (room.active != null) {
+            room.active.dirty = true;
+        }
+    }
+
+    /**
+     * Zwalnia wątki solvera. Po wywołaniu tej metody symulacji nie można już aktualizować.
+     */
+    public void shutdown() {
+        executor.shutdown();
     }
 
     /**
@@ -53,9 +485,14 @@ public class SmokeSimulation {
      * @param x współrzęda osi X
      * @param y współrzęda osi Y
      * @param z współrzęda osi Z
+     * @throws IllegalStateException gdy maska przeszkód jest współdzielona z innymi symulacjami
      */
     public void addBound(int x, int y, int z) {
-        this.room.isBarrier[x][y][z] = true;
+        if (room.barriersShared) {
+            throw new IllegalStateException("The barrier mask is shared with other simulations and is read-only");
+        }
+        this.room.isBarrier[room.index(x, y, z)] = true;
+        geometryChanged();
     }
 
     /**
@@ -68,6 +505,7 @@ public class SmokeSimulation {
      * @param endY   końcowy indeks Y
      * @param startZ początkowy indeks Z
      * @param endZ   końcowy indeks Z
+     * @throws IllegalStateException gdy maska przeszkód jest współdzielona z innymi symulacjami
      */
     public void addBound(int startX, int endX, int startY, int endY, int startZ, int endZ) {
         for (int i = startX; i <= endX; i++) {
@@ -87,23 +525,35 @@ public class SmokeSimulation {
      * @param z współrzęda osi Z
      */
     public void addSource(int x, int y, int z) {
-        this.room.isSource[x][y][z] = true;
-        this.room.density[x][y][z] = defaultSourceDensity;
-        this.room.velocityY[x][y][z] = -defaultSourceVelocity;
+        int i = room.index(x, y, z);
+        this.room.isSource[i] = true;
+        this.room.density.set(i, defaultSourceDensity);
+        this.room.velocityY.set(i, -defaultSourceVelocity);
+        if (temperatureEnabled) {
+            setTemperature(i, sourceTemperature);
+        }
+        geometryChanged();
     }
 
     public void removeSource(int x, int y, int z) {
-        this.room.isSource[x][y][z] = false;
-        this.room.density[x][y][z] = 0;
-        this.room.velocityY[x][y][z] = 0;
+        int i = room.index(x, y, z);
+        this.room.isSource[i] = false;
+        this.room.density.set(i, 0);
+        this.room.velocityY.set(i, 0);
+        if (temperatureEnabled) {
+            setTemperature(i, ambientTemperature);
+        }
+        geometryChanged();
     }
 
     public void addWind(int x, int y, int z, double velocityX, double velocityY, double velocityZ) {
-        this.room.isWindSource[x][y][z] = true;
-        this.room.velocityX[x][y][z] = velocityX;
-        this.room.velocityY[x][y][z] = velocityY;
-        this.room.velocityZ[x][y][z] = velocityZ;
-        this.room.density[x][y][z] = 0;
+        int i = room.index(x, y, z);
+        this.room.isWindSource[i] = true;
+        this.room.velocityX.set(i, velocityX);
+        this.room.velocityY.set(i, velocityY);
+        this.room.velocityZ.set(i, velocityZ);
+        this.room.density.set(i, 0);
+        geometryChanged();
     }
 
     //    Przydatny moze sie okazac jeden z tych projektow
@@ -116,305 +566,889 @@ public class SmokeSimulation {
 
     //        Ta metoda odpowiada za rozpraszanie właściwości płynu (np. gęstości, temperatury, prędkości) w czasie.
 //         Rozpraszanie modeluje dyfuzję, czyli proces wyrównywania wartości w płynie.
-    private void diffuse(int b, double[][][] current, double[][][] previous, double diffRate) {
-
-        double a = timeStep * diffRate * (room.gridSize[0] - 2) * (room.gridSize[1] - 2);
-        for (int iteration = 0; iteration < 4; iteration++) {
-            for (int x = 1; x < room.gridSize[0] - 1; x++) {
-                for (int y = 1; y < room.gridSize[1] - 1; y++) {
-                    for (int z = 1; z < room.gridSize[2] - 1; z++) {
-                        if (room.isSource[x][y][z]) continue;
-                        if(room.isWindSource[x][y][z]) continue;
-                        if (room.isBarrier[x][y][z]) {
-                            enforceObstacleBounce(x, y, z);
-                            continue;
-                        }
-                        current[x][y][z] = (previous[x][y][z] + a * (
-                                current[x + 1][y][z] + current[x - 1][y][z] +
-                                        current[x][y + 1][z] + current[x][y - 1][z] +
-                                        current[x][y][z + 1] + current[x][y][z - 1]
-                        )) / (1 + 6 * a);
-
+    void diffuse(int b, GridField current, GridField previous, double diffRate) {
+        double a = timeStep * diffRate * (room.domainSize[0] - 2) * (room.gridSize[1] - 2);
+        for (int iteration = 0; iteration < DIFFUSE_SWEEPS; iteration++) {
+            if (relaxationScheme == RelaxationScheme.RED_BLACK) {
+                for (int color = 0; color < 2; color++) {
+                    int sweepColor = color;
+                    executor.forEach(room.fromX, room.toX,
+                            (from, to) -> diffuseSweep(current, previous, a, sweepColor, from, to));
+                    if (color == 0) {
+                        // Drugi kolor czyta pierwszy kolor płaszczyzn sąsiedniego podobszaru
+                        exchangeHalo(current);
                     }
                 }
+            } else {
+                diffuseSweep(current, previous, a, ALL_CELLS, room.fromX, room.toX);
             }
             enforceBoundaryConditions(b, current);
         }
     }
 
-    private void advect(int b, double[][][] current, double[][][] previous, double[][][] velocityX, double[][][] velocityY, double[][][] velocityZ) {
+    /**
+     * Jeden przebieg relaksacji dyfuzji po płaszczyznach X z zakresu [fromX, toX)
+     *
+     * @param color {@link #ALL_CELLS} dla wszystkich komórek po kolei, albo 0/1 dla komórek z parzystym/nieparzystym x + y + z
+     */
+    private void diffuseSweep(GridField current, GridField previous, double a, int color, int fromX, int toX) {
+        if (color != ALL_CELLS && vectorized()) {
+            VectorKernels.diffuseSweep(room, (DoubleGridField) current, (DoubleGridField) previous, a, color, fromX, toX);
+            return;
+        }
+        if (color != ALL_CELLS && vectorizedFloat()) {
+            VectorKernels.diffuseSweep(room, (FloatGridField) current, (FloatGridField) previous, (float) a, color, fromX, toX);
+            return;
+        }
+        if (floatKernels()) {
+            FloatKernels.diffuseSweep(room, (FloatGridField) current, (FloatGridField) previous, (float) a, color, fromX, toX);
+            return;
+        }
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        int step = color == ALL_CELLS ? 1 : 2;
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int firstZ = firstZ(x + room.originX, y, color, room.runFrom(run, x, y));
+                    int lastZ = room.runTo(run, x, y);
+                    int i = room.index(x, y, firstZ);
+                    for (int z = firstZ; z < lastZ; z += step, i += step) {
+                        current.set(i, (previous.get(i) + a * (
+                                current.get(i + strideX) + current.get(i - strideX) +
+                                        current.get(i + strideY) + current.get(i - strideY) +
+                                        current.get(i + 1) + current.get(i - 1)
+                        )) / (1 + 6 * a));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Dyfuzja gęstości dymu i temperatury w tych samych przebiegach relaksacji. Oba pola mają ten sam
+     * współczynnik, a każde czyta tylko swoje wartości, więc wynik jest taki sam jak przy dwóch osobnych
+     * wywołaniach {@link #diffuse(int, GridField, GridField, double)}, ale siatka przeglądana jest raz.
+     */
+    void diffuse(GridField density, GridField previousDensity, GridField temperature, GridField previousTemperature,
+                 double diffRate) {
+        double a = timeStep * diffRate * (room.domainSize[0] - 2) * (room.gridSize[1] - 2);
+        for (int iteration = 0; iteration < DIFFUSE_SWEEPS; iteration++) {
+            if (relaxationScheme == RelaxationScheme.RED_BLACK) {
+                for (int color = 0; color < 2; color++) {
+                    int sweepColor = color;
+                    executor.forEach(room.fromX, room.toX, (from, to) -> diffuseSweep(density, previousDensity,
+                            temperature, previousTemperature, a, sweepColor, from, to));
+                    if (color == 0) {
+                        exchangeHalo(density);
+                        exchangeHalo(temperature);
+                    }
+                }
+            } else {
+                diffuseSweep(density, previousDensity, temperature, previousTemperature, a, ALL_CELLS, room.fromX, room.toX);
+            }
+            enforceBoundaryConditions(0, density);
+            enforceBoundaryConditions(0, temperature);
+        }
+    }
+
+    private void diffuseSweep(GridField current, GridField previous, GridField heat, GridField previousHeat, double a,
+                              int color, int fromX, int toX) {
+        if (color != ALL_CELLS && vectorized()) {
+            // Kernel wektorowy liczy jedno pole - oba pola jednego plastra liczone są po sobie, póki są w pamięci podręcznej
+            VectorKernels.diffuseSweep(room, (DoubleGridField) current, (DoubleGridField) previous, a, color, fromX, toX);
+            VectorKernels.diffuseSweep(room, (DoubleGridField) heat, (DoubleGridField) previousHeat, a, color, fromX, toX);
+            return;
+        }
+        if (color != ALL_CELLS && vectorizedFloat()) {
+            VectorKernels.diffuseSweep(room, (FloatGridField) current, (FloatGridField) previous, (float) a, color, fromX, toX);
+            VectorKernels.diffuseSweep(room, (FloatGridField) heat, (FloatGridField) previousHeat, (float) a, color, fromX, toX);
+            return;
+        }
+        if (floatKernels()) {
+            FloatKernels.diffuseSweep(room, (FloatGridField) current, (FloatGridField) previous, (float) a, color, fromX, toX);
+            FloatKernels.diffuseSweep(room, (FloatGridField) heat, (FloatGridField) previousHeat, (float) a, color, fromX, toX);
+            return;
+        }
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        int step = color == ALL_CELLS ? 1 : 2;
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int firstZ = firstZ(x + room.originX, y, color, room.runFrom(run, x, y));
+                    int lastZ = room.runTo(run, x, y);
+                    int i = room.index(x, y, firstZ);
+                    for (int z = firstZ; z < lastZ; z += step, i += step) {
+                        current.set(i, (previous.get(i) + a * (
+                                current.get(i + strideX) + current.get(i - strideX) +
+                                        current.get(i + strideY) + current.get(i - strideY) +
+                                        current.get(i + 1) + current.get(i - 1)
+                        )) / (1 + 6 * a));
+                        heat.set(i, (previousHeat.get(i) + a * (
+                                heat.get(i + strideX) + heat.get(i - strideX) +
+                                        heat.get(i + strideY) + heat.get(i - strideY) +
+                                        heat.get(i + 1) + heat.get(i - 1)
+                        )) / (1 + 6 * a));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Pierwsza komórka wiersza (x, y) z przebiegu danego koloru
+     */
+    static int firstZ(int x, int y, int color) {
+        if (color == ALL_CELLS) {
+            return 1;
+        }
+        return 1 + (((x + y + 1) ^ color) & 1);
+    }
+
+    /**
+     * Pierwsza komórka wiersza (x, y) z przebiegu danego koloru, nie mniejsza niż from
+     */
+    static int firstZ(int x, int y, int color, int from) {
+        if (color == ALL_CELLS) {
+            return from;
+        }
+        int z = firstZ(x, y, color);
+        return z >= from ? z : z + ((from - z + 1) & ~1);
+    }
+
+    void advect(int b, GridField current, GridField previous, GridField velocityX, GridField velocityY, GridField velocityZ) {
+        advect(new int[]{b}, new GridField[]{current}, new GridField[]{previous}, velocityX, velocityY, velocityZ);
+    }
+
+    /**
+     * Adwekcja kilku pól tym samym polem prędkości w jednym przejściu po siatce. Pozycja cofnięta wzdłuż prędkości,
+     * zaokrąglenia i wagi interpolacji trójliniowej liczone są raz na komórkę i używane dla wszystkich pól,
+     * a każde pole current[f] interpolowane jest z previous[f]. Wynik jest bitowo taki sam jak przy osobnych
+     * wywołaniach dla każdego pola. Pola current nie mogą być polami prędkości ani polami previous.
+     *
+     * @param b warunki brzegowe kolejnych pól (jak w {@link #enforceBoundaryConditions})
+     */
+    void advect(int[] b, GridField[] current, GridField[] previous, GridField velocityX, GridField velocityY, GridField velocityZ) {
+        executor.forEach(room.fromX, room.toX,
+                (from, to) -> advect(current, previous, velocityX, velocityY, velocityZ, from, to));
+        for (int field = 0; field < current.length; field++) {
+            enforceBoundaryConditions(b[field], current[field]);
+        }
+    }
+
+    /**
+     * Adwekcja płaszczyzn X z zakresu [fromX, toX). Każda komórka zależy tylko od pól poprzednich,
+     * więc plastry mogą być liczone niezależnie.
+     */
+    private void advect(GridField[] current, GridField[] previous, GridField velocityX, GridField velocityY, GridField velocityZ,
+                        int fromX, int toX) {
+        if (vectorized()) {
+            VectorKernels.advect(room, current, previous, (DoubleGridField) velocityX, (DoubleGridField) velocityY,
+                    (DoubleGridField) velocityZ, timeStep, fromX, toX);
+            return;
+        }
+        if (floatKernels()) {
+            FloatKernels.advect(this, current, previous, (FloatGridField) velocityX, (FloatGridField) velocityY,
+                    (FloatGridField) velocityZ, fromX, toX);
+            return;
+        }
+        int strideX = room.strideX;
+        int strideY = room.strideY;
         double i0, i1, j0, j1, k0, k1;
-        double dtx = timeStep * (room.gridSize[0] - 2);
+        double dtx = timeStep * (room.domainSize[0] - 2);
         double dty = timeStep * (room.gridSize[1] - 2);
         double dtz = timeStep * (room.gridSize[2] - 2);
+        // Pozycja w osi X liczona jest we współrzędnych całego pomieszczenia, więc podobszar daje te same wyniki
+        // co niepodzielona siatka; originX przelicza ją na płaszczyznę tej siatki
+        int originX = room.originX;
+        int sizeX = room.domainSize[0];
 
         double s0, s1, t0, t1, u0, u1;
         double tmp1, tmp2, tmp3, x, y, z;
         double iFloat, jFloat, kFloat;
         int i, j, k;
 
-        for (k = 1, kFloat = 1; k < room.gridSize[2] - 1; k++, kFloat++) {
+        // Pętla po osi Z jest najbardziej wewnętrzna, tak aby odczyty i zapisy szły kolejno w pamięci
+        for (i = fromX, iFloat = fromX + originX; i < toX; i++, iFloat++) {
             for (j = 1, jFloat = 1; j < room.gridSize[1] - 1; j++, jFloat++) {
-                for (i = 1, iFloat = 1; i < room.gridSize[0] - 1; i++, iFloat++) {
-                    if (room.isSource[i][j][k]) continue;
-                    if(room.isWindSource[i][j][k]) continue;
-                    if (room.isBarrier[i][j][k]) {
-                        enforceObstacleBounce(i, j, k);
-                        continue;
+                for (int run = room.firstRun(i, j); run < room.lastRun(i, j); run += 2) {
+                    int fromZ = room.runFrom(run, i, j);
+                    int toZ = room.runTo(run, i, j);
+                    int cell = room.index(i, j, fromZ);
+                    for (k = fromZ, kFloat = fromZ; k < toZ; k++, kFloat++, cell++) {
+                        tmp1 = dtx * velocityX.get(cell);
+                        tmp2 = dty * velocityY.get(cell);
+                        tmp3 = dtz * velocityZ.get(cell);
+                        x = iFloat - tmp1;
+                        y = jFloat - tmp2;
+                        z = kFloat - tmp3;
+
+                        if (x < 0.5) x = 0.5;
+                        if (x > sizeX + 0.5) x = sizeX + 0.5;
+                        i0 = Math.floor(x);
+                        i1 = i0 + 1;
+                        if (y < 0.5) y = 0.5;
+                        if (y > room.gridSize[1] + 0.5) y = room.gridSize[1] + 0.5;
+                        j0 = Math.floor(y);
+                        j1 = j0 + 1;
+                        if (z < 0.5) z = 0.5;
+                        if (z > room.gridSize[2] + 0.5) z = room.gridSize[2] + 0.5;
+                        k0 = Math.floor(z);
+                        k1 = k0 + 1;
+
+                        s1 = x - i0;
+                        s0 = 1 - s1;
+                        t1 = y - j0;
+                        t0 = 1 - t1;
+                        u1 = z - k0;
+                        u0 = 1 - u1;
+
+                        int i0i = (int) i0;
+                        int i1i = (int) i1;
+                        int j0i = (int) j0;
+                        int j1i = (int) j1;
+                        int k0i = (int) k0;
+                        int k1i = (int) k1;
+                        if (i0i > sizeX - 1 || i1i > sizeX - 1) continue;
+                        if (j0i > room.gridSize[1] - 1 || j1i > room.gridSize[1] - 1) continue;
+                        if (k0i > room.gridSize[2] - 1 || k1i > room.gridSize[2] - 1) continue;
+                        checkHalo(i0i - originX);
+                        // i1i == i0i + 1 itd., więc narożniki komórki leżą o strideX, strideY i 1 od narożnika (i0, j0, k0)
+                        int c000 = room.index(i0i - originX, j0i, k0i);
+                        for (int field = 0; field < current.length; field++) {
+                            current[field].set(cell, interpolate(previous[field], c000, strideX, strideY, s0, s1, t0, t1, u0, u1));
+                        }
                     }
-                    tmp1 = dtx * velocityX[i][j][k];
-                    tmp2 = dty * velocityY[i][j][k];
-                    tmp3 = dtz * velocityZ[i][j][k];
-                    x = iFloat - tmp1;
-                    y = jFloat - tmp2;
-                    z = kFloat - tmp3;
-
-                    if (x < 0.5) x = 0.5;
-                    if (x > room.gridSize[0] + 0.5) x = room.gridSize[0] + 0.5;
-                    i0 = Math.floor(x);
-                    i1 = i0 + 1;
-                    if (y < 0.5) y = 0.5;
-                    if (y > room.gridSize[1] + 0.5) y = room.gridSize[1] + 0.5;
-                    j0 = Math.floor(y);
-                    j1 = j0 + 1;
-                    if (z < 0.5) z = 0.5;
-                    if (z > room.gridSize[2] + 0.5) z = room.gridSize[2] + 0.5;
-                    k0 = Math.floor(z);
-                    k1 = k0 + 1;
-
-                    s1 = x - i0;
-                    s0 = 1 - s1;
-                    t1 = y - j0;
-                    t0 = 1 - t1;
-                    u1 = z - k0;
-                    u0 = 1 - u1;
-
-                    int i0i = (int) i0;
-                    int i1i = (int) i1;
-                    int j0i = (int) j0;
-                    int j1i = (int) j1;
-                    int k0i = (int) k0;
-                    int k1i = (int) k1;
-                    if (i0i > room.gridSize[0] - 1 || i1i > room.gridSize[0] - 1) continue;
-                    if (j0i > room.gridSize[1] - 1 || j1i > room.gridSize[1] - 1) continue;
-                    if (k0i > room.gridSize[2] - 1 || k1i > room.gridSize[2] - 1) continue;
-                    current[i][j][k] =
-                            s0 * (t0 * (u0 * previous[i0i][j0i][k0i]
-                                    + u1 * previous[i0i][j0i][k1i])
-                                    + (t1 * (u0 * previous[i0i][j1i][k0i]
-                                    + u1 * previous[i0i][j1i][k1i])))
-                                    + s1 * (t0 * (u0 * previous[i1i][j0i][k0i]
-                                    + u1 * previous[i1i][j0i][k1i])
-                                    + (t1 * (u0 * previous[i1i][j1i][k0i]
-                                    + u1 * previous[i1i][j1i][k1i])));
                 }
             }
         }
-        enforceBoundaryConditions(b, current);
     }
 
+    /**
+     * Adwekcja gęstości dymu i temperatury razem z siłą wyporu, w jednym przejściu po siatce: pozycja cofnięta
+     * wzdłuż prędkości i wagi interpolacji liczone są raz dla obu pól, temperatura stygnie do temperatury otoczenia,
+     * a z nowej gęstości i temperatury komórki wyznaczane jest przyspieszenie dodawane do velocityY.
+     * Każda komórka czyta prędkość tylko z siebie samej, więc zmiana velocityY w tym samym przejściu jest bezpieczna.
+     * Nowa prędkość trafia do pól "prev" na końcu kroku i jest źródłem dyfuzji prędkości w następnym kroku.
+     */
+    void advect(GridField density, GridField previousDensity, GridField temperature, GridField previousTemperature,
+                GridField velocityX, GridField velocityY, GridField velocityZ) {
+        executor.forEach(room.fromX, room.toX, (from, to) -> advect(density, previousDensity, temperature,
+                previousTemperature, velocityX, velocityY, velocityZ, from, to));
+        enforceBoundaryConditions(0, density);
+        enforceBoundaryConditions(0, temperature);
+        enforceBoundaryConditions(2, velocityY);
+    }
 
-    //Ten krok zapewnia, że symulacja zachowuje zasadę nieściśliwości płynu (np. powietrze/dym traktujemy jako nieściśliwy).
-//W tym celu metoda usuwa składową wiru z pola prędkości.
-    private void project(double[][][] velocityX, double[][][] velocityY, double[][][] velocityZ,
-                         double[][][] pressure, double[][][] divergence) {
-        // Oblicz dywergencję
-        for (int x = 1; x < room.gridSize[0] - 1; x++) {
-            for (int y = 1; y < room.gridSize[1] - 1; y++) {
-                for (int z = 1; z < room.gridSize[2] - 1; z++) {
-                    if (room.isSource[x][y][z]) continue;
-                    if(room.isWindSource[x][y][z]) continue;
-                    if (room.isBarrier[x][y][z]) {
-                        enforceObstacleBounce(x, y, z);
-                        continue;
+    private void advect(GridField density, GridField previousDensity, GridField temperature, GridField previousTemperature,
+                        GridField velocityX, GridField velocityY, GridField velocityZ, int fromX, int toX) {
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        double dtx = timeStep * (room.domainSize[0] - 2);
+        double dty = timeStep * (room.gridSize[1] - 2);
+        double dtz = timeStep * (room.gridSize[2] - 2);
+        int originX = room.originX;
+        int sizeX = room.domainSize[0];
+        double ambient = ambientTemperature;
+        double cooling = Math.exp(-coolingRate * timeStep);
+        double lift = timeStep * buoyancy;
+        double weight = timeStep * smokeWeight;
+
+        for (int i = fromX; i < toX; i++) {
+            for (int j = 1; j < room.gridSize[1] - 1; j++) {
+                for (int run = room.firstRun(i, j); run < room.lastRun(i, j); run += 2) {
+                    int fromZ = room.runFrom(run, i, j);
+                    int toZ = room.runTo(run, i, j);
+                    int cell = room.index(i, j, fromZ);
+                    for (int k = fromZ; k < toZ; k++, cell++) {
+                        double vy = velocityY.get(cell);
+                        double x = i + originX - dtx * velocityX.get(cell);
+                        double y = j - dty * vy;
+                        double z = k - dtz * velocityZ.get(cell);
+
+                        if (x < 0.5) x = 0.5;
+                        if (x > sizeX + 0.5) x = sizeX + 0.5;
+                        if (y < 0.5) y = 0.5;
+                        if (y > room.gridSize[1] + 0.5) y = room.gridSize[1] + 0.5;
+                        if (z < 0.5) z = 0.5;
+                        if (z > room.gridSize[2] + 0.5) z = room.gridSize[2] + 0.5;
+                        double i0 = Math.floor(x);
+                        double j0 = Math.floor(y);
+                        double k0 = Math.floor(z);
+
+                        double s1 = x - i0;
+                        double s0 = 1 - s1;
+                        double t1 = y - j0;
+                        double t0 = 1 - t1;
+                        double u1 = z - k0;
+                        double u0 = 1 - u1;
+
+                        int i0i = (int) i0;
+                        int j0i = (int) j0;
+                        int k0i = (int) k0;
+                        if (i0i + 1 > sizeX - 1) continue;
+                        if (j0i + 1 > room.gridSize[1] - 1) continue;
+                        if (k0i + 1 > room.gridSize[2] - 1) continue;
+                        checkHalo(i0i - originX);
+                        int c000 = room.index(i0i - originX, j0i, k0i);
+                        double newDensity = interpolate(previousDensity, c000, strideX, strideY, s0, s1, t0, t1, u0, u1);
+                        double newTemperature = ambient + cooling
+                                * (interpolate(previousTemperature, c000, strideX, strideY, s0, s1, t0, t1, u0, u1) - ambient);
+                        density.set(cell, newDensity);
+                        temperature.set(cell, newTemperature);
+                        // Oś Y rośnie w dół pomieszczenia - wypór zmniejsza velocityY, a ciężar dymu ją zwiększa
+                        velocityY.set(cell, vy - lift * (newTemperature - ambient) + weight * newDensity);
                     }
-                    divergence[x][y][z] = -0.5 * (
-                            (velocityX[x + 1][y][z] - velocityX[x - 1][y][z]) / room.gridSize[0]
-                                    + (velocityY[x][y + 1][z] - velocityY[x][y - 1][z]) / room.gridSize[1]
-                                    + (velocityZ[x][y][z + 1] - velocityZ[x][y][z - 1]) / room.gridSize[2]);
-                    pressure[x][y][z] = 0;
                 }
             }
         }
+    }
+
+    /**
+     * Sprawdza, czy komórki interpolacji z płaszczyzn x i x + 1 tej siatki leżą w podobszarze razem z halo.
+     * W niepodzielonej siatce jest tak zawsze.
+     */
+    void checkHalo(int x) {
+        if (x < 0 || x + 1 > room.gridSize[0] - 1) {
+            throw new IllegalStateException("Advection backtrace leaves the subdomain halo of " + halo.width
+                    + " planes; use a shorter time step, an adaptive time step or a wider halo");
+        }
+    }
+
+    /**
+     * Interpolacja trójliniowa pola w komórce o narożniku c000 z wagami (s, t, u) w osiach X, Y i Z
+     */
+    private static double interpolate(GridField field, int c000, int strideX, int strideY,
+                                      double s0, double s1, double t0, double t1, double u0, double u1) {
+        return s0 * (t0 * (u0 * field.get(c000)
+                + u1 * field.get(c000 + 1))
+                + (t1 * (u0 * field.get(c000 + strideY)
+                + u1 * field.get(c000 + strideY + 1))))
+                + s1 * (t0 * (u0 * field.get(c000 + strideX)
+                + u1 * field.get(c000 + strideX + 1))
+                + (t1 * (u0 * field.get(c000 + strideX + strideY)
+                + u1 * field.get(c000 + strideX + strideY + 1))));
+    }
+
+
+    //Ten krok zapewnia, że symulacja zachowuje zasadę nieściśliwości płynu (np. powietrze/dym traktujemy jako nieściśliwy).
+//W tym celu metoda usuwa składową wiru z pola prędkości.
+    void project(GridField velocityX, GridField velocityY, GridField velocityZ, GridField pressure) {
+        GridField divergence = room.divergence;
+        boolean resetPressure = !pressureSolver.isWarmStart();
+
+        // Oblicz dywergencję
+        executor.forEach(room.fromX, room.toX,
+                (from, to) -> computeDivergence(velocityX, velocityY, velocityZ, pressure, divergence, resetPressure, from, to));
 
         enforceBoundaryConditions(0, divergence);
         enforceBoundaryConditions(0, pressure);
 
         // Rozwiąż równe Laplace’a dla ciśnienia
-        for (int iteration = 0; iteration < 4; iteration++) {
-            for (int x = 1; x < room.gridSize[0] - 1; x++) {
-                for (int y = 1; y < room.gridSize[1] - 1; y++) {
-                    for (int z = 1; z < room.gridSize[2] - 1; z++) {
-                        if (room.isSource[x][y][z]) continue;
-                        if(room.isWindSource[x][y][z]) continue;
-                        if (room.isBarrier[x][y][z]) {
-                            enforceObstacleBounce(x, y, z);
-                            continue;
+        pressureSolver.solve(this, pressure, divergence);
+
+        // Zaktualizuj pole prędkości
+        executor.forEach(room.fromX, room.toX,
+                (from, to) -> subtractPressureGradient(velocityX, velocityY, velocityZ, pressure, from, to));
+        enforceBoundaryConditions(1, velocityX);
+        enforceBoundaryConditions(2, velocityY);
+        enforceBoundaryConditions(3, velocityZ);
+    }
+
+    private void computeDivergence(GridField velocityX, GridField velocityY, GridField velocityZ,
+                                   GridField pressure, GridField divergence, boolean resetPressure, int fromX, int toX) {
+        if (vectorized()) {
+            VectorKernels.computeDivergence(room, (DoubleGridField) velocityX, (DoubleGridField) velocityY,
+                    (DoubleGridField) velocityZ, (DoubleGridField) pressure, (DoubleGridField) divergence, resetPressure, fromX, toX);
+            return;
+        }
+        if (vectorizedFloat()) {
+            VectorKernels.computeDivergence(room, (FloatGridField) velocityX, (FloatGridField) velocityY,
+                    (FloatGridField) velocityZ, (FloatGridField) pressure, (FloatGridField) divergence, resetPressure, fromX, toX);
+            return;
+        }
+        if (floatKernels()) {
+            FloatKernels.computeDivergence(room, (FloatGridField) velocityX, (FloatGridField) velocityY,
+                    (FloatGridField) velocityZ, (FloatGridField) pressure, (FloatGridField) divergence, resetPressure, fromX, toX);
+            return;
+        }
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int fromZ = room.runFrom(run, x, y);
+                    int toZ = room.runTo(run, x, y);
+                    int i = room.index(x, y, fromZ);
+                    for (int z = fromZ; z < toZ; z++, i++) {
+                        divergence.set(i, -0.5 * (
+                                (velocityX.get(i + strideX) - velocityX.get(i - strideX)) / room.domainSize[0]
+                                        + (velocityY.get(i + strideY) - velocityY.get(i - strideY)) / room.gridSize[1]
+                                        + (velocityZ.get(i + 1) - velocityZ.get(i - 1)) / room.gridSize[2]));
+                        if (resetPressure) {
+                            pressure.set(i, 0);
                         }
-                        pressure[x][y][z] = (divergence[x][y][z] +
-                                pressure[x + 1][y][z] + pressure[x - 1][y][z] +
-                                pressure[x][y + 1][z] + pressure[x][y - 1][z] +
-                                pressure[x][y][z + 1] + pressure[x][y][z - 1]) / 6;
                     }
                 }
             }
-            enforceBoundaryConditions(0, pressure);
         }
+    }
 
-        // Zaktualizuj pole prędkości
-        for (int x = 1; x < room.gridSize[0] - 1; x++) {
+    private void subtractPressureGradient(GridField velocityX, GridField velocityY, GridField velocityZ,
+                                          GridField pressure, int fromX, int toX) {
+        if (vectorized()) {
+            VectorKernels.subtractPressureGradient(room, (DoubleGridField) velocityX, (DoubleGridField) velocityY,
+                    (DoubleGridField) velocityZ, (DoubleGridField) pressure, fromX, toX);
+            return;
+        }
+        if (vectorizedFloat()) {
+            VectorKernels.subtractPressureGradient(room, (FloatGridField) velocityX, (FloatGridField) velocityY,
+                    (FloatGridField) velocityZ, (FloatGridField) pressure, fromX, toX);
+            return;
+        }
+        if (floatKernels()) {
+            FloatKernels.subtractPressureGradient(room, (FloatGridField) velocityX, (FloatGridField) velocityY,
+                    (FloatGridField) velocityZ, (FloatGridField) pressure, fromX, toX);
+            return;
+        }
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        for (int x = fromX; x < toX; x++) {
             for (int y = 1; y < room.gridSize[1] - 1; y++) {
-                for (int z = 1; z < room.gridSize[2] - 1; z++) {
-                    if (room.isSource[x][y][z]) continue;
-                    if(room.isWindSource[x][y][z]) continue;
-                    if (room.isBarrier[x][y][z]) {
-                        enforceObstacleBounce(x, y, z);
-                        continue;
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int fromZ = room.runFrom(run, x, y);
+                    int toZ = room.runTo(run, x, y);
+                    int i = room.index(x, y, fromZ);
+                    for (int z = fromZ; z < toZ; z++, i++) {
+                        velocityX.set(i, velocityX.get(i) - 0.5 * (pressure.get(i + strideX) - pressure.get(i - strideX)) * room.domainSize[0]);
+                        velocityY.set(i, velocityY.get(i) - 0.5 * (pressure.get(i + strideY) - pressure.get(i - strideY)) * room.gridSize[1]);
+                        velocityZ.set(i, velocityZ.get(i) - 0.5 * (pressure.get(i + 1) - pressure.get(i - 1)) * room.gridSize[2]);
                     }
-                    velocityX[x][y][z] -= 0.5 * (pressure[x + 1][y][z] - pressure[x - 1][y][z]) * room.gridSize[0];
-                    velocityY[x][y][z] -= 0.5 * (pressure[x][y + 1][z] - pressure[x][y - 1][z]) * room.gridSize[1];
-                    velocityZ[x][y][z] -= 0.5 * (pressure[x][y][z + 1] - pressure[x][y][z - 1]) * room.gridSize[2];
                 }
             }
         }
-        enforceBoundaryConditions(1, velocityX);
-        enforceBoundaryConditions(2, velocityY);
-        enforceBoundaryConditions(3, velocityZ);
     }
 
 
-    private void enforceBoundaryConditions(int b, double[][][] x) {
+    void enforceBoundaryConditions(int b, GridField x) {
+        SimulationMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
         int sizeX = room.gridSize[0];
         int sizeY = room.gridSize[1];
         int sizeZ = room.gridSize[2];
 
-        for (int j = 1; j < sizeY - 1; j++) {
-            for (int i = 1; i < sizeX - 1; i++) {
-                x[i][j][0] = b == 3 ? -x[i][j][1] : x[i][j][1];
-                x[i][j][sizeZ - 1] = b == 3 ? -x[i][j][sizeZ - 2] : x[i][j][sizeZ - 2];
+        // Ściany Z i Y - każdy plaster X czyta tylko komórki wewnętrzne i zapisuje tylko swoje ściany
+        executor.forEach(room.fromX, room.toX, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                for (int j = 1; j < sizeY - 1; j++) {
+                    x.set(i, j, 0, b == 3 ? -x.get(i, j, 1) : x.get(i, j, 1));
+                    x.set(i, j, sizeZ - 1, b == 3 ? -x.get(i, j, sizeZ - 2) : x.get(i, j, sizeZ - 2));
+                }
+                for (int k = 1; k < sizeZ - 1; k++) {
+                    x.set(i, 0, k, b == 2 ? -x.get(i, 1, k) : x.get(i, 1, k));
+                    x.set(i, sizeY - 1, k, b == 2 ? -x.get(i, sizeY - 2, k) : x.get(i, sizeY - 2, k));
+                }
             }
-        }
-        for (int k = 1; k < sizeZ - 1; k++) {
-            for (int i = 1; i < sizeX - 1; i++) {
-                x[i][0][k] = b == 2 ? -x[i][1][k] : x[i][1][k];
-                x[i][sizeY - 1][k] = b == 2 ? -x[i][sizeY - 2][k] : x[i][sizeY - 2][k];
+        });
+        // Ściany X - podobszar ma ścianę pomieszczenia tylko po stronie, na której kończy się pomieszczenie
+        boolean lowWall = room.originX == 0;
+        boolean highWall = room.originX + sizeX == room.domainSize[0];
+        executor.forEach(1, sizeY - 1, (from, to) -> {
+            for (int j = from; j < to; j++) {
+                for (int k = 1; k < sizeZ - 1; k++) {
+                    if (lowWall) {
+                        x.set(0, j, k, b == 1 ? -x.get(1, j, k) : x.get(1, j, k));
+                    }
+                    if (highWall) {
+                        x.set(sizeX - 1, j, k, b == 1 ? -x.get(sizeX - 2, j, k) : x.get(sizeX - 2, j, k));
+                    }
+                }
             }
+        });
+        if (lowWall) {
+            x.set(0, 0, 0, 0.33 * (x.get(1, 0, 0) + x.get(0, 1, 0) + x.get(0, 0, 1)));
+            x.set(0, sizeY - 1, 0, 0.33 * (x.get(1, sizeY - 1, 0) + x.get(0, sizeY - 2, 0) + x.get(0, sizeY - 1, 1)));
+            x.set(0, 0, sizeZ - 1, 0.33 * (x.get(1, 0, sizeZ - 1) + x.get(0, 1, sizeZ - 1) + x.get(0, 0, sizeZ - 2)));
         }
-        for (int k = 1; k < sizeZ - 1; k++) {
-            for (int j = 1; j < sizeY - 1; j++) {
-                x[0][j][k] = b == 1 ? -x[1][j][k] : x[1][j][k];
-                x[sizeX - 1][j][k] = b == 1 ? -x[sizeX - 2][j][k] : x[sizeX - 2][j][k];
-            }
+        if (highWall) {
+            x.set(sizeX - 1, 0, 0, 0.33 * (x.get(sizeX - 2, 0, 0) + x.get(sizeX - 1, 1, 0) + x.get(sizeX - 1, 0, 1)));
         }
-        x[0][0][0] = 0.33 * (x[1][0][0] + x[0][1][0] + x[0][0][1]);
-        x[0][sizeY - 1][0] = 0.33 * (x[1][sizeY - 1][0] + x[0][sizeY - 2][0] + x[0][sizeY - 1][1]);
-        x[0][0][sizeZ - 1] = 0.33 * (x[1][0][sizeZ - 1] + x[0][1][sizeZ - 1] + x[0][0][sizeZ - 2]);
-        x[sizeX - 1][0][0] = 0.33 * (x[sizeX - 2][0][0] + x[sizeX - 1][1][0] + x[sizeX - 1][0][1]);
-        x[0][sizeY - 1][sizeZ - 1] = 0.33 * (x[1][sizeY - 1][sizeZ - 1] + x[0][sizeY - 2][sizeZ - 1] + x[0][sizeY - 1][sizeZ - 2]);
-        x[sizeX - 1][sizeY - 1][0] = 0.33 * (x[sizeX - 2][sizeY - 1][0] + x[sizeX - 1][sizeY - 2][0] + x[sizeX - 1][sizeY - 1][1]);
-        x[sizeX - 1][0][sizeZ - 1] = 0.33 * (x[sizeX - 2][0][sizeZ - 1] + x[sizeX - 1][0][sizeZ - 2] + x[sizeX - 1][1][sizeZ - 1]);
-        x[sizeX - 1][sizeY - 1][sizeZ - 1] = 0.33 * (x[sizeX - 2][sizeY - 1][sizeZ - 1] + x[sizeX - 1][sizeY - 2][sizeZ - 1] + x[sizeX - 1][sizeY - 1][sizeZ - 2]);
-    }
-
-    private void enforceObstacleBounce(int x, int y, int z) {
-        if (room.isBarrier[x][y][z]) {
-            double bounceRate = 0.9;
-            // Jeśli przeszkoda jest w osi X, odbijamy prędkość w tej osi
-            if (room.velocityX[x][y][z] < 0) {
-                room.velocityX[x][y][z] = -room.velocityX[x][y][z] * bounceRate;  // Odbicie w kierunku pozytywnym
-            } else {
-                room.velocityX[x][y][z] = -room.velocityX[x][y][z] * bounceRate; // Odbicie w kierunku negatywnym
+        if (lowWall) {
+            x.set(0, sizeY - 1, sizeZ - 1, 0.33 * (x.get(1, sizeY - 1, sizeZ - 1) + x.get(0, sizeY - 2, sizeZ - 1) + x.get(0, sizeY - 1, sizeZ - 2)));
+        }
+        if (highWall) {
+            x.set(sizeX - 1, sizeY - 1, 0, 0.33 * (x.get(sizeX - 2, sizeY - 1, 0) + x.get(sizeX - 1, sizeY - 2, 0) + x.get(sizeX - 1, sizeY - 1, 1)));
+            x.set(sizeX - 1, 0, sizeZ - 1, 0.33 * (x.get(sizeX - 2, 0, sizeZ - 1) + x.get(sizeX - 1, 0, sizeZ - 2) + x.get(sizeX - 1, 1, sizeZ - 1)));
+            x.set(sizeX - 1, sizeY - 1, sizeZ - 1, 0.33 * (x.get(sizeX - 2, sizeY - 1, sizeZ - 1) + x.get(sizeX - 1, sizeY - 2, sizeZ - 1) + x.get(sizeX - 1, sizeY - 1, sizeZ - 2)));
+        }
+        exchangeHalo(x);
+        if (metrics != null) {
+            metrics.addBoundary(start);
+        }
+    }
+
+    /**
+     * Wymienia halo pola z sąsiednimi podobszarami, jeśli siatka jest podobszarem pomieszczenia
+     */
+    private void exchangeHalo(GridField field) {
+        if (halo != null) {
+            halo.exchange(field);
+        }
+    }
+
+    /**
+     * Odbicie prędkości we wszystkich komórkach przeszkód z listy {@link SmokeGrid#obstacleCells},
+     * wykonywane raz na krok symulacji po wyznaczeniu nowego pola prędkości
+     */
+    private void enforceObstacleBounce() {
+        SimulationMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        int[] obstacles = room.obstacleCells;
+        executor.forEach(0, obstacles.length, (from, to) -> {
+            for (int k = from; k < to; k++) {
+                enforceObstacleBounce(obstacles[k]);
             }
+        });
+        // Przeszkody na zewnętrznej płaszczyźnie halo nie trafiają do listy - halo bierze prędkości od sąsiada
+        exchangeHalo(room.velocityX);
+        exchangeHalo(room.velocityY);
+        exchangeHalo(room.velocityZ);
+        if (metrics != null) {
+            metrics.addBoundary(start);
+        }
+    }
 
-            // Jeśli przeszkoda jest w osi Y, odbijamy prędkość w tej osi
-            if (room.velocityY[x][y][z] < 0) {
-                room.velocityY[x][y][z] = -room.velocityY[x][y][z] * bounceRate;
-            } else {
-                room.velocityY[x][y][z] = -room.velocityY[x][y][z] * bounceRate;
+    private void enforceObstacleBounce(int i) {
+        double bounceRate = 0.9;
+        // Jeśli przeszkoda jest w osi X, odbijamy prędkość w tej osi
+        if (room.velocityX.get(i) < 0) {
+            room.velocityX.set(i, -room.velocityX.get(i) * bounceRate);  // Odbicie w kierunku pozytywnym
+        } else {
+            room.velocityX.set(i, -room.velocityX.get(i) * bounceRate); // Odbicie w kierunku negatywnym
+        }
+
+        // Jeśli przeszkoda jest w osi Y, odbijamy prędkość w tej osi
+        if (room.velocityY.get(i) < 0) {
+            room.velocityY.set(i, -room.velocityY.get(i) * bounceRate);
+        } else {
+            room.velocityY.set(i, -room.velocityY.get(i) * bounceRate);
+        }
+
+        // Jeśli przeszkoda jest w osi Z, odbijamy prędkość w tej osi
+        if (room.velocityZ.get(i) < 0) {
+            room.velocityZ.set(i, -room.velocityZ.get(i) * bounceRate);
+        } else {
+            room.velocityZ.set(i, -room.velocityZ.get(i) * bounceRate);
+        }
+
+        // Zmniejszamy gęstość dymu przy kolizji, ale nie poniżej zera
+//            room.density[x][y][z] = Math.max(0, room.density[x][y][z] * 0.8);  // Zmniejszamy gęstość w pobliżu przeszkody
+    }
+
+
+    void fadeSmokeDensity(){
+        executor.forEach(0, room.gridSize[0], this::fadeSmokeDensity);
+    }
+
+    private void fadeSmokeDensity(int fromX, int toX) {
+        if (room.precision == FieldPrecision.FLOAT) {
+            flushSubnormals(fromX, toX);
+        }
+        int sizeZ = room.gridSize[2];
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 0; y < room.gridSize[1]; y++) {
+                if (room.active == null || x == 0 || x == room.gridSize[0] - 1 || y == 0 || y == room.gridSize[1] - 1) {
+                    fadeCells(room.index(x, y, 0), sizeZ);
+                    continue;
+                }
+                // Przy śledzeniu aktywnych bloków we wnętrzu wiersza liczony jest tylko jego zakres i dwie ściany Z
+                int fromZ = room.rowFrom(x, y);
+                fadeCells(room.index(x, y, 0), 1);
+                fadeCells(room.index(x, y, fromZ), room.rowTo(x, y) - fromZ);
+                fadeCells(room.index(x, y, sizeZ - 1), 1);
             }
+        }
+    }
 
-            // Jeśli przeszkoda jest w osi Z, odbijamy prędkość w tej osi
-            if (room.velocityZ[x][y][z] < 0) {
-                room.velocityZ[x][y][z] = -room.velocityZ[x][y][z] * bounceRate;
-            } else {
-                room.velocityZ[x][y][z] = -room.velocityZ[x][y][z] * bounceRate;
+    /**
+     * Zeruje liczby subnormalne pól stanu float w płaszczyznach X z zakresu [fromX, toX) - raz na krok zamiast
+     * przy każdym zapisie ({@link FloatGridField#flushSubnormals})
+     */
+    private void flushSubnormals(int fromX, int toX) {
+        int from = room.index(fromX, -GridField.GHOST, -GridField.GHOST);
+        int to = room.index(toX, -GridField.GHOST, -GridField.GHOST);
+        ((FloatGridField) room.density).flushSubnormals(from, to);
+        ((FloatGridField) room.velocityX).flushSubnormals(from, to);
+        ((FloatGridField) room.velocityY).flushSubnormals(from, to);
+        ((FloatGridField) room.velocityZ).flushSubnormals(from, to);
+        ((FloatGridField) room.pressure).flushSubnormals(from, to);
+        ((FloatGridField) room.prevPressure).flushSubnormals(from, to);
+        if (temperatureEnabled) {
+            ((FloatGridField) room.temperature).flushSubnormals(from, to);
+        }
+    }
+
+    /**
+     * Zmniejsza gęstość dymu w count kolejnych komórkach od indeksu first. Zanikanie {@link #decayRate} podane jest
+     * na krok {@link #baseTimeStep} - krótszy krok adaptacyjny zmniejsza gęstość proporcjonalnie mniej.
+     */
+    private void fadeCells(int first, int count) {
+        double decay = decayRate * (timeStep / baseTimeStep);
+        for (int i = first; i < first + count; i++) {
+            if (room.cellType[i] == SmokeGrid.SOURCE) {
+                continue;
             }
+            room.density.set(i, room.density.get(i) - decay);
+            if (room.density.get(i) < 0) {
+                room.density.set(i, 0);
+            }
+        }
+    }
 
-            // Zmniejszamy gęstość dymu przy kolizji, ale nie poniżej zera
-//            room.density[x][y][z] = Math.max(0, room.density[x][y][z] * 0.8);  // Zmniejszamy gęstość w pobliżu przeszkody
+    /**
+     * Wykonuje kroki symulacji, aż czas symulacji osiągnie podany czas. Ostatni krok jest skracany tak, żeby
+     * skończyć dokładnie w czasie docelowym.
+     *
+     * @param time czas symulacji, do którego liczyć
+     * @return liczba wykonanych kroków
+     */
+    public long advanceTo(double time) {
+        long steps = 0;
+        while (stepTowards(time)) {
+            steps++;
         }
+        return steps;
     }
 
+    /**
+     * Wykonuje jeden krok symulacji, który nie przekracza podanego czasu - krok {@link #update()}, ale skrócony,
+     * gdy do czasu docelowego zostało mniej niż krok. W trybie adaptacyjnym, gdy zostały mniej niż dwa kroki,
+     * reszta dzielona jest na dwa równe kroki, żeby ostatni nie był dużo krótszy od poprzednich.
+     *
+     * @param time czas symulacji, do którego liczyć
+     * @return false, gdy czas symulacji osiągnął już podany czas i krok nie został wykonany
+     */
+    public boolean stepTowards(double time) {
+        if (Double.isNaN(time)) {
+            throw new IllegalArgumentException("Target time must be a number");
+        }
+        if (!(time - simulationTime > TIME_TOLERANCE * Math.max(baseTimeStep, Math.abs(time)))) {
+            return false;
+        }
+        targetTime = time;
+        try {
+            update();
+        } finally {
+            targetTime = Double.POSITIVE_INFINITY;
+        }
+        return true;
+    }
+
+    /**
+     * Wybiera krok czasowy następnego kroku: stały albo z warunku CFL, skrócony do czasu docelowego {@link #targetTime}
+     */
+    private void chooseTimeStep() {
+        double step = baseTimeStep;
+        if (adaptiveTimeStep) {
+            maxCellSpeed = executor.max(0, room.gridSize[0], this::maxCellSpeed);
+            if (halo != null) {
+                maxCellSpeed = halo.max(maxCellSpeed);
+            }
+            // Przy nieruchomym powietrzu cflTarget / 0 daje nieskończoność, ograniczaną do maxTimeStep
+            step = cflTarget / maxCellSpeed;
+            step = Double.isNaN(step) ? minTimeStep : Math.min(maxTimeStep, Math.max(minTimeStep, step));
+        }
+        double remaining = targetTime - simulationTime;
+        if (remaining < step * (1 - TIME_TOLERANCE)) {
+            step = remaining;
+        } else if (adaptiveTimeStep && remaining < 2 * step) {
+            step = remaining / 2;
+        }
+        timeStep = step;
+    }
 
-    private void fadeSmokeDensity(){
-        for (int x = 0; x < room.gridSize[0]; x++) {
+    /**
+     * Największa prędkość w płaszczyznach X z zakresu [fromX, toX) w komórkach na jednostkę czasu - składowe
+     * skalowane są liczbą komórek wewnętrznych w osi, tak jak przy cofaniu pozycji w adwekcji
+     */
+    private double maxCellSpeed(int fromX, int toX) {
+        double scaleX = room.domainSize[0] - 2;
+        double scaleY = room.gridSize[1] - 2;
+        double scaleZ = room.gridSize[2] - 2;
+        int sizeZ = room.gridSize[2];
+        double max = 0;
+        for (int x = fromX; x < toX; x++) {
             for (int y = 0; y < room.gridSize[1]; y++) {
-                for (int z = 0; z < room.gridSize[2]; z++) {
-                    if (room.isSource[x][y][z]) {
-                        continue;
-                    }
-                    room.density[x][y][z] -= decayRate;
-                    if (room.density[x][y][z] < 0) {
-                        room.density[x][y][z] = 0;
-                    }
+                int i = room.index(x, y, 0);
+                for (int z = 0; z < sizeZ; z++, i++) {
+                    double speed = Math.max(Math.abs(room.velocityX.get(i)) * scaleX,
+                            Math.max(Math.abs(room.velocityY.get(i)) * scaleY, Math.abs(room.velocityZ.get(i)) * scaleZ));
+                    // NaN przechodzi przez Math.max, więc rozbieżne pole skraca krok do minTimeStep
+                    max = Math.max(max, speed);
                 }
             }
         }
+        return max;
     }
 
     // Główna metoda aktualizująca symulację
     public void update() {
+        SimulationMetrics metrics = this.metrics;
+        int pressureIterations = 0;
+        if (metrics != null) {
+            metrics.beginStep();
+            metrics.beginPhase();
+        }
+
+        chooseTimeStep();
+        if (metrics != null && adaptiveTimeStep) {
+            metrics.endPhase(SimulationMetrics.Phase.TIME_STEP, 1, interiorCells());
+            metrics.beginPhase();
+        }
+
+        if (room.geometryDirty) {
+            room.rebuildGeometry();
+        }
+
+        if (room.active != null) {
+            room.active.update(room, executor);
+            if (metrics != null) {
+                metrics.endPhase(SimulationMetrics.Phase.ACTIVE_REGION, 1, interiorCells());
+                metrics.beginPhase();
+            }
+        }
 
         // Rozpraszanie
         diffuse(1, room.velocityX, room.prevVelocityX, diffRate);
         diffuse(2, room.velocityY, room.prevVelocityY, diffRate);
         diffuse(3, room.velocityZ, room.prevVelocityZ, diffRate);
 
-        project(room.prevVelocityX, room.prevVelocityY, room.prevVelocityZ, room.velocityX, room.velocityY);
+        if (metrics != null) {
+            metrics.endPhase(SimulationMetrics.Phase.DIFFUSE, 3 * DIFFUSE_SWEEPS, interiorCells());
+            metrics.beginPhase();
+        }
 
-        advect(1, room.velocityX, room.prevVelocityX, room.prevVelocityX, room.prevVelocityY, room.prevVelocityZ);
-        advect(2, room.velocityY, room.prevVelocityY, room.prevVelocityX, room.prevVelocityY, room.prevVelocityZ);
-        advect(3, room.velocityZ, room.prevVelocityZ, room.prevVelocityX, room.prevVelocityY, room.prevVelocityZ);
+        project(room.prevVelocityX, room.prevVelocityY, room.prevVelocityZ, room.prevPressure);
+        pressureIterations += pressureSolver.lastIterations;
 
-        project(room.velocityX, room.velocityY, room.velocityZ, room.prevVelocityX, room.prevVelocityY);
+        if (metrics != null) {
+            metrics.endPhase(SimulationMetrics.Phase.PROJECT, pressureSolver.lastIterations + 2, interiorCells());
+            metrics.beginPhase();
+        }
 
-        diffuse(0, room.prevDensity, room.density, diffRate);
+        // Trzy składowe prędkości przenoszone są jednym przejściem - pozycja cofnięta i wagi liczone są raz na komórkę
+        advect(VELOCITY_BOUNDARIES, velocities, previousVelocities,
+                room.prevVelocityX, room.prevVelocityY, room.prevVelocityZ);
 
-        advect(0, room.density, room.prevDensity, room.velocityX, room.velocityY, room.velocityZ);
+        if (metrics != null) {
+            metrics.endPhase(SimulationMetrics.Phase.ADVECT, 3, interiorCells());
+            metrics.beginPhase();
+        }
 
-        fadeSmokeDensity();
+        project(room.velocityX, room.velocityY, room.velocityZ, room.pressure);
+        pressureIterations += pressureSolver.lastIterations;
 
-        room.prevVelocityX = copy(room.velocityX);
-        room.prevVelocityY = copy(room.velocityY);
-        room.prevVelocityZ = copy(room.velocityZ);
-        room.prevDensity = copy(room.density);
+        // Odbicie od przeszkód raz na krok, po wyznaczeniu nowego pola prędkości
+        enforceObstacleBounce();
 
-    }
+        if (metrics != null) {
+            metrics.endPhase(SimulationMetrics.Phase.PROJECT, pressureSolver.lastIterations + 2, interiorCells());
+            metrics.beginPhase();
+        }
 
+        if (temperatureEnabled) {
+            diffuse(room.prevDensity, room.density, room.prevTemperature, room.temperature, diffRate);
+        } else {
+            diffuse(0, room.prevDensity, room.density, diffRate);
+        }
+
+        if (metrics != null) {
+            metrics.endPhase(SimulationMetrics.Phase.DIFFUSE, DIFFUSE_SWEEPS, interiorCells());
+            metrics.beginPhase();
+        }
+
+        if (temperatureEnabled) {
+            advect(room.density, room.prevDensity, room.temperature, room.prevTemperature,
+                    room.velocityX, room.velocityY, room.velocityZ);
+        } else {
+            advect(0, room.density, room.prevDensity, room.velocityX, room.velocityY, room.velocityZ);
+        }
+
+        if (metrics != null) {
+            metrics.endPhase(SimulationMetrics.Phase.ADVECT, 1, interiorCells());
+            metrics.beginPhase();
+        }
 
-    // Kopiowanie siatki 3D
-    private double[][][] copyGrid(double[][][] grid) {
-        int xSize = grid.length;
-        int ySize = grid[0].length;
-        int zSize = grid[0][0].length;
+        fadeSmokeDensity();
+
+        if (metrics != null) {
+            metrics.endPhase(SimulationMetrics.Phase.FADE, 1, interiorCells());
+            metrics.beginPhase();
+        }
 
-        double[][][] copy = new double[xSize][ySize][zSize];
-        for (int x = 0; x < xSize; x++) {
-            for (int y = 0; y < ySize; y++) {
-                System.arraycopy(grid[x][y], 0, copy[x][y], 0, zSize);
+        // Pola "prev" są trwałymi buforami siatki - nadpisujemy je w miejscu zamiast alokować nowe tablice,
+        // więc krok symulacji w stanie ustalonym nic nie alokuje
+        if (room.active == null) {
+            room.prevVelocityX.copyFrom(room.velocityX);
+            room.prevVelocityY.copyFrom(room.velocityY);
+            room.prevVelocityZ.copyFrom(room.velocityZ);
+            room.prevDensity.copyFrom(room.density);
+            if (temperatureEnabled) {
+                room.prevTemperature.copyFrom(room.temperature);
             }
+        } else {
+            executor.forEach(0, room.gridSize[0], this::copyActiveRows);
+        }
+
+        stepCount++;
+        // Krok skrócony do czasu docelowego kończy się dokładnie w nim, bez błędu zaokrąglenia sumy
+        simulationTime = timeStep == targetTime - simulationTime ? targetTime : simulationTime + timeStep;
+
+        if (metrics != null) {
+            metrics.endPhase(SimulationMetrics.Phase.COPY, temperatureEnabled ? 5 : 4, interiorCells());
+            metrics.endStep(pressureIterations);
         }
-        return copy;
     }
 
-    private double[][][] copy(double[][][] original) {
-        double[][][] copy = new double[original.length][original[0].length][original[0][0].length];
-        for (int i = 0; i < original.length; i++) {
-            for (int j = 0; j < original[i].length; j++) {
-                System.arraycopy(original[i][j], 0, copy[i][j], 0, original[i][j].length);
+    /**
+     * Kopiuje do pól "prev" liczone wiersze płaszczyzn X z zakresu [fromX, toX) razem ze ścianami pomieszczenia
+     */
+    private void copyActiveRows(int fromX, int toX) {
+        int sizeZ = room.gridSize[2];
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 0; y < room.gridSize[1]; y++) {
+                if (x == 0 || x == room.gridSize[0] - 1 || y == 0 || y == room.gridSize[1] - 1) {
+                    copyPrevious(room.index(x, y, 0), sizeZ);
+                    continue;
+                }
+                int fromZ = room.rowFrom(x, y);
+                copyPrevious(room.index(x, y, 0), 1);
+                copyPrevious(room.index(x, y, fromZ), room.rowTo(x, y) - fromZ);
+                copyPrevious(room.index(x, y, sizeZ - 1), 1);
             }
         }
-        return copy;
     }
 
+    private void copyPrevious(int first, int count) {
+        room.prevVelocityX.copyFrom(room.velocityX, first, first + count);
+        room.prevVelocityY.copyFrom(room.velocityY, first, first + count);
+        room.prevVelocityZ.copyFrom(room.velocityZ, first, first + count);
+        room.prevDensity.copyFrom(room.density, first, first + count);
+        if (temperatureEnabled) {
+            room.prevTemperature.copyFrom(room.temperature, first, first + count);
+        }
+    }
+
+    /**
+     * Liczba komórek wewnętrznych siatki (bez ścian pomieszczenia) przetwarzanych przez jeden przebieg kernela
+     */
+    long interiorCells() {
+        if (room.active != null) {
+            return room.active.processedCells;
+        }
+        return (long) (room.toX - room.fromX) * (room.gridSize[1] - 2) * (room.gridSize[2] - 2);
+    }
+
+
 }
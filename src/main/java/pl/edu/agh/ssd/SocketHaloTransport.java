@@ -0,0 +1,201 @@
+package pl.edu.agh.ssd;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * {@link HaloTransport} przez połączenia TCP pomiędzy sąsiednimi rangami - podobszary mogą być liczone
+ * w osobnych procesach, np. na jednej maszynie przez localhost.
+ * <p>
+ * Ranga r nasłuchuje na porcie basePort + r na połączenie od rangi r + 1 i łączy się z rangą r - 1 na porcie
+ * basePort + r - 1, ponawiając próby, dopóki sąsiad nie zacznie nasłuchiwać. Przy wymianie niższa ranga najpierw
+ * wysyła, a wyższa najpierw odbiera, więc wymiana nie blokuje się niezależnie od rozmiaru buforów gniazd.
+ * Redukcje przechodzą łańcuchem od rangi 0 do ostatniej i wynik wraca tą samą drogą - wartości dodawane są
+ * w kolejności rang, tak jak w {@link InProcessHaloTransport}.
+ */
+public class SocketHaloTransport implements HaloTransport {
+
+    /**
+     * Czas oczekiwania na uruchomienie sąsiada i przerwa pomiędzy próbami połączenia
+     */
+    private static final long CONNECT_TIMEOUT_MILLIS = 60_000;
+    private static final long RETRY_MILLIS = 100;
+
+    /**
+     * Rozmiar bufora, przez który przesyłane są liczby
+     */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final int rank, ranks;
+
+    /**
+     * Połączenia z rangą rank - 1 i rank + 1, null na końcach
+     */
+    private final SocketChannel left, right;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Łączy tę rangę z sąsiadami. Wraca, gdy oba połączenia są nawiązane.
+     *
+     * @param host     adres, na którym nasłuchują wszystkie rangi
+     * @param basePort port rangi 0 - ranga r używa portu basePort + r
+     * @throws IOException gdy sąsiad nie odpowiada przez {@link #CONNECT_TIMEOUT_MILLIS} ms
+     */
+    public SocketHaloTransport(int rank, int ranks, String host, int basePort) throws IOException {
+        if (ranks < 1 || rank < 0 || rank >= ranks) {
+            throw new IllegalArgumentException("Invalid rank " + rank + " of " + ranks);
+        }
+        this.rank = rank;
+        this.ranks = ranks;
+        ServerSocketChannel server = null;
+        SocketChannel left = null;
+        SocketChannel right = null;
+        try {
+            if (rank < ranks - 1) {
+                server = ServerSocketChannel.open();
+                server.bind(new InetSocketAddress(host, basePort + rank));
+            }
+            if (rank > 0) {
+                left = connect(new InetSocketAddress(host, basePort + rank - 1));
+            }
+            if (server != null) {
+                right = server.accept();
+                right.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+        } catch (IOException | RuntimeException e) {
+            close(left);
+            close(right);
+            throw e;
+        } finally {
+            close(server);
+        }
+        this.left = left;
+        this.right = right;
+    }
+
+    private static SocketChannel connect(InetSocketAddress address) throws IOException {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                SocketChannel channel = SocketChannel.open(address);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                return channel;
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("No halo neighbour listening at " + address, e);
+                }
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while connecting to " + address, interrupted);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int rank() {
+        return rank;
+    }
+
+    @Override
+    public int ranks() {
+        return ranks;
+    }
+
+    @Override
+    public void exchange(int neighbour, double[] data, double[] received) throws IOException {
+        SocketChannel channel = neighbour == rank - 1 ? left : neighbour == rank + 1 ? right : null;
+        if (channel == null) {
+            throw new IllegalArgumentException("Rank " + neighbour + " is not a neighbour of rank " + rank);
+        }
+        if (rank < neighbour) {
+            write(channel, data);
+            read(channel, received);
+        } else {
+            read(channel, received);
+            write(channel, data);
+        }
+    }
+
+    @Override
+    public double sum(double value) throws IOException {
+        return reduce(value, false);
+    }
+
+    @Override
+    public double max(double value) throws IOException {
+        return reduce(value, true);
+    }
+
+    /**
+     * Redukcja łańcuchem: ranga r łączy wynik rang 0..r-1 ze swoją wartością i przekazuje go dalej, ostatnia ranga
+     * odsyła wynik całego pomieszczenia z powrotem
+     */
+    private double reduce(double value, boolean max) throws IOException {
+        double[] single = {value};
+        if (left != null) {
+            read(left, single);
+            single[0] = max ? Math.max(single[0], value) : single[0] + value;
+        }
+        if (right != null) {
+            write(right, single);
+            read(right, single);
+        }
+        if (left != null) {
+            write(left, single);
+        }
+        return single[0];
+    }
+
+    private void write(SocketChannel channel, double[] data) throws IOException {
+        for (int offset = 0; offset < data.length; ) {
+            buffer.clear();
+            int count = Math.min(data.length - offset, buffer.capacity() / Double.BYTES);
+            buffer.asDoubleBuffer().put(data, offset, count);
+            buffer.limit(count * Double.BYTES);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            offset += count;
+        }
+    }
+
+    private void read(SocketChannel channel, double[] data) throws IOException {
+        for (int offset = 0; offset < data.length; ) {
+            buffer.clear();
+            int count = Math.min(data.length - offset, buffer.capacity() / Double.BYTES);
+            buffer.limit(count * Double.BYTES);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Halo neighbour closed the connection");
+                }
+            }
+            buffer.flip();
+            buffer.asDoubleBuffer().get(data, offset, count);
+            offset += count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        close(left);
+        close(right);
+    }
+
+    private static void close(Closeable closeable) throws IOException {
+        if (closeable != null) {
+            closeable.close();
+        }
+    }
+}
@@ -0,0 +1,714 @@
+package pl.edu.agh.ssd;
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Wektorowe (SIMD) wersje kerneli {@link SmokeSimulation} i {@link RelaxationPressureSolver} oparte na
+ * {@code jdk.incubator.vector}. Działają na polach {@link DoubleGridField} i przetwarzają ciągłe odcinki płynu
+ * osi Z po {@link #LANES} komórek, a końcówki odcinków liczone są skalarnie. Relaksacja, dywergencja i gradient
+ * ciśnienia mają też wersje dla pól {@link FloatGridField} (po {@link #FLOAT_LANES} komórek), odpowiedniki
+ * {@link FloatKernels} - adwekcja pól float liczona jest skalarnie przez {@link FloatKernels}.
+ * <p>
+ * Każda komórka liczona jest tymi samymi działaniami w tej samej kolejności co w wersji skalarnej, więc wyniki
+ * są bitowo identyczne. Relaksacja szachownicowa liczy wektorowo cały odcinek wiersza ze starych wartości
+ * do bufora, a potem przepisuje do pola tylko komórki bieżącego koloru - komórki jednego koloru zależą wyłącznie
+ * od komórek drugiego koloru. Zapis całych wektorów bezpośrednio do pola byłby wolniejszy, bo następny wektor
+ * odczytuje sąsiadów (i - 1) częściowo z właśnie zapisanego.
+ * Relaksacja leksykograficzna ({@link RelaxationScheme#GAUSS_SEIDEL}) korzysta z wartości właśnie zapisanej
+ * w poprzedniej komórce wiersza i nie daje się zwektoryzować, dlatego zawsze liczona jest skalarnie.
+ * <p>
+ * Klasa jest ładowana tylko wtedy, gdy wektorowe kernele są włączone ({@link SmokeSimulation#setVectorKernels}),
+ * więc bez modułu {@code jdk.incubator.vector} reszta symulacji działa normalnie.
+ */
+final class VectorKernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    /**
+     * Liczba komórek przetwarzanych jednym wektorem
+     */
+    static final int LANES = SPECIES.length();
+
+    private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    /**
+     * Liczba komórek pól float przetwarzanych jednym wektorem
+     */
+    static final int FLOAT_LANES = FLOAT_SPECIES.length();
+
+    /**
+     * Kolejne numery komórek w wektorze (0, 1, 2, ...)
+     */
+    private static final DoubleVector LANE_OFFSETS = DoubleVector.zero(SPECIES).addIndex(1);
+
+    /**
+     * 2^52 - dodanie tej liczby do nieujemnej liczby double mniejszej niż 2^52 zaokrągla ją do liczby całkowitej,
+     * która zapisana jest w najmłodszych bitach wyniku. Dzięki temu zaokrąglenia i indeksy liczone są bez konwersji
+     * double - int, których kompilator JIT w JDK 17 nie zamienia na instrukcje wektorowe.
+     */
+    private static final double TWO_POW_52 = 0x1p52;
+
+    /**
+     * Wektory int o tym samym rozmiarze co wektory double i przestawienie młodszych połówek liczb 64-bitowych
+     * na ich początek
+     */
+    private static final VectorSpecies<Integer> INT_SPECIES = SPECIES.withLanes(int.class);
+    private static final VectorShuffle<Integer> LOW_HALVES = VectorShuffle.fromOp(INT_SPECIES, n -> (2 * n) % INT_SPECIES.length());
+
+    /**
+     * Bufory kerneli każdego wątku, używane ponownie we wszystkich przebiegach, żeby krok symulacji nic nie alokował
+     */
+    private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(Workspace::new);
+
+    private VectorKernels() {
+    }
+
+    /**
+     * Przebieg relaksacji dyfuzji jednego koloru szachownicy po płaszczyznach X z zakresu [fromX, toX),
+     * odpowiednik {@code SmokeSimulation.diffuseSweep}
+     */
+    static void diffuseSweep(SmokeGrid room, DoubleGridField current, DoubleGridField previous, double a, int color,
+                             int fromX, int toX) {
+        double[] c = current.data;
+        double[] p = previous.data;
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        double divisor = 1 + 6 * a;
+        double[] relaxedRow = WORKSPACE.get().relaxedRow(room.gridSize[2]);
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int fromZ = room.runFrom(run, x, y);
+                    int lastZ = room.runTo(run, x, y);
+                    int z = fromZ;
+                    int i = room.index(x, y, z);
+                    for (; z + LANES <= lastZ; z += LANES, i += LANES) {
+                        DoubleVector sum = DoubleVector.fromArray(SPECIES, c, i + strideX)
+                                .add(DoubleVector.fromArray(SPECIES, c, i - strideX))
+                                .add(DoubleVector.fromArray(SPECIES, c, i + strideY))
+                                .add(DoubleVector.fromArray(SPECIES, c, i - strideY))
+                                .add(DoubleVector.fromArray(SPECIES, c, i + 1))
+                                .add(DoubleVector.fromArray(SPECIES, c, i - 1));
+                        DoubleVector.fromArray(SPECIES, p, i).add(sum.mul(a)).div(divisor).intoArray(relaxedRow, z);
+                    }
+                    z = storeColor(c, relaxedRow, room.index(x, y, 0), SmokeSimulation.firstZ(x, y, color, fromZ), z);
+                    i = room.index(x, y, z);
+                    for (; z < lastZ; z += 2, i += 2) {
+                        c[i] = (p[i] + a * (
+                                c[i + strideX] + c[i - strideX] +
+                                        c[i + strideY] + c[i - strideY] +
+                                        c[i + 1] + c[i - 1]
+                        )) / divisor;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Przebieg relaksacji równania ciśnienia jednego koloru szachownicy po płaszczyznach X z zakresu [fromX, toX),
+     * odpowiednik {@code RelaxationPressureSolver.sweep}
+     */
+    static void pressureSweep(SmokeGrid room, DoubleGridField pressure, DoubleGridField divergence, int color,
+                              int fromX, int toX) {
+        double[] p = pressure.data;
+        double[] d = divergence.data;
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        double[] relaxedRow = WORKSPACE.get().relaxedRow(room.gridSize[2]);
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int fromZ = room.runFrom(run, x, y);
+                    int lastZ = room.runTo(run, x, y);
+                    int z = fromZ;
+                    int i = room.index(x, y, z);
+                    for (; z + LANES <= lastZ; z += LANES, i += LANES) {
+                        DoubleVector relaxed = DoubleVector.fromArray(SPECIES, d, i)
+                                .add(DoubleVector.fromArray(SPECIES, p, i + strideX))
+                                .add(DoubleVector.fromArray(SPECIES, p, i - strideX))
+                                .add(DoubleVector.fromArray(SPECIES, p, i + strideY))
+                                .add(DoubleVector.fromArray(SPECIES, p, i - strideY))
+                                .add(DoubleVector.fromArray(SPECIES, p, i + 1))
+                                .add(DoubleVector.fromArray(SPECIES, p, i - 1))
+                                .div(6);
+                        relaxed.intoArray(relaxedRow, z);
+                    }
+                    z = storeColor(p, relaxedRow, room.index(x, y, 0), SmokeSimulation.firstZ(x, y, color, fromZ), z);
+                    i = room.index(x, y, z);
+                    for (; z < lastZ; z += 2, i += 2) {
+                        p[i] = (d[i] +
+                                p[i + strideX] + p[i - strideX] +
+                                p[i + strideY] + p[i - strideY] +
+                                p[i + 1] + p[i - 1]) / 6;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Przebieg relaksacji dyfuzji jednego koloru szachownicy dla pól float, odpowiednik {@code FloatKernels.diffuseSweep}
+     */
+    static void diffuseSweep(SmokeGrid room, FloatGridField current, FloatGridField previous, float a, int color,
+                             int fromX, int toX) {
+        float[] c = current.data;
+        float[] p = previous.data;
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        float divisor = 1 + 6 * a;
+        float[] relaxedRow = WORKSPACE.get().relaxedFloatRow(room.gridSize[2]);
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int fromZ = room.runFrom(run, x, y);
+                    int lastZ = room.runTo(run, x, y);
+                    int z = fromZ;
+                    int i = room.index(x, y, z);
+                    for (; z + FLOAT_LANES <= lastZ; z += FLOAT_LANES, i += FLOAT_LANES) {
+                        FloatVector sum = FloatVector.fromArray(FLOAT_SPECIES, c, i + strideX)
+                                .add(FloatVector.fromArray(FLOAT_SPECIES, c, i - strideX))
+                                .add(FloatVector.fromArray(FLOAT_SPECIES, c, i + strideY))
+                                .add(FloatVector.fromArray(FLOAT_SPECIES, c, i - strideY))
+                                .add(FloatVector.fromArray(FLOAT_SPECIES, c, i + 1))
+                                .add(FloatVector.fromArray(FLOAT_SPECIES, c, i - 1));
+                        FloatVector.fromArray(FLOAT_SPECIES, p, i).add(sum.mul(a)).div(divisor).intoArray(relaxedRow, z);
+                    }
+                    z = storeColor(c, relaxedRow, room.index(x, y, 0), SmokeSimulation.firstZ(x, y, color, fromZ), z);
+                    i = room.index(x, y, z);
+                    for (; z < lastZ; z += 2, i += 2) {
+                        c[i] = (p[i] + a * (
+                                c[i + strideX] + c[i - strideX] +
+                                        c[i + strideY] + c[i - strideY] +
+                                        c[i + 1] + c[i - 1]
+                        )) / divisor;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Przebieg relaksacji równania ciśnienia jednego koloru szachownicy dla pól float,
+     * odpowiednik {@code FloatKernels.pressureSweep}
+     */
+    static void pressureSweep(SmokeGrid room, FloatGridField pressure, FloatGridField divergence, int color,
+                              int fromX, int toX) {
+        float[] p = pressure.data;
+        float[] d = divergence.data;
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        float[] relaxedRow = WORKSPACE.get().relaxedFloatRow(room.gridSize[2]);
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int fromZ = room.runFrom(run, x, y);
+                    int lastZ = room.runTo(run, x, y);
+                    int z = fromZ;
+                    int i = room.index(x, y, z);
+                    for (; z + FLOAT_LANES <= lastZ; z += FLOAT_LANES, i += FLOAT_LANES) {
+                        FloatVector.fromArray(FLOAT_SPECIES, d, i)
+                                .add(FloatVector.fromArray(FLOAT_SPECIES, p, i + strideX))
+                                .add(FloatVector.fromArray(FLOAT_SPECIES, p, i - strideX))
+                                .add(FloatVector.fromArray(FLOAT_SPECIES, p, i + strideY))
+                                .add(FloatVector.fromArray(FLOAT_SPECIES, p, i - strideY))
+                                .add(FloatVector.fromArray(FLOAT_SPECIES, p, i + 1))
+                                .add(FloatVector.fromArray(FLOAT_SPECIES, p, i - 1))
+                                .div(6)
+                                .intoArray(relaxedRow, z);
+                    }
+                    z = storeColor(p, relaxedRow, room.index(x, y, 0), SmokeSimulation.firstZ(x, y, color, fromZ), z);
+                    i = room.index(x, y, z);
+                    for (; z < lastZ; z += 2, i += 2) {
+                        p[i] = (d[i] +
+                                p[i + strideX] + p[i - strideX] +
+                                p[i + strideY] + p[i - strideY] +
+                                p[i + 1] + p[i - 1]) / 6;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Przepisuje do wiersza pola co drugą wartość policzoną wektorowo, od komórki firstZ do toZ (wyłącznie)
+     *
+     * @param rowStart indeks komórki z = 0 wiersza
+     * @return pierwsza komórka bieżącego koloru nie mniejsza niż toZ
+     */
+    private static int storeColor(double[] field, double[] relaxedRow, int rowStart, int firstZ, int toZ) {
+        int z = firstZ;
+        for (; z < toZ; z += 2) {
+            field[rowStart + z] = relaxedRow[z];
+        }
+        return z;
+    }
+
+    private static int storeColor(float[] field, float[] relaxedRow, int rowStart, int firstZ, int toZ) {
+        int z = firstZ;
+        for (; z < toZ; z += 2) {
+            field[rowStart + z] = relaxedRow[z];
+        }
+        return z;
+    }
+
+    /**
+     * Dywergencja prędkości płaszczyzn X z zakresu [fromX, toX), odpowiednik {@code SmokeSimulation.computeDivergence}
+     */
+    static void computeDivergence(SmokeGrid room, DoubleGridField velocityX, DoubleGridField velocityY,
+                                  DoubleGridField velocityZ, DoubleGridField pressure, DoubleGridField divergence,
+                                  boolean resetPressure, int fromX, int toX) {
+        double[] vx = velocityX.data;
+        double[] vy = velocityY.data;
+        double[] vz = velocityZ.data;
+        double[] p = pressure.data;
+        double[] d = divergence.data;
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        int sizeX = room.gridSize[0];
+        int sizeY = room.gridSize[1];
+        int sizeZ = room.gridSize[2];
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 1; y < sizeY - 1; y++) {
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int z = room.runFrom(run, x, y);
+                    int lastZ = room.runTo(run, x, y);
+                    int i = room.index(x, y, z);
+                    for (; z + LANES <= lastZ; z += LANES, i += LANES) {
+                        DoubleVector dx = DoubleVector.fromArray(SPECIES, vx, i + strideX)
+                                .sub(DoubleVector.fromArray(SPECIES, vx, i - strideX)).div(sizeX);
+                        DoubleVector dy = DoubleVector.fromArray(SPECIES, vy, i + strideY)
+                                .sub(DoubleVector.fromArray(SPECIES, vy, i - strideY)).div(sizeY);
+                        DoubleVector dz = DoubleVector.fromArray(SPECIES, vz, i + 1)
+                                .sub(DoubleVector.fromArray(SPECIES, vz, i - 1)).div(sizeZ);
+                        dx.add(dy).add(dz).mul(-0.5).intoArray(d, i);
+                        if (resetPressure) {
+                            DoubleVector.zero(SPECIES).intoArray(p, i);
+                        }
+                    }
+                    for (; z < lastZ; z++, i++) {
+                        d[i] = -0.5 * (
+                                (vx[i + strideX] - vx[i - strideX]) / sizeX
+                                        + (vy[i + strideY] - vy[i - strideY]) / sizeY
+                                        + (vz[i + 1] - vz[i - 1]) / sizeZ);
+                        if (resetPressure) {
+                            p[i] = 0;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Odjęcie gradientu ciśnienia od prędkości płaszczyzn X z zakresu [fromX, toX),
+     * odpowiednik {@code SmokeSimulation.subtractPressureGradient}
+     */
+    static void subtractPressureGradient(SmokeGrid room, DoubleGridField velocityX, DoubleGridField velocityY,
+                                         DoubleGridField velocityZ, DoubleGridField pressure, int fromX, int toX) {
+        double[] vx = velocityX.data;
+        double[] vy = velocityY.data;
+        double[] vz = velocityZ.data;
+        double[] p = pressure.data;
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        int sizeX = room.gridSize[0];
+        int sizeY = room.gridSize[1];
+        int sizeZ = room.gridSize[2];
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 1; y < sizeY - 1; y++) {
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int z = room.runFrom(run, x, y);
+                    int lastZ = room.runTo(run, x, y);
+                    int i = room.index(x, y, z);
+                    for (; z + LANES <= lastZ; z += LANES, i += LANES) {
+                        DoubleVector gx = DoubleVector.fromArray(SPECIES, p, i + strideX)
+                                .sub(DoubleVector.fromArray(SPECIES, p, i - strideX)).mul(0.5).mul(sizeX);
+                        DoubleVector.fromArray(SPECIES, vx, i).sub(gx).intoArray(vx, i);
+                        DoubleVector gy = DoubleVector.fromArray(SPECIES, p, i + strideY)
+                                .sub(DoubleVector.fromArray(SPECIES, p, i - strideY)).mul(0.5).mul(sizeY);
+                        DoubleVector.fromArray(SPECIES, vy, i).sub(gy).intoArray(vy, i);
+                        DoubleVector gz = DoubleVector.fromArray(SPECIES, p, i + 1)
+                                .sub(DoubleVector.fromArray(SPECIES, p, i - 1)).mul(0.5).mul(sizeZ);
+                        DoubleVector.fromArray(SPECIES, vz, i).sub(gz).intoArray(vz, i);
+                    }
+                    for (; z < lastZ; z++, i++) {
+                        vx[i] = vx[i] - 0.5 * (p[i + strideX] - p[i - strideX]) * sizeX;
+                        vy[i] = vy[i] - 0.5 * (p[i + strideY] - p[i - strideY]) * sizeY;
+                        vz[i] = vz[i] - 0.5 * (p[i + 1] - p[i - 1]) * sizeZ;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Dywergencja prędkości pól float, odpowiednik {@code FloatKernels.computeDivergence}
+     */
+    static void computeDivergence(SmokeGrid room, FloatGridField velocityX, FloatGridField velocityY,
+                                  FloatGridField velocityZ, FloatGridField pressure, FloatGridField divergence,
+                                  boolean resetPressure, int fromX, int toX) {
+        float[] vx = velocityX.data;
+        float[] vy = velocityY.data;
+        float[] vz = velocityZ.data;
+        float[] p = pressure.data;
+        float[] d = divergence.data;
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        float sizeX = room.gridSize[0];
+        float sizeY = room.gridSize[1];
+        float sizeZ = room.gridSize[2];
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int z = room.runFrom(run, x, y);
+                    int lastZ = room.runTo(run, x, y);
+                    int i = room.index(x, y, z);
+                    for (; z + FLOAT_LANES <= lastZ; z += FLOAT_LANES, i += FLOAT_LANES) {
+                        FloatVector dx = FloatVector.fromArray(FLOAT_SPECIES, vx, i + strideX)
+                                .sub(FloatVector.fromArray(FLOAT_SPECIES, vx, i - strideX)).div(sizeX);
+                        FloatVector dy = FloatVector.fromArray(FLOAT_SPECIES, vy, i + strideY)
+                                .sub(FloatVector.fromArray(FLOAT_SPECIES, vy, i - strideY)).div(sizeY);
+                        FloatVector dz = FloatVector.fromArray(FLOAT_SPECIES, vz, i + 1)
+                                .sub(FloatVector.fromArray(FLOAT_SPECIES, vz, i - 1)).div(sizeZ);
+                        dx.add(dy).add(dz).mul(-0.5f).intoArray(d, i);
+                        if (resetPressure) {
+                            FloatVector.zero(FLOAT_SPECIES).intoArray(p, i);
+                        }
+                    }
+                    for (; z < lastZ; z++, i++) {
+                        d[i] = -0.5f * ((vx[i + strideX] - vx[i - strideX]) / sizeX
+                                + (vy[i + strideY] - vy[i - strideY]) / sizeY
+                                + (vz[i + 1] - vz[i - 1]) / sizeZ);
+                        if (resetPressure) {
+                            p[i] = 0;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Odjęcie gradientu ciśnienia od prędkości pól float, odpowiednik {@code FloatKernels.subtractPressureGradient}
+     */
+    static void subtractPressureGradient(SmokeGrid room, FloatGridField velocityX, FloatGridField velocityY,
+                                         FloatGridField velocityZ, FloatGridField pressure, int fromX, int toX) {
+        float[] vx = velocityX.data;
+        float[] vy = velocityY.data;
+        float[] vz = velocityZ.data;
+        float[] p = pressure.data;
+        int strideX = room.strideX;
+        int strideY = room.strideY;
+        float scaleX = 0.5f * room.gridSize[0];
+        float scaleY = 0.5f * room.gridSize[1];
+        float scaleZ = 0.5f * room.gridSize[2];
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int z = room.runFrom(run, x, y);
+                    int lastZ = room.runTo(run, x, y);
+                    int i = room.index(x, y, z);
+                    for (; z + FLOAT_LANES <= lastZ; z += FLOAT_LANES, i += FLOAT_LANES) {
+                        FloatVector gx = FloatVector.fromArray(FLOAT_SPECIES, p, i + strideX)
+                                .sub(FloatVector.fromArray(FLOAT_SPECIES, p, i - strideX)).mul(scaleX);
+                        FloatVector.fromArray(FLOAT_SPECIES, vx, i).sub(gx).intoArray(vx, i);
+                        FloatVector gy = FloatVector.fromArray(FLOAT_SPECIES, p, i + strideY)
+                                .sub(FloatVector.fromArray(FLOAT_SPECIES, p, i - strideY)).mul(scaleY);
+                        FloatVector.fromArray(FLOAT_SPECIES, vy, i).sub(gy).intoArray(vy, i);
+                        FloatVector gz = FloatVector.fromArray(FLOAT_SPECIES, p, i + 1)
+                                .sub(FloatVector.fromArray(FLOAT_SPECIES, p, i - 1)).mul(scaleZ);
+                        FloatVector.fromArray(FLOAT_SPECIES, vz, i).sub(gz).intoArray(vz, i);
+                    }
+                    for (; z < lastZ; z++, i++) {
+                        vx[i] -= scaleX * (p[i + strideX] - p[i - strideX]);
+                        vy[i] -= scaleY * (p[i + strideY] - p[i - strideY]);
+                        vz[i] -= scaleZ * (p[i + 1] - p[i - 1]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adwekcja płaszczyzn X z zakresu [fromX, toX), odpowiednik {@code SmokeSimulation.advect} dla pól
+     * {@link DoubleGridField} current[f] z previous[f]. Punkty startowe i wagi liczone są wektorowo,
+     * a osiem narożników komórki każdego pola kopiowanych jest skalarnie do bufora wektorów.
+     * Komórki, których punkt startowy wypada poza siatkę, nie są zmieniane - tak jak w wersji skalarnej.
+     */
+    static void advect(SmokeGrid room, GridField[] current, GridField[] previous, DoubleGridField velocityX,
+                       DoubleGridField velocityY, DoubleGridField velocityZ, double timeStep, int fromX, int toX) {
+        Advection advection = WORKSPACE.get().advection;
+        advection.bind(room, current, previous, velocityX, velocityY, velocityZ, timeStep);
+        for (int x = fromX; x < toX; x++) {
+            for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                for (int run = room.firstRun(x, y); run < room.lastRun(x, y); run += 2) {
+                    int z = room.runFrom(run, x, y);
+                    int lastZ = room.runTo(run, x, y);
+                    int cell = room.index(x, y, z);
+                    for (; z + LANES <= lastZ; z += LANES, cell += LANES) {
+                        advection.lanes(x, y, z, cell);
+                    }
+                    for (; z < lastZ; z++, cell++) {
+                        advection.cell(x, y, z, cell);
+                    }
+                }
+            }
+        }
+        advection.release();
+    }
+
+    /**
+     * Bufory kerneli jednego wątku
+     */
+    private static final class Workspace {
+        /**
+         * Wiersz osi Z policzony wektorowo w relaksacji szachownicowej
+         */
+        private double[] relaxedRow = new double[0];
+        private float[] relaxedFloatRow = new float[0];
+
+        final Advection advection = new Advection();
+
+        /**
+         * Bufor wiersza o długości co najmniej length - nowy tylko wtedy, gdy siatka ma dłuższe wiersze niż dotąd
+         */
+        double[] relaxedRow(int length) {
+            if (relaxedRow.length < length) {
+                relaxedRow = new double[length];
+            }
+            return relaxedRow;
+        }
+
+        float[] relaxedFloatRow(int length) {
+            if (relaxedFloatRow.length < length) {
+                relaxedFloatRow = new float[length];
+            }
+            return relaxedFloatRow;
+        }
+    }
+
+    /**
+     * Pola i stałe wywołania adwekcji. Obliczenia jednego wektora wydzielone są do osobnej metody,
+     * bo w jednej dużej metodzie kompilator JIT przestaje rozwijać wywołania API wektorowego i alokuje wektory na stercie.
+     * Pozycje, wagi i indeksy narożników liczone są raz na wektor komórek dla wszystkich przenoszonych pól.
+     * Każdy wątek ma jeden obiekt ({@link Workspace}), wiązany z polami na czas wywołania przez {@link #bind}.
+     */
+    private static final class Advection {
+        double[][] c = new double[0][], p = new double[0][];
+        double[] vx, vy, vz;
+        int strideX, strideY;
+        int sizeX, sizeY, sizeZ;
+        double dtx, dty, dtz;
+
+        /**
+         * Indeksy narożników (i0, j0, k0) komórek wektora
+         */
+        final int[] corners = new int[INT_SPECIES.length()];
+
+        /**
+         * Przesunięcia ośmiu narożników komórki względem narożnika (i0, j0, k0) i ich bezwzględne indeksy
+         * dla komórek wektora
+         */
+        final int[] cornerOffsets = new int[8];
+        final int[][] cornerIndices = new int[8][LANES];
+
+        /**
+         * Wartości pola w ośmiu narożnikach komórek wektora, po {@link #LANES} na narożnik. Gather przez API
+         * wektorowe ({@code fromArray} z mapą indeksów) nie jest w JDK 17 kompilowany do instrukcji gather i przy
+         * każdym wywołaniu alokuje wektory na stercie, więc narożniki kopiowane są skalarnie, a wektory
+         * ładowane z tego bufora.
+         */
+        final double[] cornerValues = new double[8 * LANES];
+
+        /**
+         * Wagi interpolacji (s0, s1, t0, t1, u0, u1) komórek wektora i maska komórek leżących w siatce,
+         * wspólne dla wszystkich pól
+         */
+        final double[] weights = new double[6 * LANES];
+        final boolean[] insideLanes = new boolean[LANES];
+
+        /**
+         * Wiąże obiekt z polami i krokiem czasowym wywołania
+         */
+        void bind(SmokeGrid room, GridField[] current, GridField[] previous, DoubleGridField velocityX,
+                  DoubleGridField velocityY, DoubleGridField velocityZ, double timeStep) {
+            if (c.length != current.length) {
+                c = new double[current.length][];
+                p = new double[current.length][];
+            }
+            for (int field = 0; field < current.length; field++) {
+                c[field] = ((DoubleGridField) current[field]).data;
+                p[field] = ((DoubleGridField) previous[field]).data;
+            }
+            this.vx = velocityX.data;
+            this.vy = velocityY.data;
+            this.vz = velocityZ.data;
+            this.strideX = room.strideX;
+            this.strideY = room.strideY;
+            this.sizeX = room.gridSize[0];
+            this.sizeY = room.gridSize[1];
+            this.sizeZ = room.gridSize[2];
+            this.dtx = timeStep * (sizeX - 2);
+            this.dty = timeStep * (sizeY - 2);
+            this.dtz = timeStep * (sizeZ - 2);
+            cornerOffsets[0] = 0;
+            cornerOffsets[1] = 1;
+            cornerOffsets[2] = strideY;
+            cornerOffsets[3] = strideY + 1;
+            cornerOffsets[4] = strideX;
+            cornerOffsets[5] = strideX + 1;
+            cornerOffsets[6] = strideX + strideY;
+            cornerOffsets[7] = strideX + strideY + 1;
+        }
+
+        /**
+         * Zwalnia odwołania do pól, żeby bufory wątku nie trzymały w pamięci siatki zakończonej symulacji
+         */
+        void release() {
+            Arrays.fill(c, null);
+            Arrays.fill(p, null);
+            vx = vy = vz = null;
+        }
+
+        /**
+         * Adwekcja {@link #LANES} kolejnych komórek wiersza (x, y) od komórki z o indeksie cell
+         */
+        void lanes(int x, int y, int z, int cell) {
+            DoubleVector px = DoubleVector.broadcast(SPECIES, x)
+                    .sub(DoubleVector.fromArray(SPECIES, vx, cell).mul(dtx))
+                    .max(0.5).min(sizeX + 0.5);
+            DoubleVector py = DoubleVector.broadcast(SPECIES, y)
+                    .sub(DoubleVector.fromArray(SPECIES, vy, cell).mul(dty))
+                    .max(0.5).min(sizeY + 0.5);
+            DoubleVector pz = LANE_OFFSETS.add(z)
+                    .sub(DoubleVector.fromArray(SPECIES, vz, cell).mul(dtz))
+                    .max(0.5).min(sizeZ + 0.5);
+            DoubleVector i0 = floor(px);
+            DoubleVector j0 = floor(py);
+            DoubleVector k0 = floor(pz);
+            VectorMask<Double> inside = i0.compare(VectorOperators.LE, sizeX - 2)
+                    .and(j0.compare(VectorOperators.LE, sizeY - 2))
+                    .and(k0.compare(VectorOperators.LE, sizeZ - 2));
+
+            DoubleVector s1 = px.sub(i0);
+            DoubleVector s0 = s1.neg().add(1);
+            DoubleVector t1 = py.sub(j0);
+            DoubleVector t0 = t1.neg().add(1);
+            DoubleVector u1 = pz.sub(k0);
+            DoubleVector u0 = u1.neg().add(1);
+
+            // Komórki spoza siatki pobierają narożnik z własnej komórki, żeby gather nie wyszedł poza tablicę
+            i0.add(GridField.GHOST).mul(strideX)
+                    .add(j0.add(GridField.GHOST).mul(strideY))
+                    .add(k0.add(GridField.GHOST))
+                    .blend(LANE_OFFSETS.add(cell), inside.not())
+                    .add(TWO_POW_52)
+                    .reinterpretAsInts()
+                    .rearrange(LOW_HALVES)
+                    .intoArray(corners, 0);
+
+            s0.intoArray(weights, 0);
+            s1.intoArray(weights, LANES);
+            t0.intoArray(weights, 2 * LANES);
+            t1.intoArray(weights, 3 * LANES);
+            u0.intoArray(weights, 4 * LANES);
+            u1.intoArray(weights, 5 * LANES);
+            inside.intoArray(insideLanes, 0);
+            for (int corner = 0; corner < 8; corner++) {
+                int[] indices = cornerIndices[corner];
+                int offset = cornerOffsets[corner];
+                for (int lane = 0; lane < LANES; lane++) {
+                    indices[lane] = corners[lane] + offset;
+                }
+            }
+            for (int field = 0; field < c.length; field++) {
+                interpolate(c[field], p[field], cell);
+            }
+        }
+
+        /**
+         * Interpolacja trójliniowa pola p w narożnikach {@link #cornerIndices} z wagami {@link #weights}, zapisywana do c
+         * w komórkach wektora leżących w siatce. Wagi przekazywane są przez tablice, bo wektory przekazane
+         * jako argumenty metody byłyby alokowane na stercie.
+         */
+        private void interpolate(double[] c, double[] p, int cell) {
+            DoubleVector s0 = DoubleVector.fromArray(SPECIES, weights, 0);
+            DoubleVector s1 = DoubleVector.fromArray(SPECIES, weights, LANES);
+            DoubleVector t0 = DoubleVector.fromArray(SPECIES, weights, 2 * LANES);
+            DoubleVector t1 = DoubleVector.fromArray(SPECIES, weights, 3 * LANES);
+            DoubleVector u0 = DoubleVector.fromArray(SPECIES, weights, 4 * LANES);
+            DoubleVector u1 = DoubleVector.fromArray(SPECIES, weights, 5 * LANES);
+            VectorMask<Double> inside = VectorMask.fromArray(SPECIES, insideLanes, 0);
+            double[] values = cornerValues;
+            for (int corner = 0; corner < 8; corner++) {
+                int[] indices = cornerIndices[corner];
+                int offset = corner * LANES;
+                for (int lane = 0; lane < LANES; lane++) {
+                    values[offset + lane] = p[indices[lane]];
+                }
+            }
+            DoubleVector p000 = DoubleVector.fromArray(SPECIES, values, 0);
+            DoubleVector p001 = DoubleVector.fromArray(SPECIES, values, LANES);
+            DoubleVector p010 = DoubleVector.fromArray(SPECIES, values, 2 * LANES);
+            DoubleVector p011 = DoubleVector.fromArray(SPECIES, values, 3 * LANES);
+            DoubleVector p100 = DoubleVector.fromArray(SPECIES, values, 4 * LANES);
+            DoubleVector p101 = DoubleVector.fromArray(SPECIES, values, 5 * LANES);
+            DoubleVector p110 = DoubleVector.fromArray(SPECIES, values, 6 * LANES);
+            DoubleVector p111 = DoubleVector.fromArray(SPECIES, values, 7 * LANES);
+            DoubleVector front = t0.mul(u0.mul(p000).add(u1.mul(p001))).add(t1.mul(u0.mul(p010).add(u1.mul(p011))));
+            DoubleVector back = t0.mul(u0.mul(p100).add(u1.mul(p101))).add(t1.mul(u0.mul(p110).add(u1.mul(p111))));
+            DoubleVector.fromArray(SPECIES, c, cell)
+                    .blend(s0.mul(front).add(s1.mul(back)), inside)
+                    .intoArray(c, cell);
+        }
+
+        /**
+         * Skalarna adwekcja jednej komórki (i, j, k) dla końcówek odcinków
+         */
+        void cell(int i, int j, int k, int cell) {
+            double x = i - dtx * vx[cell];
+            double y = j - dty * vy[cell];
+            double z = k - dtz * vz[cell];
+            x = Math.min(Math.max(x, 0.5), sizeX + 0.5);
+            y = Math.min(Math.max(y, 0.5), sizeY + 0.5);
+            z = Math.min(Math.max(z, 0.5), sizeZ + 0.5);
+            double i0 = Math.floor(x);
+            double j0 = Math.floor(y);
+            double k0 = Math.floor(z);
+            if (i0 > sizeX - 2 || j0 > sizeY - 2 || k0 > sizeZ - 2) {
+                return;
+            }
+            double s1 = x - i0;
+            double s0 = 1 - s1;
+            double t1 = y - j0;
+            double t0 = 1 - t1;
+            double u1 = z - k0;
+            double u0 = 1 - u1;
+            int c000 = ((int) i0 + GridField.GHOST) * strideX + ((int) j0 + GridField.GHOST) * strideY + (int) k0 + GridField.GHOST;
+            for (int field = 0; field < c.length; field++) {
+                double[] p = this.p[field];
+                c[field][cell] = s0 * (t0 * (u0 * p[c000] + u1 * p[c000 + 1])
+                        + (t1 * (u0 * p[c000 + strideY] + u1 * p[c000 + strideY + 1])))
+                        + s1 * (t0 * (u0 * p[c000 + strideX] + u1 * p[c000 + strideX + 1])
+                        + (t1 * (u0 * p[c000 + strideX + strideY] + u1 * p[c000 + strideX + strideY + 1])));
+            }
+        }
+    }
+
+    /**
+     * Math.floor dla liczb z przedziału [0, 2^52): zaokrąglenie do najbliższej liczby całkowitej,
+     * pomniejszone o 1 tam, gdzie zaokrąglenie było w górę
+     */
+    private static DoubleVector floor(DoubleVector v) {
+        DoubleVector rounded = v.add(TWO_POW_52).sub(TWO_POW_52);
+        return rounded.sub(1, rounded.compare(VectorOperators.GT, v));
+    }
+}
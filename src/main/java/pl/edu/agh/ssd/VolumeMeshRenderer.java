@@ -0,0 +1,213 @@
+package pl.edu.agh.ssd;
+
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+import javafx.scene.paint.PhongMaterial;
+import javafx.scene.shape.CullFace;
+import javafx.scene.shape.MeshView;
+import javafx.scene.shape.TriangleMesh;
+
+import java.util.Arrays;
+
+/**
+ * Rysowanie siatki jako jednej {@link TriangleMesh} zamiast osobnego węzła {@code Box} dla każdej komórki.
+ * <p>
+ * Widoczne są komórki źródeł, wiatru i przeszkód oraz komórki z gęstością dymu powyżej {@link #VISIBLE_DENSITY}
+ * - tak samo jak przy rysowaniu pudełkami. Siatka trójkątów zawiera tylko ściany widocznych komórek, które nie
+ * sąsiadują z inną widoczną komórką, więc jej rozmiar zależy od powierzchni dymu, a nie od liczby komórek.
+ * Wierzchołki (narożniki wszystkich komórek) i współrzędne tekstury ustawiane są raz, a w każdej klatce
+ * przebudowywana jest tylko lista trójkątów, w tablicy używanej ponownie pomiędzy klatkami, i tylko wtedy,
+ * gdy zmienił się kolor którejś komórki.
+ * <p>
+ * Kolory pochodzą z tekstury-palety: {@link #LEVELS} odcieni szarości o rosnącej nieprzezroczystości
+ * (jak materiały pudełek) oraz kolory źródła, przeszkody i wiatru. Każda ściana wskazuje współrzędną
+ * tekstury środka swojego koloru.
+ */
+public class VolumeMeshRenderer {
+
+    /**
+     * Gęstość, powyżej której komórka dymu jest widoczna
+     */
+    static final double VISIBLE_DENSITY = 0.3;
+
+    /**
+     * Liczba poziomów gęstości w palecie i pozycje kolorów komórek specjalnych
+     */
+    static final int LEVELS = 10;
+    private static final int SOURCE_COLOR = LEVELS, BARRIER_COLOR = LEVELS + 1, WIND_COLOR = LEVELS + 2;
+    private static final int PALETTE_SIZE = LEVELS + 3;
+
+    /**
+     * Oznaczenie niewidocznej komórki w {@link #colors}
+     */
+    private static final byte HIDDEN = -1;
+
+    /**
+     * Kierunki sąsiadów {dx, dy, dz} i narożniki odpowiadającej im ściany komórki (przesunięcia {x, y, z}
+     * w kolejności obiegu ściany)
+     */
+    private static final int[][] DIRECTIONS = {{-1, 0, 0}, {1, 0, 0}, {0, -1, 0}, {0, 1, 0}, {0, 0, -1}, {0, 0, 1}};
+    private static final int[][][] CORNERS = {
+            {{0, 0, 0}, {0, 0, 1}, {0, 1, 1}, {0, 1, 0}},
+            {{1, 0, 0}, {1, 1, 0}, {1, 1, 1}, {1, 0, 1}},
+            {{0, 0, 0}, {1, 0, 0}, {1, 0, 1}, {0, 0, 1}},
+            {{0, 1, 0}, {0, 1, 1}, {1, 1, 1}, {1, 1, 0}},
+            {{0, 0, 0}, {0, 1, 0}, {1, 1, 0}, {1, 0, 0}},
+            {{0, 0, 1}, {1, 0, 1}, {1, 1, 1}, {0, 1, 1}}};
+
+    private final int sizeX, sizeY, sizeZ;
+
+    private final TriangleMesh mesh = new TriangleMesh();
+    private final MeshView view = new MeshView(mesh);
+
+    /**
+     * Kolor z palety każdej komórki w bieżącej klatce albo {@link #HIDDEN}
+     */
+    private final byte[] colors;
+
+    /**
+     * Lista trójkątów (p0, t0, p1, t1, p2, t2) budowana w każdej klatce
+     */
+    private int[] faces = new int[6 * 1024];
+
+    /**
+     * Czy lista trójkątów została już zbudowana
+     */
+    private boolean built;
+
+    /**
+     * @param sizeX    liczba komórek w osi X
+     * @param sizeY    liczba komórek w osi Y
+     * @param sizeZ    liczba komórek w osi Z
+     * @param cellSize długość krawędzi komórki na scenie
+     */
+    public VolumeMeshRenderer(int sizeX, int sizeY, int sizeZ, double cellSize) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.colors = new byte[sizeX * sizeY * sizeZ];
+
+        // Narożniki komórek w tym samym układzie co środki pudełek: (i - size / 2) * cellSize
+        float[] points = new float[3 * (sizeX + 1) * (sizeY + 1) * (sizeZ + 1)];
+        int p = 0;
+        for (int x = 0; x <= sizeX; x++) {
+            for (int y = 0; y <= sizeY; y++) {
+                for (int z = 0; z <= sizeZ; z++) {
+                    points[p++] = (float) ((x - sizeX / 2 - 0.5) * cellSize);
+                    points[p++] = (float) ((y - sizeY / 2 - 0.5) * cellSize);
+                    points[p++] = (float) ((z - sizeZ / 2 - 0.5) * cellSize);
+                }
+            }
+        }
+        mesh.getPoints().setAll(points);
+
+        float[] texCoords = new float[2 * PALETTE_SIZE];
+        for (int color = 0; color < PALETTE_SIZE; color++) {
+            texCoords[2 * color] = (color + 0.5f) / PALETTE_SIZE;
+            texCoords[2 * color + 1] = 0.5f;
+        }
+        mesh.getTexCoords().setAll(texCoords);
+
+        WritableImage palette = new WritableImage(PALETTE_SIZE, 1);
+        PixelWriter writer = palette.getPixelWriter();
+        for (int level = 0; level < LEVELS; level++) {
+            writer.setColor(level, 0, new Color(0.5, 0.5, 0.5, level / (double) LEVELS));
+        }
+        writer.setColor(SOURCE_COLOR, 0, Color.BLUE);
+        writer.setColor(BARRIER_COLOR, 0, Color.RED);
+        writer.setColor(WIND_COLOR, 0, Color.LIMEGREEN);
+        PhongMaterial material = new PhongMaterial();
+        material.setDiffuseMap(palette);
+        view.setMaterial(material);
+        // Rysowane są tylko zewnętrzne ściany, więc obie strony trójkąta mogą być widoczne
+        view.setCullFace(CullFace.NONE);
+    }
+
+    public MeshView getView() {
+        return view;
+    }
+
+    /**
+     * Przebudowuje listę trójkątów dla podanej kopii gęstości
+     */
+    public void update(DensitySnapshot snapshot) {
+        boolean changed = false;
+        for (int cell = 0; cell < colors.length; cell++) {
+            byte color = color(snapshot.cellType[cell], snapshot.density[cell]);
+            changed |= color != colors[cell];
+            colors[cell] = color;
+        }
+        // Kolory wszystkich komórek bez zmian - lista trójkątów z poprzedniej klatki jest aktualna
+        if (!changed && built) {
+            return;
+        }
+        built = true;
+
+        int count = 0;
+        for (int x = 0; x < sizeX; x++) {
+            for (int y = 0; y < sizeY; y++) {
+                for (int z = 0; z < sizeZ; z++) {
+                    int color = colors[snapshot.index(x, y, z)];
+                    if (color == HIDDEN) continue;
+                    for (int direction = 0; direction < DIRECTIONS.length; direction++) {
+                        int nx = x + DIRECTIONS[direction][0];
+                        int ny = y + DIRECTIONS[direction][1];
+                        int nz = z + DIRECTIONS[direction][2];
+                        if (nx >= 0 && nx < sizeX && ny >= 0 && ny < sizeY && nz >= 0 && nz < sizeZ
+                                && colors[snapshot.index(nx, ny, nz)] != HIDDEN) {
+                            continue;
+                        }
+                        if (count + 12 > faces.length) {
+                            faces = Arrays.copyOf(faces, 2 * faces.length);
+                        }
+                        int[][] corners = CORNERS[direction];
+                        int p0 = point(x, y, z, corners[0]);
+                        int p1 = point(x, y, z, corners[1]);
+                        int p2 = point(x, y, z, corners[2]);
+                        int p3 = point(x, y, z, corners[3]);
+                        count = triangle(count, p0, p1, p2, color);
+                        count = triangle(count, p0, p2, p3, color);
+                    }
+                }
+            }
+        }
+        mesh.getFaces().setAll(faces, 0, count);
+    }
+
+    /**
+     * Kolor z palety komórki o podanym typie i gęstości dymu
+     */
+    private static byte color(byte type, float density) {
+        switch (type) {
+            case SmokeGrid.SOURCE:
+                return SOURCE_COLOR;
+            case SmokeGrid.BARRIER:
+                return BARRIER_COLOR;
+            case SmokeGrid.WIND_SOURCE:
+                return WIND_COLOR;
+            default:
+                if (!(density > VISIBLE_DENSITY)) {
+                    return HIDDEN;
+                }
+                return (byte) Math.min(LEVELS - 1, (int) (Math.min(1.0f, density) * LEVELS));
+        }
+    }
+
+    /**
+     * Indeks wierzchołka narożnika (x, y, z) + corner
+     */
+    private int point(int x, int y, int z, int[] corner) {
+        return ((x + corner[0]) * (sizeY + 1) + y + corner[1]) * (sizeZ + 1) + z + corner[2];
+    }
+
+    private int triangle(int count, int p0, int p1, int p2, int color) {
+        faces[count++] = p0;
+        faces[count++] = color;
+        faces[count++] = p1;
+        faces[count++] = color;
+        faces[count++] = p2;
+        faces[count++] = color;
+        return count;
+    }
+}
@@ -0,0 +1,79 @@
+package pl.edu.agh.ssd;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Założenie {@link ActiveRegion}, że poza liczonymi blokami wszystkie pola są zerowe, przy dwóch odległych
+ * obłokach dymu w tych samych kolumnach bloków - bloki pomiędzy nimi leżą w zakresie osi Z wierszy.
+ */
+class ActiveRegionTest {
+
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 40;
+    private static final int DEPTH = 82;
+    private static final int STEPS = 160;
+    private static final double THRESHOLD = 0.1;
+
+    @Test
+    void cellsOutsideProcessedBricksStayZero() {
+        SmokeSimulation simulation = new SmokeSimulation(WIDTH, HEIGHT, DEPTH, 0.1, 3, 100, 0.00001, 0.02, 1,
+                FieldPrecision.DOUBLE);
+        simulation.addSource(20, 36, 4);
+        simulation.addSource(20, 36, 76);
+        simulation.enableActiveRegions(THRESHOLD);
+
+        long unprocessed = 0;
+        for (int step = 1; step <= STEPS; step++) {
+            simulation.update();
+            if (step % 20 == 0) {
+                unprocessed += assertUnprocessedBricksZero(simulation.room, step);
+            }
+        }
+        assertTrue(unprocessed > 0, "every brick was processed at every check");
+    }
+
+    /**
+     * @return liczba komórek wewnętrznych poza liczonymi blokami
+     */
+    private static int assertUnprocessedBricksZero(SmokeGrid room, int step) {
+        ActiveRegion active = room.active;
+        GridField[] fields = {room.density, room.prevDensity, room.velocityX, room.velocityY, room.velocityZ,
+                room.prevVelocityX, room.prevVelocityY, room.prevVelocityZ};
+        String[] names = {"density", "prevDensity", "velocityX", "velocityY", "velocityZ",
+                "prevVelocityX", "prevVelocityY", "prevVelocityZ"};
+        long processedCells = 0;
+        int unprocessed = 0;
+        for (int x = 1; x < WIDTH - 1; x++) {
+            for (int y = 1; y < HEIGHT - 1; y++) {
+                for (int z = 1; z < DEPTH - 1; z++) {
+                    int brick = (((x - 1) / ActiveRegion.BRICK) * active.bricksY + (y - 1) / ActiveRegion.BRICK)
+                            * active.bricksZ + (z - 1) / ActiveRegion.BRICK;
+                    if (active.processed[brick]) {
+                        processedCells++;
+                        continue;
+                    }
+                    unprocessed++;
+                    int i = room.index(x, y, z);
+                    for (int f = 0; f < fields.length; f++) {
+                        int cell = i;
+                        String name = names[f];
+                        assertEquals(0, fields[f].get(i),
+                                () -> name + " at " + cellName(room, cell) + " outside processed bricks after step " + step);
+                    }
+                }
+            }
+        }
+        assertEquals(processedCells, active.processedCells, "processed cell count after step " + step);
+        return unprocessed;
+    }
+
+    private static String cellName(SmokeGrid room, int i) {
+        int x = i / room.strideX - GridField.GHOST;
+        int y = i % room.strideX / room.strideY - GridField.GHOST;
+        int z = i % room.strideY - GridField.GHOST;
+        return "[" + x + "," + y + "," + z + "]";
+    }
+}
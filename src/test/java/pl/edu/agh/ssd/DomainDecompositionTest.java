@@ -0,0 +1,154 @@
+package pl.edu.agh.ssd;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Podział pomieszczenia na podobszary {@link DomainDecomposition}: płaszczyzny należące do każdej rangi mają być po
+ * każdym przebiegu bitowo równe tym samym płaszczyznom niepodzielonej symulacji {@link RelaxationScheme#RED_BLACK},
+ * zarówno przy wymianie halo w procesie, jak i przez gniazda na localhost.
+ */
+class DomainDecompositionTest {
+
+    private static final int STEPS = 20;
+
+    private static final String[] SCENARIO = {"--size", "40x40x40", "--relaxation", "red-black", "--cfl", "2",
+            "--source", "20,36,20", "--wind", "2,20,20,2,0,0", "--barrier", "10,20,15,15,10,14"};
+
+    @Test
+    void inProcessRanksMatchSingleDomain() throws Exception {
+        ScenarioConfig config = ScenarioConfig.parse(SCENARIO);
+        List<SmokeSimulation> ranks = run(config, 3, InProcessHaloTransport::connect);
+        assertMatchesSingleDomain(config, ranks);
+    }
+
+    @Test
+    void socketRanksMatchSingleDomain() throws Exception {
+        ScenarioConfig config = ScenarioConfig.parse(SCENARIO);
+        int basePort;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            basePort = probe.getLocalPort();
+        }
+        List<SmokeSimulation> ranks = run(config, 2, workers -> connectSockets(workers, basePort));
+        assertMatchesSingleDomain(config, ranks);
+    }
+
+    private interface TransportFactory {
+        HaloTransport[] connect(int ranks) throws Exception;
+    }
+
+    /**
+     * Konstruktor {@link SocketHaloTransport} czeka na sąsiadów, więc rangi łączą się równolegle
+     */
+    private static HaloTransport[] connectSockets(int ranks, int basePort) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(ranks);
+        try {
+            List<Future<HaloTransport>> connections = new ArrayList<>();
+            for (int rank = 0; rank < ranks; rank++) {
+                int r = rank;
+                connections.add(executor.submit(() -> new SocketHaloTransport(r, ranks, "127.0.0.1", basePort)));
+            }
+            HaloTransport[] transports = new HaloTransport[ranks];
+            for (int r = 0; r < ranks; r++) {
+                transports[r] = connections.get(r).get();
+            }
+            return transports;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Liczy {@link #STEPS} kroków wszystkich rang równolegle, każdą w osobnym wątku. Transporty zamykane są dopiero
+     * po zakończeniu wszystkich rang - zamknięcie {@link InProcessHaloTransport} przerywa wymiany całej grupy.
+     *
+     * @return symulacje kolejnych rang po ostatnim kroku
+     */
+    private static List<SmokeSimulation> run(ScenarioConfig config, int ranks, TransportFactory factory)
+            throws Exception {
+        DomainDecomposition decomposition = new DomainDecomposition(config, ranks,
+                DomainDecomposition.defaultHaloWidth(config));
+        HaloTransport[] transports = factory.connect(ranks);
+        ExecutorService executor = Executors.newFixedThreadPool(ranks);
+        try {
+            List<Future<SmokeSimulation>> futures = new ArrayList<>();
+            for (HaloTransport transport : transports) {
+                futures.add(executor.submit(() -> {
+                    SmokeSimulation simulation = decomposition.createSubdomain(transport);
+                    try {
+                        for (int step = 0; step < STEPS; step++) {
+                            simulation.update();
+                        }
+                    } catch (Throwable e) {
+                        transport.close();
+                        throw e;
+                    } finally {
+                        simulation.shutdown();
+                    }
+                    return simulation;
+                }));
+            }
+            List<SmokeSimulation> simulations = new ArrayList<>();
+            for (Future<SmokeSimulation> future : futures) {
+                simulations.add(future.get());
+            }
+            return simulations;
+        } finally {
+            executor.shutdownNow();
+            for (HaloTransport transport : transports) {
+                transport.close();
+            }
+        }
+    }
+
+    private static void assertMatchesSingleDomain(ScenarioConfig config, List<SmokeSimulation> ranks) {
+        SmokeSimulation reference = config.createSimulation();
+        for (int step = 0; step < STEPS; step++) {
+            reference.update();
+        }
+        reference.shutdown();
+
+        SmokeGrid expected = reference.room;
+        int owned = 0;
+        for (SmokeSimulation simulation : ranks) {
+            SmokeGrid room = simulation.room;
+            owned += room.toX - room.fromX;
+            assertOwnedPlanesEqual(expected, room, expected.density, room.density, "density");
+            assertOwnedPlanesEqual(expected, room, expected.velocityX, room.velocityX, "velocityX");
+            assertOwnedPlanesEqual(expected, room, expected.velocityY, room.velocityY, "velocityY");
+            assertOwnedPlanesEqual(expected, room, expected.velocityZ, room.velocityZ, "velocityZ");
+            assertOwnedPlanesEqual(expected, room, expected.prevDensity, room.prevDensity, "prevDensity");
+            assertOwnedPlanesEqual(expected, room, expected.pressure, room.pressure, "pressure");
+        }
+        assertEquals(expected.gridSize[0] - 2, owned, "planes owned by all ranks");
+    }
+
+    /**
+     * Porównuje płaszczyzny [fromX, toX) podobszaru room, razem ze ścianami w osiach Y i Z, z płaszczyznami
+     * pomieszczenia expected przesuniętymi o originX
+     */
+    private static void assertOwnedPlanesEqual(SmokeGrid expected, SmokeGrid room, GridField expectedField,
+                                               GridField actualField, String name) {
+        for (int x = room.fromX; x < room.toX; x++) {
+            for (int y = 0; y < room.gridSize[1]; y++) {
+                for (int z = 0; z < room.gridSize[2]; z++) {
+                    int globalX = x + room.originX;
+                    int cellY = y;
+                    int cellZ = z;
+                    assertEquals(Double.doubleToRawLongBits(expectedField.get(expected.index(globalX, y, z))),
+                            Double.doubleToRawLongBits(actualField.get(room.index(x, y, z))),
+                            () -> name + " at [" + globalX + "," + cellY + "," + cellZ + "] of the rank at originX "
+                                    + room.originX);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package pl.edu.agh.ssd;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Porównanie symulacji na polach {@link FieldPrecision#FLOAT} z tą samą symulacją na polach
+ * {@link FieldPrecision#DOUBLE}.
+ * <p>
+ * Przepływ za przeszkodą wzmacnia różnice zaokrągleń - po kilkunastu krokach nawet zaburzenie prędkości źródła
+ * rzędu 1e-8 zmienia pojedyncze komórki o jednostki gęstości - dlatego porównanie obejmuje pierwsze
+ * {@link #STEPS} kroków, w których dym zdążył się już rozejść od źródła.
+ */
+class FieldPrecisionTest {
+
+    private static final int SIZE = TestScenarios.SIZE;
+    private static final int STEPS = 10;
+
+    /**
+     * Dopuszczalna względna różnica całkowitej gęstości dymu
+     */
+    private static final double TOTAL_TOLERANCE = 1e-4;
+
+    /**
+     * Dopuszczalna różnica gęstości w pojedynczej komórce - 0,1% gęstości źródła
+     */
+    private static final double CELL_TOLERANCE = 0.1;
+
+    @Test
+    void floatMatchesDoubleWithGaussSeidel() {
+        assertFloatMatchesDouble(RelaxationScheme.GAUSS_SEIDEL);
+    }
+
+    @Test
+    void floatMatchesDoubleWithRedBlack() {
+        assertFloatMatchesDouble(RelaxationScheme.RED_BLACK);
+    }
+
+    private static void assertFloatMatchesDouble(RelaxationScheme scheme) {
+        SmokeSimulation expected = TestScenarios.sourceWindBarrier(FieldPrecision.DOUBLE);
+        SmokeSimulation actual = TestScenarios.sourceWindBarrier(FieldPrecision.FLOAT);
+        expected.setRelaxationScheme(scheme);
+        actual.setRelaxationScheme(scheme);
+        for (int step = 0; step < STEPS; step++) {
+            expected.update();
+            actual.update();
+        }
+
+        double expectedTotal = 0;
+        double actualTotal = 0;
+        double maxDifference = 0;
+        for (int x = 0; x < SIZE; x++) {
+            for (int y = 0; y < SIZE; y++) {
+                for (int z = 0; z < SIZE; z++) {
+                    double e = expected.room.density.get(x, y, z);
+                    double a = actual.room.density.get(x, y, z);
+                    expectedTotal += e;
+                    actualTotal += a;
+                    maxDifference = Math.max(maxDifference, Math.abs(a - e));
+                }
+            }
+        }
+        double totalDifference = Math.abs(actualTotal - expectedTotal) / expectedTotal;
+        assertTrue(totalDifference <= TOTAL_TOLERANCE,
+                "total density differs by " + totalDifference + " (" + actualTotal + " vs " + expectedTotal + ")");
+        assertTrue(maxDifference <= CELL_TOLERANCE, "cell density differs by up to " + maxDifference);
+    }
+}
@@ -0,0 +1,168 @@
+package pl.edu.agh.ssd;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Zapis klatek przez {@link FrameRecorder} i odczyt przez {@link FrameReader}: odczytane kanały mają być bitowo
+ * równe polom siatki w chwili zapisu, także przy klatkach delta i w pliku kontynuowanym po przerwanym zapisie.
+ */
+class FrameRecorderTest {
+
+    private static final int FIELDS = FrameRecorder.DENSITY | FrameRecorder.VELOCITY;
+    private static final int KEY_FRAME_INTERVAL = 3;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void keyAndDeltaFramesRoundTrip() throws IOException {
+        SmokeSimulation simulation = TestScenarios.sourceWindBarrier(FieldPrecision.DOUBLE);
+        Path file = directory.resolve("frames.bin");
+        List<Snapshot> expected = new ArrayList<>();
+        record(simulation, file, 7, expected);
+
+        assertFramesEqual(expected, file);
+        // Klatki pełne w krokach 1, 4 i 7, pozostałe to klatki delta
+        assertEquals(List.of(0, FrameRecorder.DELTA, FrameRecorder.DELTA, 0, FrameRecorder.DELTA,
+                FrameRecorder.DELTA, 0), frameFlags(file));
+    }
+
+    @Test
+    void resumedFileDropsCutOffFrame() throws IOException {
+        SmokeSimulation simulation = TestScenarios.sourceWindBarrier(FieldPrecision.DOUBLE);
+        Path file = directory.resolve("frames.bin");
+        List<Snapshot> expected = new ArrayList<>();
+        record(simulation, file, 4, expected);
+
+        // Początek klatki przerwanej w trakcie zapisu kanałów: nagłówek bez długości i część danych
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.APPEND)) {
+            ByteBuffer partial = ByteBuffer.allocate(FrameRecorder.FRAME_HEADER_BYTES + 100).order(ByteOrder.LITTLE_ENDIAN);
+            partial.putLong(5).putInt(FrameRecorder.DELTA).putInt(-1);
+            while (partial.hasRemaining()) {
+                partial.put((byte) 0x55);
+            }
+            partial.flip();
+            while (partial.hasRemaining()) {
+                channel.write(partial);
+            }
+        }
+        record(simulation, file, 3, expected);
+        assertFramesEqual(expected, file);
+
+        // Ostatnia klatka obcięta w połowie danych - odczyt kończy się na poprzedniej, a kontynuacja ją usuwa
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 10);
+        }
+        expected.remove(expected.size() - 1);
+        assertFramesEqual(expected, file);
+        record(simulation, file, 2, expected);
+        assertFramesEqual(expected, file);
+    }
+
+    /**
+     * Liczy count kroków symulacji, zapisując klatkę po każdym z nich, i dopisuje stan pól do expected
+     */
+    private static void record(SmokeSimulation simulation, Path file, int count, List<Snapshot> expected) throws IOException {
+        try (FrameRecorder recorder = new FrameRecorder(file, simulation.room, FIELDS, count)) {
+            recorder.setKeyFrameInterval(KEY_FRAME_INTERVAL);
+            for (int i = 0; i < count; i++) {
+                simulation.update();
+                assertTrue(recorder.record(simulation.room, simulation.getStepCount()));
+                expected.add(new Snapshot(simulation.room, simulation.getStepCount()));
+            }
+        }
+    }
+
+    private static void assertFramesEqual(List<Snapshot> expected, Path file) throws IOException {
+        try (FrameReader reader = new FrameReader(file)) {
+            int[] size = reader.size();
+            assertEquals(TestScenarios.SIZE - 2, size[0]);
+            assertEquals(TestScenarios.SIZE - 2, size[1]);
+            assertEquals(TestScenarios.SIZE - 2, size[2]);
+            for (Snapshot snapshot : expected) {
+                assertTrue(reader.next(), "missing frame of step " + snapshot.step);
+                assertEquals(snapshot.step, reader.step());
+                assertBitwiseEqual(snapshot.density, reader.density(), "density", snapshot.step);
+                assertBitwiseEqual(snapshot.velocityX, reader.velocityX(), "velocityX", snapshot.step);
+                assertBitwiseEqual(snapshot.velocityY, reader.velocityY(), "velocityY", snapshot.step);
+                assertBitwiseEqual(snapshot.velocityZ, reader.velocityZ(), "velocityZ", snapshot.step);
+                assertEquals(null, reader.temperature());
+            }
+            assertFalse(reader.next(), "unexpected frame after step " + reader.step());
+        }
+    }
+
+    private static void assertBitwiseEqual(double[] expected, double[] actual, String name, long step) {
+        long[] expectedBits = new long[expected.length];
+        long[] actualBits = new long[actual.length];
+        for (int i = 0; i < expected.length; i++) {
+            expectedBits[i] = Double.doubleToRawLongBits(expected[i]);
+        }
+        for (int i = 0; i < actual.length; i++) {
+            actualBits[i] = Double.doubleToRawLongBits(actual[i]);
+        }
+        assertArrayEquals(expectedBits, actualBits, () -> name + " of step " + step);
+    }
+
+    /**
+     * Flagi kolejnych pełnych klatek pliku
+     */
+    private static List<Integer> frameFlags(Path file) throws IOException {
+        List<Integer> flags = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(FrameRecorder.FRAME_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            long position = FrameRecorder.HEADER_BYTES;
+            while (position < channel.size()) {
+                header.clear();
+                channel.read(header, position);
+                flags.add(header.getInt(Long.BYTES));
+                position += FrameRecorder.FRAME_HEADER_BYTES + header.getInt(Long.BYTES + Integer.BYTES);
+            }
+        }
+        return flags;
+    }
+
+    /**
+     * Komórki wewnętrzne zapisywanych pól w kolejności x, y, z
+     */
+    private static final class Snapshot {
+        final long step;
+        final double[] density, velocityX, velocityY, velocityZ;
+
+        Snapshot(SmokeGrid room, long step) {
+            this.step = step;
+            this.density = interior(room, room.density);
+            this.velocityX = interior(room, room.velocityX);
+            this.velocityY = interior(room, room.velocityY);
+            this.velocityZ = interior(room, room.velocityZ);
+        }
+
+        private static double[] interior(SmokeGrid room, GridField field) {
+            double[] values = new double[(room.gridSize[0] - 2) * (room.gridSize[1] - 2) * (room.gridSize[2] - 2)];
+            int i = 0;
+            for (int x = 1; x < room.gridSize[0] - 1; x++) {
+                for (int y = 1; y < room.gridSize[1] - 1; y++) {
+                    for (int z = 1; z < room.gridSize[2] - 1; z++) {
+                        values[i++] = field.get(room.index(x, y, z));
+                    }
+                }
+            }
+            return values;
+        }
+    }
+}
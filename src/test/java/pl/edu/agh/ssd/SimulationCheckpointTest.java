@@ -0,0 +1,80 @@
+package pl.edu.agh.ssd;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static pl.edu.agh.ssd.TestScenarios.assertBitwiseEqual;
+
+/**
+ * Wznowienie symulacji z punktu kontrolnego: kroki symulacji odtworzonej z pliku mają dać bitowo te same pola
+ * co dalsze kroki symulacji, z której zapisano punkt kontrolny.
+ */
+class SimulationCheckpointTest {
+
+    private static final int STEPS_BEFORE = 10;
+    private static final int STEPS_AFTER = 10;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void plainCheckpointContinuesBitwise() throws IOException {
+        SmokeSimulation simulation = TestScenarios.sourceWindBarrier(FieldPrecision.DOUBLE);
+        run(simulation, STEPS_BEFORE);
+        Path file = directory.resolve("plain.ckpt");
+        SimulationCheckpoint.capture(simulation).write(file, false);
+        assertRestoredRunMatches(simulation, file);
+    }
+
+    @Test
+    void compressedCheckpointWithWarmStartContinuesBitwise() throws IOException {
+        SmokeSimulation simulation = TestScenarios.sourceWindBarrier(FieldPrecision.DOUBLE);
+        simulation.pressureSolver.setWarmStart(true);
+        run(simulation, STEPS_BEFORE);
+        Path file = directory.resolve("compressed.ckpt.gz");
+        SimulationCheckpoint.write(simulation, file, true);
+        assertRestoredRunMatches(simulation, file);
+    }
+
+    @Test
+    void floatCheckpointWithActiveRegionsContinuesBitwise() throws IOException {
+        SmokeSimulation simulation = TestScenarios.sourceWindBarrier(FieldPrecision.FLOAT);
+        simulation.enableActiveRegions(0.1);
+        run(simulation, STEPS_BEFORE);
+        Path file = directory.resolve("float.ckpt");
+        SimulationCheckpoint.capture(simulation).write(file, false);
+        assertRestoredRunMatches(simulation, file);
+    }
+
+    private static void assertRestoredRunMatches(SmokeSimulation simulation, Path file) throws IOException {
+        SmokeSimulation restored = SimulationCheckpoint.read(file, 1);
+        run(simulation, STEPS_AFTER);
+        run(restored, STEPS_AFTER);
+
+        assertEquals(simulation.getStepCount(), restored.getStepCount());
+        assertEquals(simulation.getSimulationTime(), restored.getSimulationTime());
+        SmokeGrid expected = simulation.room;
+        SmokeGrid actual = restored.room;
+        assertEquals(expected.precision, actual.precision);
+        assertBitwiseEqual(expected.density, actual.density, "density");
+        assertBitwiseEqual(expected.velocityX, actual.velocityX, "velocityX");
+        assertBitwiseEqual(expected.velocityY, actual.velocityY, "velocityY");
+        assertBitwiseEqual(expected.velocityZ, actual.velocityZ, "velocityZ");
+        assertBitwiseEqual(expected.prevDensity, actual.prevDensity, "prevDensity");
+        assertBitwiseEqual(expected.prevVelocityX, actual.prevVelocityX, "prevVelocityX");
+        assertBitwiseEqual(expected.prevVelocityY, actual.prevVelocityY, "prevVelocityY");
+        assertBitwiseEqual(expected.prevVelocityZ, actual.prevVelocityZ, "prevVelocityZ");
+        assertBitwiseEqual(expected.pressure, actual.pressure, "pressure");
+        assertBitwiseEqual(expected.prevPressure, actual.prevPressure, "prevPressure");
+    }
+
+    private static void run(SmokeSimulation simulation, int steps) {
+        for (int step = 0; step < steps; step++) {
+            simulation.update();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package pl.edu.agh.ssd;
+
+import org.junit.jupiter.api.Test;
+
+import static pl.edu.agh.ssd.TestScenarios.assertBitwiseEqual;
+
+/**
+ * Porównanie kroku {@link SmokeSimulation#update()}, który nadpisuje pola "prev" w miejscu, z pierwotnym krokiem,
+ * który na końcu zastępował je nowymi kopiami pól bieżących.
+ */
+class SmokeSimulationTest {
+
+    private static final int STEPS = 30;
+
+    @Test
+    void inPlacePreviousFieldsMatchDeepCopies() {
+        SmokeSimulation simulation = TestScenarios.sourceWindBarrier(FieldPrecision.DOUBLE);
+        SmokeSimulation reference = TestScenarios.sourceWindBarrier(FieldPrecision.DOUBLE);
+
+        for (int step = 0; step < STEPS; step++) {
+            if (step == STEPS / 2) {
+                // Przeniesienie źródła w trakcie przebiegu zmienia komórki, których nie zapisuje żaden kernel
+                for (SmokeSimulation s : new SmokeSimulation[]{simulation, reference}) {
+                    s.removeSource(20, 36, 20);
+                    s.addSource(14, 36, 26);
+                }
+            }
+            simulation.update();
+            referenceUpdate(reference);
+        }
+
+        SmokeGrid room = simulation.room;
+        SmokeGrid expected = reference.room;
+        assertBitwiseEqual(expected.density, room.density, "density");
+        assertBitwiseEqual(expected.velocityX, room.velocityX, "velocityX");
+        assertBitwiseEqual(expected.velocityY, room.velocityY, "velocityY");
+        assertBitwiseEqual(expected.velocityZ, room.velocityZ, "velocityZ");
+        assertBitwiseEqual(expected.prevDensity, room.prevDensity, "prevDensity");
+    }
+
+    /**
+     * Krok z pierwotną semantyką kopiowania: po {@link SmokeSimulation#update()} pola "prev" zastępowane są nowo
+     * zaalokowanymi kopiami pól bieżących, więc żaden bufor nie jest współdzielony pomiędzy krokami
+     */
+    private static void referenceUpdate(SmokeSimulation simulation) {
+        simulation.update();
+        SmokeGrid room = simulation.room;
+        room.prevVelocityX = copy(room, room.velocityX);
+        room.prevVelocityY = copy(room, room.velocityY);
+        room.prevVelocityZ = copy(room, room.velocityZ);
+        room.prevDensity = copy(room, room.density);
+        simulation.previousVelocities[0] = room.prevVelocityX;
+        simulation.previousVelocities[1] = room.prevVelocityY;
+        simulation.previousVelocities[2] = room.prevVelocityZ;
+    }
+
+    private static GridField copy(SmokeGrid room, GridField original) {
+        GridField copy = room.newField(0);
+        copy.copyFrom(original);
+        return copy;
+    }
+}
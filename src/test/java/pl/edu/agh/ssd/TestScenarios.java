@@ -0,0 +1,40 @@
+package pl.edu.agh.ssd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Scenariusze symulacji i porównania pól wspólne dla testów
+ */
+final class TestScenarios {
+
+    /**
+     * Rozmiar pomieszczenia scenariusza {@link #sourceWindBarrier}
+     */
+    static final int SIZE = 40;
+
+    private TestScenarios() {
+    }
+
+    /**
+     * Pomieszczenie {@link #SIZE}³ ze źródłem dymu przy podłodze, wiatrem od ściany X i poziomą przeszkodą.
+     * Po kilku krokach dym rozchodzi się od źródła, a za przeszkodą powstaje zawirowanie.
+     */
+    static SmokeSimulation sourceWindBarrier(FieldPrecision precision) {
+        SmokeSimulation simulation = new SmokeSimulation(SIZE, SIZE, SIZE, 0.1, 3, 100, 0.00001, 0.02, 1, precision);
+        simulation.addSource(20, 36, 20);
+        simulation.addWind(2, 20, 20, 2, 0, 0);
+        simulation.addBound(10, 20, 15, 15, 10, 14);
+        return simulation;
+    }
+
+    /**
+     * Sprawdza, czy pola mają bitowo identyczne wartości we wszystkich komórkach razem z warstwą duchów
+     */
+    static void assertBitwiseEqual(GridField expected, GridField actual, String name) {
+        for (int i = 0; i < expected.length; i++) {
+            int cell = i;
+            assertEquals(Double.doubleToRawLongBits(expected.get(i)), Double.doubleToRawLongBits(actual.get(i)),
+                    () -> name + " differs at index " + cell);
+        }
+    }
+}